@@ -41,12 +41,18 @@ public class AuthConnection {
 
     private static final Logger LOG = LoggerFactory.getLogger(AuthConnection.class);
 
+    // Authentication happens within guarded calls to the same host, it has its own guard so that it never needs a second permit
+    private static final String GUARD_GROUP = "auth";
+
     private final HttpJsonRequestFactory httpJsonRequestFactory;
+    private final EndpointGuards         endpointGuards;
     private final String                 baseUrl;
 
     @Inject
-    public AuthConnection(HttpJsonRequestFactory httpJsonRequestFactory, @Named("api.endpoint") String baseUrl) {
+    public AuthConnection(HttpJsonRequestFactory httpJsonRequestFactory, EndpointGuards endpointGuards,
+                          @Named("api.endpoint") String baseUrl) {
         this.httpJsonRequestFactory = httpJsonRequestFactory;
+        this.endpointGuards = endpointGuards;
         this.baseUrl = baseUrl;
     }
 
@@ -68,7 +74,7 @@ public class AuthConnection {
         Credentials credentials = DtoFactory.newDto(Credentials.class).withUsername(username).withPassword(password);
         HttpJsonRequest httpJsonRequest = httpJsonRequestFactory.fromUrl(url).usePostMethod().setBody(credentials);
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, GUARD_GROUP, httpJsonRequest::request);
             userToken = response.asDto(Token.class);
 
         } catch (IOException | ApiException e) {
@@ -0,0 +1,254 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.auth.shared.dto.Token;
+import org.eclipse.che.api.core.ApiException;
+import org.eclipse.che.api.core.ServerException;
+import org.eclipse.che.api.core.UnauthorizedException;
+import org.eclipse.che.api.core.rest.HttpJsonRequest;
+import org.eclipse.che.api.core.rest.HttpJsonResponse;
+import org.eclipse.che.commons.lang.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Cache of the Codenvy auth token obtained with the credentials configured in CREDENTIALS_PROPERTIES_FILENAME properties file.
+ *
+ * The token is reused until Codenvy rejects it, only then a request waits for a new authentication.
+ * It is refreshed in background 'webhooks.auth.token.refresh.ahead.minutes' (system property, default 5) before
+ * 'webhooks.auth.token.lifetime.minutes' (system property, default 30) have elapsed since it was obtained,
+ * no background refresh is done if the lifetime is 0.
+ * Concurrent callers that need a new token share the same authentication request.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class AuthTokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AuthTokenCache.class);
+
+    private static final String CREDENTIALS_PROPERTIES_FILENAME = "credentials.properties";
+    private static final long   TOKEN_LIFETIME_MINUTES          = Long.getLong("webhooks.auth.token.lifetime.minutes", 30L);
+    private static final long   REFRESH_AHEAD_MINUTES           = Long.getLong("webhooks.auth.token.refresh.ahead.minutes", 5L);
+
+    private final AuthConnection           authConnection;
+    private final CredentialsRegistry      credentialsRegistry;
+    private final long                     tokenLifetimeMillis;
+    private final long                     refreshAheadMillis;
+    private final ScheduledExecutorService refresher;
+
+    private volatile String                   current;
+    private          CompletableFuture<Token> inFlight;
+    // Next background refresh, replaced each time a token is obtained
+    private          ScheduledFuture<?>       refresh;
+
+    @Inject
+    public AuthTokenCache(final AuthConnection authConnection) {
+        this(authConnection, TOKEN_LIFETIME_MINUTES, REFRESH_AHEAD_MINUTES, MINUTES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param authConnection
+     *         the connection used to authenticate against Codenvy
+     * @param tokenLifetime
+     *         how long a token is expected to be valid after authentication, 0 if unknown
+     * @param refreshAhead
+     *         how long before expiry a token is refreshed in background
+     * @param unit
+     *         the unit of tokenLifetime and refreshAhead
+     */
+    public AuthTokenCache(final AuthConnection authConnection, final long tokenLifetime, final long refreshAhead, final TimeUnit unit) {
+        this.authConnection = authConnection;
+        this.credentialsRegistry = new CredentialsRegistry();
+        // Not managed by the injector
+        this.credentialsRegistry.start();
+        this.tokenLifetimeMillis = unit.toMillis(tokenLifetime);
+        this.refreshAheadMillis = unit.toMillis(refreshAhead);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "webhooks-auth-token-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the auth token, authenticate against Codenvy only if no token is cached
+     *
+     * @return the value of the auth token
+     * @throws ServerException
+     *         if authentication fails
+     */
+    public String getToken() throws ServerException {
+        final String cached = current;
+        if (cached != null) {
+            return cached;
+        }
+        return await(authenticate());
+    }
+
+    /**
+     * Get the cached auth token without authenticating
+     *
+     * @return the value of the cached auth token or null if no token is cached
+     */
+    public String peekToken() {
+        return current;
+    }
+
+    /**
+     * Forget a token that was rejected by Codenvy, so that next call to {@link #getToken()} authenticates again.
+     * Nothing is done if the cached token has already been replaced.
+     *
+     * @param token
+     *         the value of the rejected token
+     */
+    public void invalidate(final String token) {
+        final String cached = current;
+        if (cached != null && cached.equals(token)) {
+            synchronized (this) {
+                if (current == cached) {
+                    current = null;
+                    LOG.debug("Auth token invalidated");
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a request to Codenvy API.
+     * If the auth token is rejected, it is invalidated and the request is sent again once with a new token.
+     *
+     * @param httpJsonRequest
+     *         the request to send
+     * @return the response of the request
+     */
+    public HttpJsonResponse request(final HttpJsonRequest httpJsonRequest) throws IOException, ApiException {
+        final String token = peekToken();
+        try {
+            return httpJsonRequest.request();
+        } catch (UnauthorizedException e) {
+            LOG.debug("Auth token rejected by Codenvy, authenticate again");
+            invalidate(token);
+            return httpJsonRequest.request();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        refresher.shutdownNow();
+        credentialsRegistry.stop();
+    }
+
+    /**
+     * Authenticate against Codenvy or join the authentication that is already in progress
+     */
+    private CompletableFuture<Token> authenticate() {
+        final CompletableFuture<Token> result;
+        synchronized (this) {
+            if (inFlight != null) {
+                return inFlight;
+            }
+            result = new CompletableFuture<>();
+            inFlight = result;
+        }
+        try {
+            final Pair<String, String> credentials = credentialsRegistry.get();
+            final Token token = authConnection.authenticateUser(credentials.first, credentials.second);
+            if (token == null) {
+                throw new ServerException("Authentication against Codenvy returned no token");
+            }
+            synchronized (this) {
+                current = token.getValue();
+                inFlight = null;
+            }
+            scheduleRefresh();
+            result.complete(token);
+        } catch (ServerException | RuntimeException e) {
+            synchronized (this) {
+                inFlight = null;
+            }
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+        if (tokenLifetimeMillis <= 0) {
+            return;
+        }
+        final long delay = Math.max(0, tokenLifetimeMillis - refreshAheadMillis);
+        try {
+            refresh = refresher.schedule(() -> {
+                final CompletableFuture<Token> refreshed = authenticate();
+                if (refreshed.isCompletedExceptionally()) {
+                    LOG.warn("Background refresh of auth token failed, the current token is kept until Codenvy rejects it");
+                }
+            }, delay, MILLISECONDS);
+        } catch (RuntimeException e) {
+            LOG.debug("Auth token refresh not scheduled: {}", e.getLocalizedMessage());
+        }
+    }
+
+    private static String await(final CompletableFuture<Token> future) throws ServerException {
+        try {
+            return future.get().getValue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerException("Interrupted while authenticating against Codenvy");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ServerException) {
+                throw (ServerException)cause;
+            }
+            throw new ServerException(cause.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Credentials contained in CREDENTIALS_PROPERTIES_FILENAME properties file
+     */
+    private static final class CredentialsRegistry extends PropertiesRegistry<Pair<String, String>> {
+
+        private CredentialsRegistry() {
+            super(CREDENTIALS_PROPERTIES_FILENAME);
+        }
+
+        @Override
+        protected Pair<String, String> parse(Properties credentialsProperties) {
+            return Pair.of(credentialsProperties.getProperty("username"), credentialsProperties.getProperty("password"));
+        }
+    }
+}
@@ -15,56 +15,282 @@
 package com.codenvy.plugin.webhooks;
 
 import com.codenvy.plugin.webhooks.connectors.Connector;
-import com.codenvy.plugin.webhooks.connectors.JenkinsConnector;
+import com.codenvy.plugin.webhooks.connectors.ConnectorDispatcher;
+import com.codenvy.plugin.webhooks.connectors.ConnectorRegistry;
+import com.codenvy.plugin.webhooks.connectors.ConnectorResult;
+import com.codenvy.plugin.webhooks.connectors.FactoryLinkBatch;
 
-import org.eclipse.che.api.auth.shared.dto.Token;
 import org.eclipse.che.api.core.ServerException;
 import org.eclipse.che.api.core.rest.Service;
 import org.eclipse.che.api.factory.shared.dto.Factory;
 import org.eclipse.che.api.workspace.shared.dto.ProjectConfigDto;
 import org.eclipse.che.api.workspace.shared.dto.SourceStorageDto;
 import org.eclipse.che.api.workspace.shared.dto.WorkspaceConfigDto;
-import org.eclipse.che.commons.lang.Pair;
 import org.eclipse.che.commons.user.User;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
-import static java.util.stream.Collectors.toList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
 
 /**
  * Webhooks handler
  *
+ * If 'webhooks.async' system property is true, events are stored in a {@link WebhookEventQueue}
+ * located in 'webhooks.queue.dir' directory (system property, default 'webhooks-events')
+ * and processed once the sender has been answered, by up to 'webhooks.queue.workers' threads (system property, default 4).
+ * Otherwise the event is processed by the thread of its request.
+ * In both cases, events about the same repository or VSTS collection are processed in order, and events about
+ * different ones are processed in parallel. A request waits at most 'webhooks.sync.lock.wait.seconds' (default 10)
+ * for the events about the same repository or collection received before it.
+ *
  * @author Stephane Tournie
  */
 public abstract class BaseWebhookService extends Service {
 
-    private static final Logger LOG                             = LoggerFactory.getLogger(BaseWebhookService.class);
-    private static final String CONNECTORS_PROPERTIES_FILENAME  = "connectors.properties";
-    private static final String CREDENTIALS_PROPERTIES_FILENAME = "credentials.properties";
+    private static final Logger LOG = LoggerFactory.getLogger(BaseWebhookService.class);
 
     protected static final String FACTORY_URL_REL = "accept-named";
 
-    private final AuthConnection authConnection;
-    private final FactoryConnection factoryConnection;
+    private static final boolean ASYNC         = Boolean.getBoolean("webhooks.async");
+    private static final String  QUEUE_DIR     = System.getProperty("webhooks.queue.dir", "webhooks-events");
+    private static final int     QUEUE_WORKERS = Integer.getInteger("webhooks.queue.workers", 4);
+
+    private static final int  SYNC_LOCKS             = 64;
+    private static final long SYNC_LOCK_WAIT_SECONDS = Long.getLong("webhooks.sync.lock.wait.seconds", 10L);
+
+    private final AuthTokenCache       authTokenCache;
+    private final FactoryConnection    factoryConnection;
+    private final FactoryFetcher       factoryFetcher;
+    private final FactoryIndex         factoryIndex;
+    private final ConnectorRegistry    connectorRegistry;
+    private final ConnectorDispatcher  connectorDispatcher;
+    private final DeliveryDeduplicator deliveryDeduplicator;
+    private final EndpointGuards       endpointGuards;
+
+    // Locks of the partitions of the events processed by their request, fair so that events are processed in order
+    private final ReentrantLock[] syncLocks;
 
-    public BaseWebhookService(final AuthConnection authConnection, final FactoryConnection factoryConnection) {
-        this.authConnection = authConnection;
+    private WebhookEventQueue eventQueue;
+
+    /**
+     * Process an event while its request waits
+     */
+    protected interface EventHandler {
+        void handle() throws ServerException;
+    }
+
+    public BaseWebhookService(final AuthTokenCache authTokenCache, final FactoryConnection factoryConnection,
+                              final FactoryFetcher factoryFetcher, final FactoryIndex factoryIndex,
+                              final ConnectorRegistry connectorRegistry, final ConnectorDispatcher connectorDispatcher,
+                              final DeliveryDeduplicator deliveryDeduplicator, final EndpointGuards endpointGuards) {
+        this.authTokenCache = authTokenCache;
         this.factoryConnection = factoryConnection;
+        this.factoryFetcher = factoryFetcher;
+        this.factoryIndex = factoryIndex;
+        this.connectorRegistry = connectorRegistry;
+        this.connectorDispatcher = connectorDispatcher;
+        this.deliveryDeduplicator = deliveryDeduplicator;
+        this.endpointGuards = endpointGuards;
+        this.syncLocks = new ReentrantLock[SYNC_LOCKS];
+        for (int i = 0; i < SYNC_LOCKS; i++) {
+            syncLocks[i] = new ReentrantLock(true);
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        if (ASYNC) {
+            final java.nio.file.Path queueDirectory = Paths.get(QUEUE_DIR, getEventQueueName());
+            eventQueue = new WebhookEventQueue(queueDirectory, QUEUE_WORKERS, this::processEvent);
+            try {
+                eventQueue.start();
+            } catch (IOException e) {
+                LOG.error(e.getLocalizedMessage());
+                throw new UncheckedIOException("Unable to start webhook events queue in " + queueDirectory.toAbsolutePath(), e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (eventQueue != null) {
+            eventQueue.stop();
+        }
+    }
+
+    @GET
+    @Path("/metrics")
+    @Produces(TEXT_PLAIN)
+    public String getMetricsAsText() {
+        final StringBuilder metrics = new StringBuilder();
+        getMetrics().forEach((name, value) -> metrics.append(name).append(' ').append(value).append('\n'));
+        return metrics.toString();
     }
 
     /**
-     * Get factories that contain a project for given repository and branch
+     * Get the name of the directory, relative to 'webhooks.queue.dir', that stores the events of this service
+     */
+    protected abstract String getEventQueueName();
+
+    /**
+     * Process an event taken from the event queue
+     *
+     * @param event
+     *         the event to process
+     */
+    protected abstract void processEvent(final WebhookEvent event) throws ServerException, IOException;
+
+    /**
+     * Whether or not events are processed asynchronously
+     */
+    protected boolean isAsync() {
+        return eventQueue != null;
+    }
+
+    /**
+     * Store an event in the event queue so that it is processed asynchronously
+     *
+     * @param event
+     *         the event to enqueue
+     * @return HTTP 202 response
+     * @throws ServerException
+     *         if the event cannot be stored
+     */
+    protected Response enqueueEvent(final WebhookEvent event) throws ServerException {
+        try {
+            eventQueue.enqueue(event);
+        } catch (IOException e) {
+            LOG.error(e.getLocalizedMessage());
+            throw new ServerException(e.getLocalizedMessage());
+        }
+        return Response.accepted().build();
+    }
+
+    /**
+     * Process an event with the thread of its request, after the events of the same partition received before it
+     *
+     * @param partitionKey
+     *         the key of the events that must be processed in order with this one (the repository, the collection...), may be null
+     * @param handler
+     *         the handler that processes the event
+     * @throws ServerException
+     *         if the handler throws it, or if the events of the partition received before this one are still processed
+     */
+    protected void processInOrder(final String partitionKey, final EventHandler handler) throws ServerException {
+        if (partitionKey == null) {
+            handler.handle();
+            return;
+        }
+        // Partitions share locks, an event may wait for events of another partition
+        final int hash = partitionKey.hashCode();
+        final ReentrantLock lock = syncLocks[Math.floorMod(hash ^ (hash >>> 16), SYNC_LOCKS)];
+        try {
+            if (!lock.tryLock(SYNC_LOCK_WAIT_SECONDS, SECONDS)) {
+                throw new ServerException("Webhook event about " + partitionKey + " not processed, previous events still processed after "
+                                          + SYNC_LOCK_WAIT_SECONDS + " s");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerException("Interrupted while waiting for the previous events about " + partitionKey);
+        }
+        try {
+            handler.handle();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether or not a delivery has already been received recently.
+     * A delivery that is not a duplicate is remembered so that it is detected if it is sent again.
+     *
+     * @param source
+     *         the sender of the delivery ('github', 'vsts'...), so that ids of different senders never collide
+     * @param deliveryId
+     *         the id of the delivery, may be null
+     * @return true if the delivery is a duplicate and must not be processed
+     */
+    protected boolean isDuplicateDelivery(final String source, final String deliveryId) {
+        if (isNullOrEmpty(deliveryId)) {
+            return false;
+        }
+        final boolean duplicate = !deliveryDeduplicator.markIfNew(source + ":" + deliveryId);
+        if (duplicate) {
+            LOG.debug("Delivery {} from {} already received, it is ignored", deliveryId, source);
+        }
+        return duplicate;
+    }
+
+    /**
+     * Forget a delivery whose processing failed, so that it is processed if it is sent again
+     *
+     * @param source
+     *         the sender of the delivery
+     * @param deliveryId
+     *         the id of the delivery, may be null
+     */
+    protected void forgetDelivery(final String source, final String deliveryId) {
+        if (!isNullOrEmpty(deliveryId)) {
+            deliveryDeduplicator.forget(source + ":" + deliveryId);
+        }
+    }
+
+    /**
+     * Get the metrics of this service, by name
+     */
+    protected Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new LinkedHashMap<>();
+        if (eventQueue != null) {
+            metrics.put("webhooks.queue.depth", eventQueue.getDepth());
+            metrics.put("webhooks.queue.oldest.age.ms", eventQueue.getOldestEventAge());
+            metrics.put("webhooks.queue.busy.lanes", eventQueue.getBusyLanes());
+            metrics.put("webhooks.queue.retries", eventQueue.getRetryCount());
+            metrics.put("webhooks.queue.dead.letters", eventQueue.getDeadLetterCount());
+        }
+        int syncWaiting = 0;
+        int syncBusy = 0;
+        for (ReentrantLock lock : syncLocks) {
+            syncWaiting += lock.getQueueLength();
+            syncBusy += lock.isLocked() ? 1 : 0;
+        }
+        metrics.put("webhooks.sync.waiting", syncWaiting);
+        metrics.put("webhooks.sync.busy", syncBusy);
+        metrics.put("webhooks.deliveries.remembered", deliveryDeduplicator.size());
+        metrics.put("webhooks.deliveries.duplicates", deliveryDeduplicator.getDuplicateCount());
+        metrics.put("webhooks.factories.cache.size", factoryConnection.getFactoryCacheSize());
+        metrics.put("webhooks.factories.cache.hits", factoryConnection.getFactoryCacheStats().hitCount());
+        metrics.put("webhooks.factories.cache.misses", factoryConnection.getFactoryCacheStats().missCount());
+        metrics.put("webhooks.connectors.active", connectorDispatcher.getActiveCount());
+        metrics.put("webhooks.connectors.queued", connectorDispatcher.getQueuedCount());
+        metrics.put("webhooks.connectors.failures", connectorDispatcher.getFailureCount());
+        metrics.putAll(endpointGuards.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Get factories that contain a project for given repository and branch.
+     * Only factories that may match according to {@link FactoryIndex} are fetched.
+     * Factories are fetched concurrently, a factory that cannot be fetched is logged and skipped.
      *
      * @param factoryIDs
      *         the set of id's of factories to check
@@ -76,17 +302,18 @@ public abstract class BaseWebhookService extends Service {
      */
     protected List<Factory> getFactoriesForRepositoryAndBranch(final Set<String> factoryIDs, final String headRepositoryUrl,
                                                                final String headBranch) throws ServerException {
-        List<Factory> factories = new ArrayList<>();
-        for (String factoryID : factoryIDs) {
-            factories.add(factoryConnection.getFactory(factoryID));
-        }
+        final Set<String> candidateIDs = factoryIndex.getCandidates(factoryIDs, headRepositoryUrl, headBranch);
+        LOG.debug("{} of {} factories may match repository {} and branch {}", candidateIDs.size(), factoryIDs.size(),
+                  headRepositoryUrl, headBranch);
+
+        final FactoryFetcher.Result result =
+                factoryFetcher.fetch(candidateIDs, f -> f.getWorkspace().getProjects()
+                                                       .stream()
+                                                       .anyMatch(p -> isProjectMatching(p, headRepositoryUrl, headBranch)));
+
+        result.getFailures().forEach((factoryID, reason) -> LOG.warn("Unable to get factory {}: {}", factoryID, reason));
 
-        return factories.stream()
-                        .filter(f -> (f != null)
-                                     && (f.getWorkspace().getProjects()
-                                           .stream()
-                                           .anyMatch(p -> isProjectMatching(p, headRepositoryUrl, headBranch))))
-                        .collect(toList());
+        return result.getFactories();
     }
 
     /**
@@ -162,60 +389,28 @@ public abstract class BaseWebhookService extends Service {
     }
 
     /**
-     * Get all configured connectors
+     * Get connectors configured for a given factory
      *
      * Jenkins connector: [connector-name]=[connector-type],[factory-id],[jenkins-url],[jenkins-job-name]
      *
      * @param factoryId
-     * @return the list of all connectors contained in CONNECTORS_PROPERTIES_FILENAME properties file
+     *         the id of the factory
+     * @return the list of connectors configured for the factory in {@link ConnectorRegistry}
      */
-    protected static List<Connector> getConnectors(String factoryId) throws ServerException {
-        List<Connector> connectors = new ArrayList<>();
-        Properties connectorsProperties = getProperties(CONNECTORS_PROPERTIES_FILENAME);
-        Set<String> keySet = connectorsProperties.stringPropertyNames();
-        keySet.stream()
-              .filter(key -> factoryId.equals(connectorsProperties.getProperty(key).split(",")[1]))
-              .forEach(key -> {
-                  String value = connectorsProperties.getProperty(key);
-                  String[] valueSplit = value.split(",");
-                  switch (valueSplit[0]) {
-                      case "jenkins":
-                          JenkinsConnector jenkinsConnector = new JenkinsConnector(valueSplit[2], valueSplit[3]);
-                          connectors.add(jenkinsConnector);
-                          LOG.debug("new JenkinsConnector({}, {})", valueSplit[2], valueSplit[3]);
-                          break;
-                      default:
-                          LOG.error("Unknown connector type {}", valueSplit[0]);
-                          break;
-                  }
-              });
-        return connectors;
+    protected List<Connector> getConnectors(String factoryId) throws ServerException {
+        return connectorRegistry.getConnectors(factoryId);
     }
 
     /**
-     * Get credentials
+     * Add factory links within third-party services, in background and in parallel.
+     * The caller is not blocked by slow third-party services, failures are logged once all connectors are done.
      *
-     * @return the credentials contained in CREDENTIALS_PROPERTIES_FILENAME properties file
-     * @throws ServerException
+     * @param factoryLinks
+     *         the factory links to add
+     * @return the results of all connectors, see {@link ConnectorDispatcher#dispatch(FactoryLinkBatch)}
      */
-    protected static Pair<String, String> getCredentials() throws ServerException {
-        String[] credentials = new String[2];
-        Properties credentialsProperties = getProperties(CREDENTIALS_PROPERTIES_FILENAME);
-        Set<String> keySet = credentialsProperties.stringPropertyNames();
-        keySet.forEach(key -> {
-            String value = credentialsProperties.getProperty(key);
-            switch (key) {
-                case "username":
-                    credentials[0] = value;
-                    break;
-                case "password":
-                    credentials[1] = value;
-                    break;
-                default:
-                    break;
-            }
-        });
-        return Pair.of(credentials[0], credentials[1]);
+    protected CompletableFuture<List<ConnectorResult>> addFactoryLinks(FactoryLinkBatch factoryLinks) {
+        return connectorDispatcher.dispatch(factoryLinks);
     }
 
     /**
@@ -238,35 +433,6 @@ public abstract class BaseWebhookService extends Service {
         return properties;
     }
 
-    /**
-     * Store given key/value in given file
-     *
-     * @param propertyKey
-     *         the key of the property to store
-     * @param propertyValue
-     *         the value of the property to store
-     * @param fileName
-     *         the name of the properties file
-     * @throws ServerException
-     */
-    protected static void storeProperty(final String propertyKey, final String propertyValue, final String fileName) throws ServerException {
-        String filePath = Paths.get(fileName).toAbsolutePath().toString();
-        Properties properties = new Properties();
-        try (FileInputStream in = new FileInputStream(filePath)) {
-            properties.load(in);
-        } catch (IOException e) {
-            LOG.error(e.getLocalizedMessage());
-            throw new ServerException(e.getLocalizedMessage());
-        }
-        try (FileOutputStream out = new FileOutputStream(fileName)) {
-            properties.setProperty(propertyKey, propertyValue);
-            properties.store(out, null);
-        } catch (IOException e) {
-            LOG.error(e.getLocalizedMessage());
-            throw new ServerException(e.getLocalizedMessage());
-        }
-    }
-
     /**
      * Whether or not a given project matches given repository and branch
      *
@@ -304,15 +470,14 @@ public abstract class BaseWebhookService extends Service {
     }
 
     /**
-     * A user that only provides a token based on credentials configured in a property file
+     * A user that only provides a token based on credentials configured in a property file.
+     * The token is shared by all users and comes from {@link AuthTokenCache}, so it is always the most recent one.
      */
     protected class TokenUser implements User {
 
-        private final Token token;
-
         public TokenUser() throws ServerException {
-            final Pair<String, String> credentials = getCredentials();
-            token = authConnection.authenticateUser(credentials.first, credentials.second);
+            // Fail early if no token can be obtained
+            authTokenCache.getToken();
         }
 
         @Override
@@ -327,7 +492,12 @@ public abstract class BaseWebhookService extends Service {
 
         @Override
         public String getToken() {
-            return token.getValue();
+            try {
+                return authTokenCache.getToken();
+            } catch (ServerException e) {
+                LOG.error(e.getLocalizedMessage());
+                return authTokenCache.peekToken();
+            }
         }
 
         @Override
@@ -0,0 +1,202 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Remember the ids of the webhook deliveries received recently, so that deliveries sent again by GitHub or VSTS are not processed twice.
+ *
+ * Ids are kept 'webhooks.deliveries.window.minutes' (system property, default 60) and at most 'webhooks.deliveries.max' ids
+ * (system property, default 100000) are kept. If 'webhooks.deliveries.file' system property is set, the ids are saved to this file
+ * when the server stops and loaded back when it starts.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class DeliveryDeduplicator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DeliveryDeduplicator.class);
+
+    private static final long   DEFAULT_WINDOW_MINUTES = Long.getLong("webhooks.deliveries.window.minutes", 60L);
+    private static final int    DEFAULT_MAX_SIZE       = Integer.getInteger("webhooks.deliveries.max", 100000);
+    private static final String DEFAULT_FILE           = System.getProperty("webhooks.deliveries.file");
+    private static final int    FORMAT_VERSION         = 1;
+
+    private final long       windowMillis;
+    private final int        maxSize;
+    private final Path       file;
+    private final AtomicLong duplicates;
+
+    // delivery id -> time of reception, in reception order
+    private final LinkedHashMap<String, Long> deliveries = new LinkedHashMap<>();
+
+    @Inject
+    public DeliveryDeduplicator() {
+        this(DEFAULT_WINDOW_MINUTES, MINUTES, DEFAULT_MAX_SIZE, DEFAULT_FILE != null ? Paths.get(DEFAULT_FILE) : null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param window
+     *         how long a delivery id is remembered
+     * @param unit
+     *         the unit of window
+     * @param maxSize
+     *         the maximum number of delivery ids remembered
+     * @param file
+     *         the file delivery ids are saved to when stopping, null to keep them in memory only
+     */
+    public DeliveryDeduplicator(final long window, final TimeUnit unit, final int maxSize, final Path file) {
+        this.windowMillis = unit.toMillis(window);
+        this.maxSize = maxSize;
+        this.file = file != null ? file.toAbsolutePath() : null;
+        this.duplicates = new AtomicLong();
+        if (this.file != null) {
+            load();
+        }
+    }
+
+    /**
+     * Remember a delivery id
+     *
+     * @param deliveryId
+     *         the id of the delivery, may be null
+     * @return true if the delivery was not received recently or has no id, false if it is a duplicate
+     */
+    public boolean markIfNew(final String deliveryId) {
+        if (deliveryId == null || deliveryId.isEmpty()) {
+            return true;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            evict(now);
+            if (deliveries.containsKey(deliveryId)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+            deliveries.put(deliveryId, now);
+            return true;
+        }
+    }
+
+    /**
+     * Forget a delivery id, typically because its processing failed and the delivery must be accepted if it is sent again
+     *
+     * @param deliveryId
+     *         the id of the delivery, may be null
+     */
+    public synchronized void forget(final String deliveryId) {
+        if (deliveryId != null) {
+            deliveries.remove(deliveryId);
+        }
+    }
+
+    /**
+     * @return the number of delivery ids remembered
+     */
+    public synchronized int size() {
+        return deliveries.size();
+    }
+
+    /**
+     * @return the number of duplicate deliveries detected since the server started
+     */
+    public long getDuplicateCount() {
+        return duplicates.get();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (file == null) {
+            return;
+        }
+        final Map<String, Long> snapshot;
+        synchronized (this) {
+            evict(System.currentTimeMillis());
+            snapshot = new LinkedHashMap<>(deliveries);
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Long> delivery : snapshot.entrySet()) {
+                    out.writeUTF(delivery.getKey());
+                    out.writeLong(delivery.getValue());
+                }
+            }
+            Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            LOG.debug("{} delivery ids saved to {}", snapshot.size(), file);
+        } catch (IOException e) {
+            LOG.error("Unable to save delivery ids to {}: {}", file, e.getLocalizedMessage());
+        }
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOG.warn("Ignoring delivery ids {} saved with an unknown format", file);
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                deliveries.put(in.readUTF(), in.readLong());
+            }
+            evict(System.currentTimeMillis());
+            LOG.debug("{} delivery ids loaded from {}", deliveries.size(), file);
+        } catch (NoSuchFileException e) {
+            LOG.debug("No delivery ids found at {}", file);
+        } catch (IOException e) {
+            LOG.warn("Unable to load delivery ids from {}: {}", file, e.getLocalizedMessage());
+            deliveries.clear();
+        }
+    }
+
+    private void evict(final long now) {
+        final Iterator<Long> receptionTimes = deliveries.values().iterator();
+        while (receptionTimes.hasNext()) {
+            final long receivedAt = receptionTimes.next();
+            if (now - receivedAt < windowMillis && deliveries.size() < maxSize) {
+                break;
+            }
+            receptionTimes.remove();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulkhead and circuit breaker of the outbound calls to one endpoint (host)
+ *
+ * At most maxConcurrent calls run at the same time, a call that cannot start within maxWaitMillis is rejected.
+ * The outcome of the last windowSize calls is kept: a call fails if it throws or lasts more than slowCallMillis.
+ * When the failure rate of a full window reaches failureRatePercent, the circuit opens and all calls are rejected
+ * for openMillis. A single trial call is then let through: the circuit closes if it succeeds, opens again otherwise.
+ *
+ * Callers must call {@link #exit(long, boolean)} once for each successful {@link #tryEnter()}.
+ *
+ * @author Stephane Tournie
+ */
+public class EndpointGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointGuard.class);
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final String    endpoint;
+    private final int       maxConcurrent;
+    private final Semaphore permits;
+    private final long      maxWaitMillis;
+    private final long      slowCallNanos;
+    private final int       failureRatePercent;
+    private final long      openMillis;
+
+    // Outcomes of the last calls, true for failures
+    private final boolean[] outcomes;
+    private       int       recorded;
+    private       int       next;
+    private       int       failures;
+
+    private State   state;
+    private long    openedAt;
+    private boolean trialInFlight;
+
+    private final AtomicLong rejected;
+
+    /**
+     * Constructor
+     *
+     * @param endpoint
+     *         the name of the endpoint, for logs
+     * @param maxConcurrent
+     *         the maximum number of calls running at the same time
+     * @param maxWaitMillis
+     *         how long a call waits to start before being rejected
+     * @param windowSize
+     *         the number of calls the failure rate is computed on
+     * @param failureRatePercent
+     *         the failure rate that opens the circuit
+     * @param slowCallMillis
+     *         the duration after which a call is considered failed
+     * @param openMillis
+     *         how long the circuit stays open
+     */
+    public EndpointGuard(final String endpoint, final int maxConcurrent, final long maxWaitMillis, final int windowSize,
+                         final int failureRatePercent, final long slowCallMillis, final long openMillis) {
+        this.endpoint = endpoint;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaitMillis = maxWaitMillis;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.failureRatePercent = failureRatePercent;
+        this.openMillis = openMillis;
+        this.outcomes = new boolean[windowSize];
+        this.state = State.CLOSED;
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * Try to start a call
+     *
+     * @return true if the call may start, false if it is rejected because the circuit is open or too many calls are running
+     */
+    public boolean tryEnter() {
+        final boolean trial;
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialInFlight) {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+                trialInFlight = true;
+            }
+            trial = trialInFlight;
+        }
+
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            if (trial) {
+                synchronized (this) {
+                    trialInFlight = false;
+                }
+            }
+            rejected.incrementAndGet();
+        }
+        return acquired;
+    }
+
+    /**
+     * End a call started with {@link #tryEnter()}
+     *
+     * @param startNanos
+     *         the value of {@link System#nanoTime()} when the call started
+     * @param failed
+     *         whether the call failed
+     */
+    public void exit(final long startNanos, final boolean failed) {
+        permits.release();
+        final boolean failure = failed || System.nanoTime() - startNanos > slowCallNanos;
+        synchronized (this) {
+            switch (state) {
+                case HALF_OPEN:
+                    trialInFlight = false;
+                    if (failure) {
+                        open();
+                    } else {
+                        close();
+                    }
+                    break;
+                case CLOSED:
+                    record(failure);
+                    if (recorded == outcomes.length && failures * 100 >= failureRatePercent * recorded) {
+                        open();
+                    }
+                    break;
+                default:
+                    // Call started before the circuit opened
+                    break;
+            }
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of calls running
+     */
+    public int getActiveCount() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * @return the number of calls rejected since the server started
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the failure rate of the last calls, in percent
+     */
+    public synchronized int getFailureRate() {
+        return recorded == 0 ? 0 : failures * 100 / recorded;
+    }
+
+    @Override
+    public String toString() {
+        return endpoint + " (" + getState() + ")";
+    }
+
+    private void record(final boolean failure) {
+        if (recorded == outcomes.length) {
+            if (outcomes[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % outcomes.length;
+    }
+
+    private void open() {
+        if (state != State.OPEN) {
+            LOG.warn("Circuit of {} opened, calls are rejected for {} ms", endpoint, openMillis);
+        }
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        LOG.info("Circuit of {} closed", endpoint);
+        state = State.CLOSED;
+        recorded = 0;
+        next = 0;
+        failures = 0;
+    }
+}
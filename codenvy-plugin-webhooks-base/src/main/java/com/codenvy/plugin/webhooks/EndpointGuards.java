@@ -0,0 +1,189 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.core.ApiException;
+import org.eclipse.che.api.core.ServerException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * One {@link EndpointGuard} per host, shared by all outbound calls (Codenvy API, VSTS, Jenkins)
+ *
+ * Guards are configured with system properties:
+ * 'webhooks.endpoint.max.concurrent' (default 16) calls run at the same time per host,
+ * a call waits at most 'webhooks.endpoint.max.wait.ms' (default 1000) to start,
+ * the circuit opens when 'webhooks.circuit.failure.rate' percent (default 50) of the last 'webhooks.circuit.window.size' calls
+ * (default 20) failed or lasted more than 'webhooks.circuit.slow.call.ms' (default 10000),
+ * and stays open 'webhooks.circuit.open.seconds' (default 30).
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class EndpointGuards {
+
+    private static final int  MAX_CONCURRENT   = Integer.getInteger("webhooks.endpoint.max.concurrent", 16);
+    private static final long MAX_WAIT_MILLIS  = Long.getLong("webhooks.endpoint.max.wait.ms", 1000L);
+    private static final int  WINDOW_SIZE      = Integer.getInteger("webhooks.circuit.window.size", 20);
+    private static final int  FAILURE_RATE     = Integer.getInteger("webhooks.circuit.failure.rate", 50);
+    private static final long SLOW_CALL_MILLIS = Long.getLong("webhooks.circuit.slow.call.ms", 10000L);
+    private static final long OPEN_SECONDS     = Long.getLong("webhooks.circuit.open.seconds", 30L);
+
+    // Guard key of URLs without host
+    private static final String UNKNOWN_HOST = "unknown";
+
+    private final ConcurrentMap<String, EndpointGuard> guards;
+
+    @Inject
+    public EndpointGuards() {
+        this.guards = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * A call to an HTTP endpoint
+     */
+    public interface HttpCall<T> {
+        T call() throws IOException, ApiException;
+    }
+
+    /**
+     * Get the guard of the host of a URL
+     *
+     * @param url
+     *         the URL called
+     * @return the guard shared by all calls to the host
+     */
+    public EndpointGuard get(final String url) {
+        return getGuard(getHost(url));
+    }
+
+    /**
+     * Get the guard of a group of calls to the host of a URL, separate from the guard of the other calls to the host
+     *
+     * @param url
+     *         the URL called
+     * @param group
+     *         the name of the group of calls ('auth'...)
+     * @return the guard shared by the calls of the group to the host
+     */
+    public EndpointGuard get(final String url, final String group) {
+        return getGuard(getHost(url) + '/' + group);
+    }
+
+    /**
+     * Make a call guarded by the guard of its host.
+     * I/O errors and server errors count as failures, other API errors (not found, conflict...) are answers of a working endpoint.
+     *
+     * @param url
+     *         the URL called
+     * @param call
+     *         the call to make
+     * @return the result of the call
+     * @throws ServerException
+     *         if the call is rejected by the guard, or if the call throws it
+     */
+    public <T> T call(final String url, final HttpCall<T> call) throws IOException, ApiException {
+        return call(get(url), call);
+    }
+
+    /**
+     * Make a call guarded by the guard of a group of calls to its host, see {@link #call(String, HttpCall)}
+     *
+     * @param url
+     *         the URL called
+     * @param group
+     *         the name of the group of calls
+     * @param call
+     *         the call to make
+     * @return the result of the call
+     * @throws ServerException
+     *         if the call is rejected by the guard, or if the call throws it
+     */
+    public <T> T call(final String url, final String group, final HttpCall<T> call) throws IOException, ApiException {
+        return call(get(url, group), call);
+    }
+
+    /**
+     * Get the state of the guards, by metric name
+     */
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new LinkedHashMap<>();
+        new TreeMap<>(guards).forEach((host, guard) -> {
+            final String prefix = "webhooks.endpoint." + host + '.';
+            metrics.put(prefix + "circuit.open", guard.getState() == EndpointGuard.State.CLOSED ? 0 : 1);
+            metrics.put(prefix + "failure.rate", guard.getFailureRate());
+            metrics.put(prefix + "active", guard.getActiveCount());
+            metrics.put(prefix + "rejected", guard.getRejectedCount());
+        });
+        return metrics;
+    }
+
+    private EndpointGuard getGuard(final String key) {
+        return guards.computeIfAbsent(key, k -> new EndpointGuard(k, MAX_CONCURRENT, MAX_WAIT_MILLIS, WINDOW_SIZE, FAILURE_RATE,
+                                                                  SLOW_CALL_MILLIS, SECONDS.toMillis(OPEN_SECONDS)));
+    }
+
+    private static <T> T call(final EndpointGuard guard, final HttpCall<T> call) throws IOException, ApiException {
+        if (!guard.tryEnter()) {
+            throw new ServerException("Call to " + guard + " rejected, too many calls in progress or too many recent failures");
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final T result = call.call();
+            failed = false;
+            return result;
+        } catch (ApiException e) {
+            failed = e instanceof ServerException;
+            throw e;
+        } finally {
+            guard.exit(start, failed);
+        }
+    }
+
+    /**
+     * Get the host and port of a URL. The URL is never used as a key, so that there is one guard per host.
+     */
+    static String getHost(final String url) {
+        try {
+            final URI uri = URI.create(url);
+            if (uri.getHost() != null) {
+                return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ':' + uri.getPort();
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a valid URI, e.g. a VSTS project name with spaces in its path
+        }
+        // The authority is the text between '://' and the next '/', '?' or '#', without user info
+        final int schemeEnd = url.indexOf("://");
+        final int start = schemeEnd < 0 ? 0 : schemeEnd + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        final int userInfoEnd = url.lastIndexOf('@', end - 1);
+        final String authority = url.substring(userInfoEnd < start ? start : userInfoEnd + 1, end);
+        return authority.isEmpty() ? UNKNOWN_HOST : authority;
+    }
+}
@@ -14,6 +14,12 @@
  */
 package com.codenvy.plugin.webhooks;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 import org.eclipse.che.api.core.ApiException;
 import org.eclipse.che.api.core.ServerException;
 import org.eclipse.che.api.core.rest.HttpJsonRequest;
@@ -21,36 +27,63 @@ import org.eclipse.che.api.core.rest.HttpJsonRequestFactory;
 import org.eclipse.che.api.core.rest.HttpJsonResponse;
 import org.eclipse.che.api.factory.server.FactoryService;
 import org.eclipse.che.api.factory.shared.dto.Factory;
+import org.eclipse.che.dto.server.DtoFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Singleton;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.ws.rs.core.UriBuilder.fromUri;
 
 /**
  * Wrapper class for calls to Codenvy factory REST API
  *
+ * Factories are cached: the cache holds at most 'webhooks.factories.cache.size' factories (system property, default 1000)
+ * for at most 'webhooks.factories.cache.ttl.seconds' (system property, default 300).
+ * Factories updated or saved through this class are written into the cache.
+ * All factories read, updated or saved are indexed in {@link FactoryIndex}.
+ * Calls are guarded by the {@link EndpointGuard} of Codenvy API host.
+ *
  * @author Stephane Tournie
  */
+@Singleton
 public class FactoryConnection {
 
     private static final Logger LOG = LoggerFactory.getLogger(FactoryConnection.class);
 
+    private static final long CACHE_SIZE        = Long.getLong("webhooks.factories.cache.size", 1000L);
+    private static final long CACHE_TTL_SECONDS = Long.getLong("webhooks.factories.cache.ttl.seconds", 300L);
+
     private final HttpJsonRequestFactory httpJsonRequestFactory;
+    private final AuthTokenCache         authTokenCache;
+    private final EndpointGuards         endpointGuards;
+    private final FactoryIndex           factoryIndex;
     private final String                 baseUrl;
+    private final Cache<String, Factory> factoryCache;
 
     @Inject
-    public FactoryConnection(HttpJsonRequestFactory httpJsonRequestFactory, @Named("api.endpoint") String baseUrl) {
+    public FactoryConnection(HttpJsonRequestFactory httpJsonRequestFactory, AuthTokenCache authTokenCache,
+                             EndpointGuards endpointGuards, FactoryIndex factoryIndex, @Named("api.endpoint") String baseUrl) {
         this.httpJsonRequestFactory = httpJsonRequestFactory;
+        this.authTokenCache = authTokenCache;
+        this.endpointGuards = endpointGuards;
+        this.factoryIndex = factoryIndex;
         this.baseUrl = baseUrl;
+        this.factoryCache = CacheBuilder.newBuilder()
+                                        .maximumSize(CACHE_SIZE)
+                                        .expireAfterWrite(CACHE_TTL_SECONDS, SECONDS)
+                                        .recordStats()
+                                        .build();
     }
 
     /**
-     * Get a given factory
+     * Get a given factory, from the cache if present
      *
      * @param factoryId
      *         the id of the factory
@@ -58,19 +91,75 @@ public class FactoryConnection {
      * @throws ServerException
      */
     public Factory getFactory(final String factoryId) throws ServerException {
+        final Factory factory;
+        try {
+            factory = factoryCache.get(factoryId, () -> fetchFactory(factoryId));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServerException) {
+                throw (ServerException)e.getCause();
+            }
+            throw new ServerException(e.getCause().getLocalizedMessage());
+        } catch (UncheckedExecutionException e) {
+            throw new ServerException(e.getCause().getLocalizedMessage());
+        } catch (InvalidCacheLoadException e) {
+            return null;
+        }
+        // Callers may modify the factory, never give away the cached instance
+        return DtoFactory.cloneDto(factory);
+    }
+
+    /**
+     * Remove a factory from the cache, next call to {@link #getFactory(String)} will get it from Codenvy
+     *
+     * @param factoryId
+     *         the id of the factory
+     */
+    public void invalidateFactory(final String factoryId) {
+        factoryCache.invalidate(factoryId);
+        factoryIndex.remove(factoryId);
+    }
+
+    /**
+     * Remove all factories from the cache and from the index
+     */
+    public void invalidateAllFactories() {
+        factoryCache.invalidateAll();
+        factoryIndex.clear();
+    }
+
+    /**
+     * Get statistics of the factory cache: hits, misses, loads and evictions
+     *
+     * @return the statistics of the factory cache
+     */
+    public CacheStats getFactoryCacheStats() {
+        return factoryCache.stats();
+    }
+
+    /**
+     * Get the number of factories in the cache
+     *
+     * @return the number of cached factories
+     */
+    public long getFactoryCacheSize() {
+        return factoryCache.size();
+    }
+
+    private Factory fetchFactory(final String factoryId) throws ServerException {
         String url = fromUri(baseUrl).path(FactoryService.class).path(FactoryService.class, "getFactory")
                                      .build(factoryId).toString();
         Factory factory;
         HttpJsonRequest httpJsonRequest = httpJsonRequestFactory.fromUrl(url)
                                                                 .useGetMethod();
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
             factory = response.asDto(Factory.class);
 
         } catch (IOException | ApiException e) {
             LOG.error(e.getLocalizedMessage(), e);
             throw new ServerException(e.getLocalizedMessage());
         }
+        factoryIndex.index(factory);
         return factory;
     }
 
@@ -93,7 +182,7 @@ public class FactoryConnection {
                                       .addQueryParam("name", factoryName)
                                       .addQueryParam("creator.userId", userId);
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
             factories = response.asList(Factory.class);
 
         } catch (IOException | ApiException e) {
@@ -121,13 +210,16 @@ public class FactoryConnection {
                                                                 .usePutMethod()
                                                                 .setBody(factory);
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
             newFactory = response.asDto(Factory.class);
 
         } catch (IOException | ApiException e) {
+            // The state of the factory is unknown, don't keep it in cache
+            factoryCache.invalidate(factoryId);
             LOG.error(e.getLocalizedMessage(), e);
             throw new ServerException(e.getLocalizedMessage());
         }
+        cacheFactory(newFactory);
         return newFactory;
     }
 
@@ -146,13 +238,44 @@ public class FactoryConnection {
                                                                 .usePostMethod()
                                                                 .setBody(factory);
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
             newFactory = response.asDto(Factory.class);
 
         } catch (IOException | ApiException e) {
             LOG.error(e.getLocalizedMessage(), e);
             throw new ServerException(e.getLocalizedMessage());
         }
+        cacheFactory(newFactory);
         return newFactory;
     }
+
+    /**
+     * Remove a factory
+     *
+     * @param factoryId
+     *         the id of the factory to remove
+     * @throws ServerException
+     */
+    public void deleteFactory(final String factoryId) throws ServerException {
+        final String url = fromUri(baseUrl).path(FactoryService.class).path(FactoryService.class, "removeFactory")
+                                           .build(factoryId).toString();
+        HttpJsonRequest httpJsonRequest = httpJsonRequestFactory.fromUrl(url)
+                                                                .useDeleteMethod();
+        try {
+            endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
+
+        } catch (IOException | ApiException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            throw new ServerException(e.getLocalizedMessage());
+        } finally {
+            invalidateFactory(factoryId);
+        }
+    }
+
+    private void cacheFactory(final Factory factory) {
+        if (factory != null && factory.getId() != null) {
+            factoryCache.put(factory.getId(), DtoFactory.cloneDto(factory));
+            factoryIndex.index(factory);
+        }
+    }
 }
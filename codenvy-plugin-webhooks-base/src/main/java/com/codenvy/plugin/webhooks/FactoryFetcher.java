@@ -0,0 +1,188 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.factory.shared.dto.Factory;
+import org.eclipse.che.commons.env.EnvironmentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Fetch factories concurrently from Codenvy factory API.
+ *
+ * The number of concurrent requests is bounded (system property 'webhooks.factories.fetch.concurrency', default 8)
+ * and a fetch gives up on factories that are not received before a deadline
+ * (system property 'webhooks.factories.fetch.deadline.seconds', default 20).
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class FactoryFetcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FactoryFetcher.class);
+
+    private static final int  DEFAULT_CONCURRENCY      = Integer.getInteger("webhooks.factories.fetch.concurrency", 8);
+    private static final long DEFAULT_DEADLINE_SECONDS = Long.getLong("webhooks.factories.fetch.deadline.seconds", 20L);
+
+    private final FactoryConnection  factoryConnection;
+    private final ThreadPoolExecutor executor;
+    private final long               deadlineMillis;
+
+    @Inject
+    public FactoryFetcher(final FactoryConnection factoryConnection) {
+        this(factoryConnection, DEFAULT_CONCURRENCY, DEFAULT_DEADLINE_SECONDS, SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param factoryConnection
+     *         the connection used to get factories
+     * @param concurrency
+     *         the maximum number of factories fetched at the same time
+     * @param deadline
+     *         how long a fetch waits for factories
+     * @param unit
+     *         the unit of deadline
+     */
+    public FactoryFetcher(final FactoryConnection factoryConnection, final int concurrency, final long deadline, final TimeUnit unit) {
+        this.factoryConnection = factoryConnection;
+        this.deadlineMillis = unit.toMillis(deadline);
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "webhooks-factory-fetcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the factories with given ids that match a given filter.
+     * Factories are fetched concurrently and the filter is applied as soon as a factory is received.
+     * A factory that cannot be fetched before the deadline is reported as failed, it doesn't prevent other factories to be returned.
+     *
+     * @param factoryIDs
+     *         the ids of the factories to fetch
+     * @param filter
+     *         the filter that factories must match
+     * @return the matching factories and the factories that could not be fetched
+     */
+    public Result fetch(final Set<String> factoryIDs, final Predicate<Factory> filter) {
+        final EnvironmentContext context = EnvironmentContext.getCurrent();
+        final ExecutorCompletionService<Factory> completionService = new ExecutorCompletionService<>(executor);
+        final Map<Future<Factory>, String> pending = new HashMap<>();
+        for (String factoryID : factoryIDs) {
+            pending.put(completionService.submit(() -> {
+                EnvironmentContext.setCurrent(context);
+                try {
+                    return factoryConnection.getFactory(factoryID);
+                } finally {
+                    EnvironmentContext.reset();
+                }
+            }), factoryID);
+        }
+
+        final List<Factory> matching = new ArrayList<>();
+        final Map<String, String> failures = new LinkedHashMap<>();
+        final long deadline = System.currentTimeMillis() + deadlineMillis;
+        try {
+            while (!pending.isEmpty()) {
+                final long remaining = deadline - System.currentTimeMillis();
+                final Future<Factory> done = remaining > 0 ? completionService.poll(remaining, MILLISECONDS) : null;
+                if (done == null) {
+                    break;
+                }
+                final String factoryID = pending.remove(done);
+                try {
+                    final Factory factory = done.get();
+                    if (factory != null && filter.test(factory)) {
+                        matching.add(factory);
+                    }
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    failures.put(factoryID, cause.getLocalizedMessage() != null ? cause.getLocalizedMessage() : cause.toString());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Map.Entry<Future<Factory>, String> notDone : pending.entrySet()) {
+            notDone.getKey().cancel(true);
+            failures.put(notDone.getValue(), "not received within " + deadlineMillis + " ms");
+        }
+        if (!failures.isEmpty()) {
+            LOG.debug("{} of {} factories could not be fetched", failures.size(), factoryIDs.size());
+        }
+        return new Result(matching, failures);
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Result of a fetch
+     */
+    public static final class Result {
+
+        private final List<Factory>       factories;
+        private final Map<String, String> failures;
+
+        private Result(final List<Factory> factories, final Map<String, String> failures) {
+            this.factories = Collections.unmodifiableList(factories);
+            this.failures = Collections.unmodifiableMap(failures);
+        }
+
+        /**
+         * @return the fetched factories that match the filter, in the order they were received
+         */
+        public List<Factory> getFactories() {
+            return factories;
+        }
+
+        /**
+         * @return the reason of the failure for each factory that could not be fetched, by factory id
+         */
+        public Map<String, String> getFailures() {
+            return failures;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.factory.shared.dto.Factory;
+import org.eclipse.che.api.workspace.shared.dto.ProjectConfigDto;
+import org.eclipse.che.api.workspace.shared.dto.SourceStorageDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.codenvy.plugin.webhooks.RepositoryUrls.normalize;
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Reverse index from repository and branch to the ids of the factories that contain a project for this repository and branch.
+ *
+ * The index is built from the factories read, updated and saved through {@link FactoryConnection}.
+ * It is used to avoid fetching factories that cannot match an event: a factory is fetched only if it is unknown to the index,
+ * if it was indexed more than 'webhooks.factories.index.ttl.hours' ago (system property, default 6) or if it matches.
+ *
+ * The index is saved every minute in FACTORIES_INDEX_FILENAME file so that it survives restarts.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class FactoryIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FactoryIndex.class);
+
+    private static final String FACTORIES_INDEX_FILENAME = "factories-index.dat";
+    private static final int    FORMAT_VERSION           = 1;
+    private static final long   DEFAULT_TTL_HOURS        = Long.getLong("webhooks.factories.index.ttl.hours", 6L);
+    private static final long   SAVE_PERIOD_SECONDS      = 60;
+    private static final String NO_BRANCH                = "";
+
+    private final Path file;
+    private final long ttlMillis;
+
+    // normalized repository URL -> branch -> factory ids
+    private final Map<String, Map<String, Set<String>>> factoriesByRepository = new HashMap<>();
+    private final Map<String, Entry>                     entries               = new HashMap<>();
+    private final ScheduledExecutorService               saver;
+
+    private boolean dirty;
+
+    @Inject
+    public FactoryIndex() {
+        this(Paths.get(FACTORIES_INDEX_FILENAME), DEFAULT_TTL_HOURS, HOURS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file
+     *         the file the index is saved to and loaded from
+     * @param ttl
+     *         how long an indexed factory is trusted before being fetched again
+     * @param unit
+     *         the unit of ttl
+     */
+    public FactoryIndex(final Path file, final long ttl, final TimeUnit unit) {
+        this.file = file.toAbsolutePath();
+        this.ttlMillis = unit.toMillis(ttl);
+        load();
+        this.saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "webhooks-factories-index-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.saver.scheduleWithFixedDelay(this::save, SAVE_PERIOD_SECONDS, SAVE_PERIOD_SECONDS, SECONDS);
+    }
+
+    /**
+     * Index a factory or replace what is indexed for it
+     *
+     * @param factory
+     *         the factory to index
+     */
+    public void index(final Factory factory) {
+        if (factory == null || factory.getId() == null || factory.getWorkspace() == null) {
+            return;
+        }
+        final Set<Location> locations = new LinkedHashSet<>();
+        for (ProjectConfigDto project : factory.getWorkspace().getProjects()) {
+            final SourceStorageDto source = project.getSource();
+            if (source == null || isNullOrEmpty(source.getLocation())) {
+                continue;
+            }
+            final String branch = source.getParameters() != null ? source.getParameters().get("branch") : null;
+            locations.add(new Location(normalize(source.getLocation()), isNullOrEmpty(branch) ? NO_BRANCH : branch));
+        }
+        synchronized (this) {
+            put(factory.getId(), new Entry(System.currentTimeMillis(), locations));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remove a factory from the index, it will be fetched for next events
+     *
+     * @param factoryId
+     *         the id of the factory
+     */
+    public synchronized void remove(final String factoryId) {
+        if (removeEntry(factoryId) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remove all factories from the index, they will be fetched for next events
+     */
+    public synchronized void clear() {
+        if (!entries.isEmpty()) {
+            entries.clear();
+            factoriesByRepository.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Get the factories that may contain a project for given repository and branch.
+     * Factories that are unknown to the index or indexed too long ago are always returned.
+     *
+     * @param factoryIDs
+     *         the ids of the factories to check
+     * @param repositoryUrl
+     *         the repository that a project must match
+     * @param branch
+     *         the branch that a project must match
+     * @return the ids of the factories to fetch
+     */
+    public synchronized Set<String> getCandidates(final Set<String> factoryIDs, final String repositoryUrl, final String branch) {
+        final Map<String, Set<String>> byBranch = factoriesByRepository.getOrDefault(normalize(repositoryUrl), Collections.emptyMap());
+        final long now = System.currentTimeMillis();
+        final Set<String> candidates = new HashSet<>();
+        for (String factoryID : factoryIDs) {
+            final Entry entry = entries.get(factoryID);
+            if (entry == null || now - entry.indexedAt > ttlMillis || matches(byBranch, factoryID, branch)) {
+                candidates.add(factoryID);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Save the index if it changed since last save
+     */
+    public void save() {
+        final Map<String, Entry> snapshot;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            snapshot = new HashMap<>(entries);
+            dirty = false;
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().indexedAt);
+                out.writeInt(e.getValue().locations.size());
+                for (Location location : e.getValue().locations) {
+                    out.writeUTF(location.repository);
+                    out.writeUTF(location.branch);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Unable to save factories index to {}: {}", tmp, e.getLocalizedMessage());
+            synchronized (this) {
+                dirty = true;
+            }
+            return;
+        }
+        try {
+            Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            LOG.debug("Factories index saved to {}", file);
+        } catch (IOException e) {
+            LOG.error("Unable to save factories index to {}: {}", file, e.getLocalizedMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        saver.shutdownNow();
+        save();
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                LOG.warn("Ignoring factories index {} saved with an unknown format", file);
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String factoryID = in.readUTF();
+                final long indexedAt = in.readLong();
+                final int locationCount = in.readInt();
+                final Set<Location> locations = new LinkedHashSet<>();
+                for (int j = 0; j < locationCount; j++) {
+                    locations.add(new Location(in.readUTF(), in.readUTF()));
+                }
+                put(factoryID, new Entry(indexedAt, locations));
+            }
+            LOG.debug("{} factories loaded from index {}", count, file);
+        } catch (NoSuchFileException e) {
+            LOG.debug("No factories index found at {}", file);
+        } catch (IOException e) {
+            LOG.warn("Unable to load factories index from {}, it will be rebuilt: {}", file, e.getLocalizedMessage());
+            factoriesByRepository.clear();
+            entries.clear();
+        }
+    }
+
+    private boolean matches(final Map<String, Set<String>> byBranch, final String factoryID, final String branch) {
+        // Same rule as BaseWebhookService#isProjectMatching: 'master' matches projects of any branch
+        if ("master".equals(branch)) {
+            return byBranch.values().stream().anyMatch(ids -> ids.contains(factoryID));
+        }
+        return byBranch.getOrDefault(branch, Collections.emptySet()).contains(factoryID);
+    }
+
+    private void put(final String factoryID, final Entry entry) {
+        removeEntry(factoryID);
+        entries.put(factoryID, entry);
+        for (Location location : entry.locations) {
+            factoriesByRepository.computeIfAbsent(location.repository, r -> new HashMap<>())
+                                 .computeIfAbsent(location.branch, b -> new HashSet<>())
+                                 .add(factoryID);
+        }
+    }
+
+    private Entry removeEntry(final String factoryID) {
+        final Entry previous = entries.remove(factoryID);
+        if (previous != null) {
+            for (Location location : previous.locations) {
+                final Map<String, Set<String>> byBranch = factoriesByRepository.get(location.repository);
+                if (byBranch == null) {
+                    continue;
+                }
+                final Set<String> ids = byBranch.get(location.branch);
+                if (ids != null && ids.remove(factoryID) && ids.isEmpty()) {
+                    byBranch.remove(location.branch);
+                }
+                if (byBranch.isEmpty()) {
+                    factoriesByRepository.remove(location.repository);
+                }
+            }
+        }
+        return previous;
+    }
+
+    private static final class Entry {
+
+        private final long          indexedAt;
+        private final Set<Location> locations;
+
+        private Entry(final long indexedAt, final Set<Location> locations) {
+            this.indexedAt = indexedAt;
+            this.locations = locations;
+        }
+    }
+
+    private static final class Location {
+
+        private final String repository;
+        private final String branch;
+
+        private Location(final String repository, final String branch) {
+            this.repository = repository;
+            this.branch = branch;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Location)) {
+                return false;
+            }
+            final Location other = (Location)o;
+            return repository.equals(other.repository) && branch.equals(other.branch);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * repository.hashCode() + branch.hashCode();
+        }
+    }
+}
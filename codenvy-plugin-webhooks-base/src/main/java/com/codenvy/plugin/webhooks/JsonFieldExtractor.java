@@ -0,0 +1,147 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Read a few fields of a JSON document without building the whole document in memory.
+ *
+ * Fields are designated by their path from the root object, with '.' as separator (example: 'pull_request.head.sha').
+ * Objects that contain no wanted field and arrays are skipped, and reading stops as soon as all wanted fields are found.
+ * Field names that contain '.' are supported (example: 'resource.fields.System.TeamProject').
+ *
+ * @author Stephane Tournie
+ */
+public class JsonFieldExtractor {
+
+    private final Set<String> paths;
+    private final Set<String> parents;
+
+    /**
+     * Constructor
+     *
+     * @param paths
+     *         the paths of the fields to read, all of them designate a string, number or boolean value
+     */
+    public JsonFieldExtractor(final String... paths) {
+        this.paths = ImmutableSet.copyOf(paths);
+        final ImmutableSet.Builder<String> parents = ImmutableSet.builder();
+        for (String path : paths) {
+            for (int i = path.indexOf('.'); i > 0; i = path.indexOf('.', i + 1)) {
+                parents.add(path.substring(0, i));
+            }
+        }
+        this.parents = parents.build();
+    }
+
+    /**
+     * @return the paths of the wanted fields
+     */
+    public Set<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Read the wanted fields of a JSON document.
+     * The stream is not closed and is not read further than the last wanted field.
+     *
+     * @param inputStream
+     *         the stream of the JSON document, encoded in UTF-8
+     * @return the value of the wanted fields found in the document, by path. Null values are returned as null.
+     * @throws IOException
+     *         if the stream cannot be read or doesn't contain a JSON object
+     */
+    public Map<String, String> extract(final InputStream inputStream) throws IOException {
+        return extract(inputStream, values -> values.size() == paths.size());
+    }
+
+    /**
+     * Read the wanted fields of a JSON document until enough fields are found.
+     * The stream is not closed and is not read further than the field that completes the wanted fields.
+     *
+     * @param inputStream
+     *         the stream of the JSON document, encoded in UTF-8
+     * @param complete
+     *         tells, each time a field is found, whether the fields found so far are enough and reading can stop
+     * @return the value of the wanted fields found in the document, by path. Null values are returned as null.
+     * @throws IOException
+     *         if the stream cannot be read or doesn't contain a JSON object
+     */
+    public Map<String, String> extract(final InputStream inputStream, final Predicate<Map<String, String>> complete)
+            throws IOException {
+        final Map<String, String> values = new HashMap<>();
+        final JsonReader reader = new JsonReader(new InputStreamReader(inputStream, UTF_8));
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new IOException("JSON object expected but found " + reader.peek());
+        }
+        readObject(reader, null, values, complete);
+        return values;
+    }
+
+    /**
+     * Read the wanted fields of an object
+     *
+     * @return true if enough fields are found and reading must stop
+     */
+    private boolean readObject(final JsonReader reader, final String objectPath, final Map<String, String> values,
+                               final Predicate<Map<String, String>> complete) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            final String path = objectPath == null ? name : objectPath + '.' + name;
+            final JsonToken token = reader.peek();
+            if (paths.contains(path) && token != JsonToken.BEGIN_OBJECT && token != JsonToken.BEGIN_ARRAY) {
+                values.put(path, readScalar(reader, token));
+                if (complete.test(values)) {
+                    return true;
+                }
+            } else if (parents.contains(path) && token == JsonToken.BEGIN_OBJECT) {
+                if (readObject(reader, path, values, complete)) {
+                    return true;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return false;
+    }
+
+    private static String readScalar(final JsonReader reader, final JsonToken token) throws IOException {
+        switch (token) {
+            case BOOLEAN:
+                return String.valueOf(reader.nextBoolean());
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                // Strings and numbers
+                return reader.nextString();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Executor that runs tasks in ordered lanes.
+ *
+ * Tasks submitted with the same partition key (a repository, a VSTS collection...) always go to the same lane
+ * and run one after the other in submission order. Tasks of different lanes run in parallel.
+ * Tasks without partition key are spread over all lanes.
+ *
+ * @author Stephane Tournie
+ */
+public class PartitionedExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+    private final AtomicInteger        unkeyed;
+
+    /**
+     * Constructor
+     *
+     * @param name
+     *         the name of the executor, used to name its threads
+     * @param laneCount
+     *         the number of lanes, that is the maximum number of tasks that run in parallel
+     */
+    public PartitionedExecutor(final String name, final int laneCount) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("At least one lane is required");
+        }
+        this.lanes = new ThreadPoolExecutor[laneCount];
+        this.unkeyed = new AtomicInteger();
+        for (int i = 0; i < laneCount; i++) {
+            final String threadName = name + "-lane-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                final Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Run a task after all the tasks previously submitted with the same partition key
+     *
+     * @param partitionKey
+     *         the key of the partition of the task, may be null
+     * @param task
+     *         the task to run
+     * @throws RejectedExecutionException
+     *         if the executor is shut down
+     */
+    public void execute(final String partitionKey, final Runnable task) {
+        lanes[laneOf(partitionKey)].execute(task);
+    }
+
+    /**
+     * Get the number of tasks waiting in all lanes
+     *
+     * @return the number of tasks submitted and not started yet
+     */
+    public int getWaitingTasks() {
+        int waiting = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            waiting += lane.getQueue().size();
+        }
+        return waiting;
+    }
+
+    /**
+     * Get the number of lanes that are running a task
+     *
+     * @return the number of busy lanes
+     */
+    public int getBusyLanes() {
+        int busy = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            busy += lane.getActiveCount();
+        }
+        return busy;
+    }
+
+    /**
+     * Stop all lanes, tasks that are waiting are not run
+     */
+    public void shutdownNow() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    private int laneOf(final String partitionKey) {
+        if (partitionKey == null) {
+            return Math.floorMod(unkeyed.getAndIncrement(), lanes.length);
+        }
+        // Spread the bits of the hash code, as HashMap does, so that similar keys don't end up in the same lane
+        final int hash = partitionKey.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.length);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * In-memory view of a properties file.
+ * The file is parsed once into an immutable snapshot that is swapped each time the file changes on disk,
+ * so that callers never read the file themselves.
+ *
+ * Changes are taken into account once the file has not changed for 'webhooks.properties.reload.delay.ms'
+ * (system property, default 500), so that a file being written is not loaded. The current snapshot is kept
+ * if the file changes while it is read, if it is empty, or if it cannot be parsed.
+ *
+ * Properties stored through the registry are written one at a time, to a temporary file that then replaces the file,
+ * so that concurrent stores don't lose each other's properties and the file is never seen half written.
+ *
+ * @param <T>
+ *         the type of the snapshot built from the properties file
+ * @author Stephane Tournie
+ */
+public abstract class PropertiesRegistry<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PropertiesRegistry.class);
+
+    private static final long RELOAD_DELAY_MS = Long.getLong("webhooks.properties.reload.delay.ms", 500L);
+
+    private final Path   file;
+    private final Object writeLock = new Object();
+
+    private volatile T   snapshot;
+    private boolean      started;
+    private WatchService watchService;
+
+    protected PropertiesRegistry(final String fileName) {
+        this.file = Paths.get(fileName).toAbsolutePath();
+    }
+
+    /**
+     * Build the snapshot from the content of the properties file
+     *
+     * @param properties
+     *         the properties contained in the file
+     * @return the new snapshot, must not be modified afterwards
+     */
+    protected abstract T parse(Properties properties);
+
+    /**
+     * Get the current snapshot
+     *
+     * @return the snapshot built from the last successful load of the properties file
+     * @throws ServerException
+     *         if the properties file has never been loaded successfully, or if the registry is not started
+     */
+    public T get() throws ServerException {
+        final T current = snapshot;
+        if (current == null) {
+            throw new ServerException("Properties file " + file + " could not be loaded");
+        }
+        return current;
+    }
+
+    /**
+     * Load the properties file and start watching it for changes.
+     * Called by the injector, registries created otherwise must be started before being used.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        reload();
+        try {
+            final WatchService service = FileSystems.getDefault().newWatchService();
+            watchService = service;
+            file.getParent().register(service, ENTRY_CREATE, ENTRY_MODIFY);
+            final Thread watcher = new Thread(() -> watch(service), "webhooks-properties-watcher-" + file.getFileName());
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            LOG.error("Unable to watch properties file {}, changes won't be taken into account: {}", file, e.getLocalizedMessage());
+        }
+        started = true;
+    }
+
+    /**
+     * Stop watching the properties file
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.warn(e.getLocalizedMessage());
+            }
+            watchService = null;
+        }
+    }
+
+    /**
+     * Load the properties file and swap the current snapshot.
+     * The previous snapshot is kept if the file cannot be read or parsed, if it changed while being read,
+     * or if it is empty while properties were already loaded.
+     */
+    public synchronized void reload() {
+        final Properties properties = new Properties();
+        try {
+            final BasicFileAttributes before = Files.readAttributes(file, BasicFileAttributes.class);
+            final byte[] content = Files.readAllBytes(file);
+            final BasicFileAttributes after = Files.readAttributes(file, BasicFileAttributes.class);
+            if (content.length != after.size() || !before.lastModifiedTime().equals(after.lastModifiedTime())) {
+                // Being written, the end of the write triggers another reload
+                LOG.debug("Properties file {} changed while being read, not loaded", file);
+                return;
+            }
+            properties.load(new ByteArrayInputStream(content));
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.error("Unable to load properties file {}: {}", file, e.getLocalizedMessage());
+            return;
+        }
+        if (properties.isEmpty() && snapshot != null) {
+            LOG.warn("Properties file {} is empty, previously loaded properties are kept", file);
+            return;
+        }
+        try {
+            snapshot = parse(properties);
+        } catch (RuntimeException e) {
+            LOG.error("Unable to parse properties file {}, previously loaded properties are kept: {}", file, e.getLocalizedMessage(), e);
+            return;
+        }
+        LOG.debug("Properties file {} loaded", file);
+    }
+
+    /**
+     * Store given key/value in the properties file, and reload it
+     *
+     * @param propertyKey
+     *         the key of the property to store
+     * @param propertyValue
+     *         the value of the property to store
+     * @throws ServerException
+     *         if the properties file cannot be read or written
+     */
+    public void storeProperty(final String propertyKey, final String propertyValue) throws ServerException {
+        synchronized (writeLock) {
+            final Properties properties = new Properties();
+            try {
+                properties.load(new ByteArrayInputStream(Files.readAllBytes(file)));
+            } catch (IOException | IllegalArgumentException e) {
+                LOG.error("Unable to load properties file {}: {}", file, e.getLocalizedMessage());
+                throw new ServerException(e.getLocalizedMessage());
+            }
+            properties.setProperty(propertyKey, propertyValue);
+            final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, null);
+            } catch (IOException e) {
+                LOG.error("Unable to write properties to {}: {}", tmp, e.getLocalizedMessage());
+                throw new ServerException(e.getLocalizedMessage());
+            }
+            try {
+                Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (IOException e) {
+                LOG.error("Unable to write properties file {}: {}", file, e.getLocalizedMessage());
+                throw new ServerException(e.getLocalizedMessage());
+            }
+        }
+        reload();
+    }
+
+    private void watch(final WatchService service) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = hasChanged(key);
+                if (!reset(key)) {
+                    return;
+                }
+                if (!changed) {
+                    continue;
+                }
+                // Wait until the file is no longer being written, changes of other files don't delay the reload
+                long changedAt = System.nanoTime();
+                long waitMillis;
+                while ((waitMillis = RELOAD_DELAY_MS - NANOSECONDS.toMillis(System.nanoTime() - changedAt)) > 0
+                       && (key = service.poll(waitMillis, MILLISECONDS)) != null) {
+                    if (hasChanged(key)) {
+                        changedAt = System.nanoTime();
+                    }
+                    if (!reset(key)) {
+                        return;
+                    }
+                }
+                reload();
+            }
+        } catch (ClosedWatchServiceException e) {
+            LOG.debug("Stopped watching properties file {}", file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean hasChanged(final WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || file.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean reset(final WatchKey key) {
+        if (!key.reset()) {
+            LOG.warn("Directory {} is no longer watched", file.getParent());
+            return false;
+        }
+        return true;
+    }
+}
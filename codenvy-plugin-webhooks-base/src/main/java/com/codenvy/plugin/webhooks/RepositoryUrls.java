@@ -0,0 +1,73 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import java.util.Locale;
+
+/**
+ * Helpers for repository URLs
+ *
+ * @author Stephane Tournie
+ */
+public final class RepositoryUrls {
+
+    private static final String SCHEME_SEPARATOR = "://";
+    private static final String GIT_SUFFIX       = ".git";
+
+    private RepositoryUrls() {
+    }
+
+    /**
+     * Normalize a repository URL so that different spellings of the same repository are equal:
+     * scheme and host are lowercased, trailing '/' and '.git' are removed.
+     * 'https://GitHub.com/codenvy/che.git/' and 'https://github.com/codenvy/che' give the same result.
+     *
+     * @param repositoryUrl
+     *         the URL to normalize
+     * @return the normalized URL or null if given URL is null
+     */
+    public static String normalize(final String repositoryUrl) {
+        if (repositoryUrl == null) {
+            return null;
+        }
+        String url = repositoryUrl.trim();
+
+        // Lowercase scheme and host, the path is case sensitive
+        final int schemeEnd = url.indexOf(SCHEME_SEPARATOR);
+        if (schemeEnd > 0) {
+            final int hostStart = schemeEnd + SCHEME_SEPARATOR.length();
+            int hostEnd = url.indexOf('/', hostStart);
+            if (hostEnd < 0) {
+                hostEnd = url.length();
+            }
+            url = url.substring(0, hostEnd).toLowerCase(Locale.ENGLISH) + url.substring(hostEnd);
+        }
+
+        // Strip trailing '/' and '.git'
+        boolean stripped = true;
+        while (stripped) {
+            stripped = false;
+            if (url.endsWith("/")) {
+                url = url.substring(0, url.length() - 1);
+                stripped = true;
+            }
+            if (url.endsWith(GIT_SUFFIX)) {
+                url = url.substring(0, url.length() - GIT_SUFFIX.length());
+                stripped = true;
+            }
+        }
+        return url;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.core.ServerException;
+
+/**
+ * Failure of a call that can succeed if it is made again later, e.g. a throttled call.
+ * A stored event that fails with it is not processed again before the given delay.
+ *
+ * @author Stephane Tournie
+ */
+public class RetryLaterException extends ServerException {
+
+    private final long delayMillis;
+
+    /**
+     * Constructor
+     *
+     * @param message
+     *         the message of the failure
+     * @param delayMillis
+     *         the time to wait before calling again, in milliseconds
+     */
+    public RetryLaterException(final String message, final long delayMillis) {
+        super(message);
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * @return the time to wait before calling again, in milliseconds
+     */
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+}
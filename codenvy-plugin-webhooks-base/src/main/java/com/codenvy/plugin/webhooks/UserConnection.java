@@ -41,11 +41,16 @@ public class UserConnection {
     private static final Logger LOG = LoggerFactory.getLogger(UserConnection.class);
 
     private final HttpJsonRequestFactory httpJsonRequestFactory;
+    private final AuthTokenCache         authTokenCache;
+    private final EndpointGuards         endpointGuards;
     private final String                 baseUrl;
 
     @Inject
-    public UserConnection(HttpJsonRequestFactory httpJsonRequestFactory, @Named("api.endpoint") String baseUrl) {
+    public UserConnection(HttpJsonRequestFactory httpJsonRequestFactory, AuthTokenCache authTokenCache,
+                          EndpointGuards endpointGuards, @Named("api.endpoint") String baseUrl) {
         this.httpJsonRequestFactory = httpJsonRequestFactory;
+        this.authTokenCache = authTokenCache;
+        this.endpointGuards = endpointGuards;
         this.baseUrl = baseUrl;
     }
 
@@ -60,7 +65,7 @@ public class UserConnection {
         UserDescriptor user;
         HttpJsonRequest httpJsonRequest = httpJsonRequestFactory.fromUrl(url).useGetMethod();
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
+            HttpJsonResponse response = endpointGuards.call(url, () -> authTokenCache.request(httpJsonRequest));
             user = response.asDto(UserDescriptor.class);
 
         } catch (IOException | ApiException e) {
@@ -0,0 +1,72 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+/**
+ * A raw webhook event as received from GitHub or VSTS
+ *
+ * @author Stephane Tournie
+ */
+public class WebhookEvent {
+
+    private final String type;
+    private final String deliveryId;
+    private final String partitionKey;
+    private final long   receivedAt;
+    private final byte[] payload;
+
+    /**
+     * Constructor
+     *
+     * @param type
+     *         the type of the event, as given by request headers, may be null
+     * @param deliveryId
+     *         the unique id of the delivery of the event, may be null
+     * @param partitionKey
+     *         the key of the events that must be processed in order with this one (the repository, the collection...), may be null
+     * @param receivedAt
+     *         the time the event was received, in milliseconds since epoch
+     * @param payload
+     *         the body of the event
+     */
+    public WebhookEvent(final String type, final String deliveryId, final String partitionKey, final long receivedAt,
+                        final byte[] payload) {
+        this.type = type;
+        this.deliveryId = deliveryId;
+        this.partitionKey = partitionKey;
+        this.receivedAt = receivedAt;
+        this.payload = payload;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getDeliveryId() {
+        return deliveryId;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,673 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.commons.env.EnvironmentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Strings.emptyToNull;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Durable queue of webhook events processed by a {@link PartitionedExecutor}:
+ * events with the same partition key are processed one after the other, in the order they were received.
+ *
+ * Events are appended to segment files in a directory before being acknowledged to the sender.
+ * The offset of each processed event is appended to the acks file of its segment, and a segment is deleted
+ * once all its events have been processed. When the queue is started, the events of the remaining segments
+ * that are not in their acks file are processed again.
+ *
+ * An event whose processing fails is processed again after a delay that doubles on each attempt, starting at
+ * 'webhooks.queue.retry.delay.ms' (system property, default 1000), at most 'webhooks.queue.retries' times (default 5).
+ * An event that fails with a {@link RetryLaterException} is not processed again before the delay it gives.
+ * An event that still fails is appended to the 'dead-letters.log' file of the queue directory, in the format of segments.
+ * The following events of the partition of a failed event wait until it is processed or moved to the dead letters,
+ * so that the events of a partition are still processed in order. Events of other partitions are not held back.
+ *
+ * @author Stephane Tournie
+ */
+public class WebhookEventQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WebhookEventQueue.class);
+
+    private static final String SEGMENT_PREFIX    = "segment-";
+    private static final String SEGMENT_SUFFIX    = ".log";
+    private static final String ACKS_SUFFIX       = ".acks";
+    private static final long   SEGMENT_MAX_BYTES = 8 * 1024 * 1024;
+    private static final String DEAD_LETTERS_FILE = "dead-letters.log";
+
+    // Length and checksum written before the body of each record
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Long.BYTES;
+    // Largest record body, bigger than the largest payload GitHub (25 MB) and VSTS send
+    private static final int MAX_RECORD_BYTES    = 32 * 1024 * 1024;
+
+    private static final int  DEFAULT_RETRIES        = Integer.getInteger("webhooks.queue.retries", 5);
+    private static final long DEFAULT_RETRY_DELAY_MS = Long.getLong("webhooks.queue.retry.delay.ms", 1000L);
+    private static final long MAX_RETRY_DELAY_MS     = MINUTES.toMillis(10);
+
+    /**
+     * Process events taken from the queue
+     */
+    public interface Handler {
+        void handle(WebhookEvent event) throws Exception;
+    }
+
+    private final Path                               directory;
+    private final int                                workers;
+    private final int                                retries;
+    private final long                               retryDelayMillis;
+    private final Handler                            handler;
+    private final ConcurrentSkipListMap<Long, Entry> pending;
+    // partition key -> events waiting behind an event of the partition that failed, guarded by itself
+    private final Map<String, Deque<Entry>>          held;
+    private final AtomicLong                         sequence;
+    private final AtomicLong                         retried;
+    private final AtomicLong                         deadLetters;
+    private final Object                             segmentsLock;
+
+    private PartitionedExecutor         executor;
+    private ScheduledThreadPoolExecutor retryScheduler;
+    private Segment                     active;
+    private volatile boolean            running;
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *         the directory where segment files are stored
+     * @param workers
+     *         the number of lanes of events processed in parallel
+     * @param handler
+     *         the handler that processes events
+     */
+    public WebhookEventQueue(final Path directory, final int workers, final Handler handler) {
+        this(directory, workers, DEFAULT_RETRIES, DEFAULT_RETRY_DELAY_MS, MILLISECONDS, handler);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory
+     *         the directory where segment files are stored
+     * @param workers
+     *         the number of lanes of events processed in parallel
+     * @param retries
+     *         the number of times an event is processed again after a failure
+     * @param retryDelay
+     *         the delay before the first retry of an event, doubled on each retry
+     * @param unit
+     *         the unit of retryDelay
+     * @param handler
+     *         the handler that processes events
+     */
+    public WebhookEventQueue(final Path directory, final int workers, final int retries, final long retryDelay, final TimeUnit unit,
+                             final Handler handler) {
+        this.directory = directory.toAbsolutePath();
+        this.workers = workers;
+        this.retries = retries;
+        this.retryDelayMillis = unit.toMillis(retryDelay);
+        this.handler = handler;
+        this.pending = new ConcurrentSkipListMap<>();
+        this.held = new HashMap<>();
+        this.sequence = new AtomicLong();
+        this.retried = new AtomicLong();
+        this.deadLetters = new AtomicLong();
+        this.segmentsLock = new Object();
+    }
+
+    /**
+     * Reload the events that were not processed and start processing events
+     *
+     * @throws IOException
+     *         if the queue directory cannot be read
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        Files.createDirectories(directory);
+        executor = new PartitionedExecutor("webhooks-" + directory.getFileName(), workers);
+        final String retryThreadName = "webhooks-" + directory.getFileName() + "-retry";
+        retryScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, retryThreadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        long lastSegmentId = 0;
+        for (Path segmentFile : listSegments()) {
+            final long segmentId = segmentId(segmentFile);
+            lastSegmentId = Math.max(lastSegmentId, segmentId);
+            recover(new Segment(segmentId, segmentFile));
+        }
+        synchronized (segmentsLock) {
+            active = openSegment(lastSegmentId + 1);
+        }
+        if (!pending.isEmpty()) {
+            LOG.info("{} webhook events recovered from {}", pending.size(), directory);
+        }
+    }
+
+    /**
+     * Stop processing events. Events that are not processed yet stay on disk.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (retryScheduler != null) {
+            // Events waiting for a retry stay on disk
+            retryScheduler.shutdownNow();
+        }
+        synchronized (segmentsLock) {
+            if (active != null) {
+                active.close();
+            }
+        }
+    }
+
+    /**
+     * Store an event on disk and schedule its processing
+     *
+     * @param event
+     *         the event to enqueue
+     * @throws IOException
+     *         if the event cannot be stored or is too large
+     */
+    public void enqueue(final WebhookEvent event) throws IOException {
+        if (!running) {
+            throw new IOException("Webhook events queue " + directory + " is not started");
+        }
+        final ByteBuffer record = ByteBuffer.wrap(encode(event));
+        if (record.remaining() - RECORD_HEADER_BYTES > MAX_RECORD_BYTES) {
+            throw new IOException("Webhook event of " + event.getPayload().length + " bytes is too large to be stored");
+        }
+        final Entry entry;
+        synchronized (segmentsLock) {
+            if (active == null) {
+                throw new IOException("Webhook events queue " + directory + " is not started");
+            }
+            if (active.size > 0 && active.size + record.remaining() > SEGMENT_MAX_BYTES) {
+                roll();
+            }
+            final long offset = active.size;
+            final int length = record.remaining();
+            while (record.hasRemaining()) {
+                active.channel.write(record);
+            }
+            active.channel.force(false);
+            active.size += length;
+            active.appended++;
+            entry = new Entry(sequence.incrementAndGet(), event, active, offset);
+            pending.put(entry.sequence, entry);
+        }
+        schedule(entry);
+    }
+
+    /**
+     * Get the number of events waiting for or being processed
+     *
+     * @return the number of events not processed yet
+     */
+    public int getDepth() {
+        return pending.size();
+    }
+
+    /**
+     * Get the age of the oldest event not processed yet
+     *
+     * @return the age of the oldest event in milliseconds, 0 if the queue is empty
+     */
+    public long getOldestEventAge() {
+        final Map.Entry<Long, Entry> oldest = pending.firstEntry();
+        return oldest == null ? 0 : System.currentTimeMillis() - oldest.getValue().event.getReceivedAt();
+    }
+
+    /**
+     * Get the number of times events have been scheduled again after a failure
+     *
+     * @return the number of retries since the queue was created
+     */
+    public long getRetryCount() {
+        return retried.get();
+    }
+
+    /**
+     * Get the number of events that failed on every attempt and were moved to the dead letters file
+     *
+     * @return the number of dead letters since the queue was created
+     */
+    public long getDeadLetterCount() {
+        return deadLetters.get();
+    }
+
+    /**
+     * Get the number of lanes that are processing an event
+     *
+     * @return the number of busy lanes
+     */
+    public int getBusyLanes() {
+        return executor != null ? executor.getBusyLanes() : 0;
+    }
+
+    private void schedule(final Entry entry) {
+        executor.execute(entry.event.getPartitionKey(), () -> process(entry));
+    }
+
+    private void process(final Entry entry) {
+        if (hold(entry)) {
+            return;
+        }
+        run(entry);
+    }
+
+    /**
+     * Process an event, then the events of its partition that waited for it
+     */
+    private void run(final Entry first) {
+        Entry entry = first;
+        while (entry != null && attempt(entry)) {
+            entry = next(entry.event.getPartitionKey());
+        }
+    }
+
+    /**
+     * @return true if the event is done, false if it will be processed again
+     */
+    private boolean attempt(final Entry entry) {
+        try {
+            handler.handle(entry.event);
+        } catch (Exception e) {
+            return running && retry(entry, e);
+        } finally {
+            EnvironmentContext.reset();
+        }
+        complete(entry);
+        return true;
+    }
+
+    /**
+     * Put an event behind the failed event of its partition, if any
+     *
+     * @return true if the event waits for a failed event
+     */
+    private boolean hold(final Entry entry) {
+        final String partitionKey = entry.event.getPartitionKey();
+        if (partitionKey == null) {
+            return false;
+        }
+        synchronized (held) {
+            final Deque<Entry> waiting = held.get(partitionKey);
+            if (waiting == null) {
+                return false;
+            }
+            waiting.add(entry);
+            return true;
+        }
+    }
+
+    /**
+     * @return the next event that waited in a partition, null if there is none and the partition is no longer held
+     */
+    private Entry next(final String partitionKey) {
+        if (partitionKey == null) {
+            return null;
+        }
+        synchronized (held) {
+            final Deque<Entry> waiting = held.get(partitionKey);
+            if (waiting == null) {
+                return null;
+            }
+            final Entry next = waiting.poll();
+            if (next == null) {
+                held.remove(partitionKey);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * @return true if the event is done because it was moved to the dead letters, false if it will be processed again
+     */
+    private boolean retry(final Entry entry, final Exception failure) {
+        // Attempts of an event are never run concurrently
+        final int attempt = ++entry.attempts;
+        if (attempt > retries) {
+            LOG.error("Processing of webhook event {} failed {} times, it is moved to {}: {}", entry.event.getType(), attempt,
+                      DEAD_LETTERS_FILE, failure.getLocalizedMessage(), failure);
+            deadLetter(entry);
+            return true;
+        }
+        long delayMillis = Math.min(MAX_RETRY_DELAY_MS, retryDelayMillis << Math.min(attempt - 1, 20));
+        if (failure instanceof RetryLaterException) {
+            delayMillis = Math.min(MAX_RETRY_DELAY_MS, Math.max(delayMillis, ((RetryLaterException)failure).getDelayMillis()));
+        }
+        LOG.warn("Processing of webhook event {} failed, attempt {} of {} in {} ms: {}", entry.event.getType(), attempt + 1,
+                 retries + 1, delayMillis, failure.getLocalizedMessage());
+        retried.incrementAndGet();
+        final String partitionKey = entry.event.getPartitionKey();
+        if (partitionKey != null) {
+            synchronized (held) {
+                held.putIfAbsent(partitionKey, new ArrayDeque<>());
+            }
+        }
+        try {
+            retryScheduler.schedule(() -> {
+                if (running) {
+                    // The event is the head of its held partition, it is not held itself
+                    executor.execute(partitionKey, () -> run(entry));
+                }
+            }, delayMillis, MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped, the event stays on disk
+        }
+        return false;
+    }
+
+    private void deadLetter(final Entry entry) {
+        synchronized (segmentsLock) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(DEAD_LETTERS_FILE), CREATE, WRITE, APPEND)) {
+                final ByteBuffer record = ByteBuffer.wrap(encode(entry.event));
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                LOG.error("Unable to move webhook event {} to {}, it will be processed again after a restart: {}",
+                          entry.event.getType(), DEAD_LETTERS_FILE, e.getLocalizedMessage());
+                return;
+            }
+        }
+        deadLetters.incrementAndGet();
+        complete(entry);
+    }
+
+    private void complete(final Entry entry) {
+        if (!running) {
+            // Processing may have been interrupted by stop(), keep the event on disk
+            return;
+        }
+        synchronized (segmentsLock) {
+            try {
+                entry.segment.ack(entry.offset);
+            } catch (IOException e) {
+                LOG.warn("Unable to record processed webhook event in {}, it will be processed again after a restart: {}",
+                         entry.segment.acksFile, e.getLocalizedMessage());
+            }
+            pending.remove(entry.sequence);
+            entry.segment.completed++;
+            if (entry.segment.isDone()) {
+                entry.segment.delete();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        final Segment previous = active;
+        previous.close();
+        active = openSegment(previous.id + 1);
+        if (previous.isDone()) {
+            previous.delete();
+        }
+    }
+
+    private Segment openSegment(final long id) throws IOException {
+        final Segment segment = new Segment(id, directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+        segment.channel = FileChannel.open(segment.file, CREATE, WRITE, APPEND);
+        segment.size = segment.channel.size();
+        return segment;
+    }
+
+    private void recover(final Segment segment) throws IOException {
+        final Set<Long> acked = readAcks(segment);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.file)))) {
+            long offset = 0;
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final long checksum = in.readLong();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    LOG.warn("Corrupted webhook event found in {}, following events of this segment are skipped", segment.file);
+                    break;
+                }
+                final byte[] body = new byte[length];
+                in.readFully(body);
+                final CRC32 crc = new CRC32();
+                crc.update(body);
+                final WebhookEvent event = crc.getValue() == checksum ? decode(body) : null;
+                if (event == null) {
+                    LOG.warn("Corrupted webhook event found in {}, following events of this segment are skipped", segment.file);
+                    break;
+                }
+                final long recordOffset = offset;
+                offset += RECORD_HEADER_BYTES + length;
+                if (acked.contains(recordOffset)) {
+                    // Processed before the restart
+                    continue;
+                }
+                final Entry entry = new Entry(sequence.incrementAndGet(), event, segment, recordOffset);
+                synchronized (segmentsLock) {
+                    segment.appended++;
+                    pending.put(entry.sequence, entry);
+                }
+                schedule(entry);
+            }
+        } catch (EOFException e) {
+            LOG.warn("Incomplete webhook event found at the end of {}, it is skipped", segment.file);
+        }
+        // Recovered events may already be processed, the segment can be deleted only once all of them are known
+        synchronized (segmentsLock) {
+            segment.sealed = true;
+            if (segment.isDone()) {
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * Read the offsets of the processed events of a segment.
+     * An offset that was partly written when the server stopped is removed, so that the following ones stay aligned.
+     */
+    private static Set<Long> readAcks(final Segment segment) throws IOException {
+        final Set<Long> acked = new HashSet<>();
+        if (!Files.exists(segment.acksFile)) {
+            return acked;
+        }
+        try (FileChannel channel = FileChannel.open(segment.acksFile, READ, WRITE)) {
+            final long size = channel.size() - channel.size() % Long.BYTES;
+            if (size != channel.size()) {
+                LOG.warn("Incomplete acknowledgement found at the end of {}, it is removed", segment.acksFile);
+                channel.truncate(size);
+            }
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            for (long read = 0; read < size; read += Long.BYTES) {
+                acked.add(in.readLong());
+            }
+        }
+        return acked;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentId(final Path segmentFile) {
+        final String name = segmentFile.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] encode(final WebhookEvent event) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(event.getPayload().length + 128);
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeLong(event.getReceivedAt());
+            out.writeUTF(event.getType() != null ? event.getType() : "");
+            out.writeUTF(event.getDeliveryId() != null ? event.getDeliveryId() : "");
+            out.writeUTF(event.getPartitionKey() != null ? event.getPartitionKey() : "");
+            out.writeInt(event.getPayload().length);
+            out.write(event.getPayload());
+        }
+        final byte[] bodyBytes = body.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(bodyBytes);
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(bodyBytes.length + 12);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeInt(bodyBytes.length);
+            out.writeLong(crc.getValue());
+            out.write(bodyBytes);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * @return the event stored in a record body, null if the body is not a valid event
+     */
+    private static WebhookEvent decode(final byte[] body) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            final long receivedAt = in.readLong();
+            final String type = in.readUTF();
+            final String deliveryId = in.readUTF();
+            final String partitionKey = in.readUTF();
+            final int payloadLength = in.readInt();
+            if (payloadLength < 0 || payloadLength > in.available()) {
+                return null;
+            }
+            final byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            return new WebhookEvent(emptyToNull(type), emptyToNull(deliveryId), emptyToNull(partitionKey), receivedAt, payload);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final class Entry {
+
+        private final long         sequence;
+        private final WebhookEvent event;
+        private final Segment      segment;
+        // Position of the event in its segment file
+        private final long         offset;
+        private       int          attempts;
+
+        private Entry(final long sequence, final WebhookEvent event, final Segment segment, final long offset) {
+            this.sequence = sequence;
+            this.event = event;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path file;
+        private final Path acksFile;
+
+        private FileChannel channel;
+        private long        size;
+        private int         appended;
+        private int         completed;
+        private boolean     sealed;
+
+        private Segment(final long id, final Path file) {
+            this.id = id;
+            this.file = file;
+            final String name = file.getFileName().toString();
+            this.acksFile = file.resolveSibling(name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + ACKS_SUFFIX);
+        }
+
+        private boolean isDone() {
+            return sealed && completed == appended;
+        }
+
+        private void close() {
+            sealed = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close {}: {}", file, e.getLocalizedMessage());
+                }
+            }
+        }
+
+        /**
+         * Record on disk that the event at given offset has been processed
+         */
+        private void ack(final long offset) throws IOException {
+            try (FileChannel acks = FileChannel.open(acksFile, CREATE, WRITE, APPEND)) {
+                final ByteBuffer record = ByteBuffer.allocate(Long.BYTES).putLong(0, offset);
+                while (record.hasRemaining()) {
+                    acks.write(record);
+                }
+                acks.force(false);
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(acksFile);
+            } catch (IOException e) {
+                LOG.warn("Unable to delete processed webhook events {}: {}", file, e.getLocalizedMessage());
+            }
+        }
+    }
+}
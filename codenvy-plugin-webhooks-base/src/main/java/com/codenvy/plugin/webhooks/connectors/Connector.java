@@ -14,6 +14,10 @@
  */
 package com.codenvy.plugin.webhooks.connectors;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * Connect to a third-party service in order to add Codenvy factory related data
  *
@@ -28,4 +32,42 @@ public interface Connector {
      *         the factory URL to add
      */
     void addFactoryLink(String factoryUrl);
+
+    /**
+     * Add several factory links to the third-party service
+     * Connectors that update a shared resource should override it to update the resource once for all links
+     *
+     * @param factoryUrls
+     *         the factory URLs to add
+     */
+    default void addFactoryLinks(Collection<String> factoryUrls) {
+        factoryUrls.forEach(this::addFactoryLink);
+    }
+
+    /**
+     * Add several factory links to the third-party service without blocking the caller
+     * By default, {@link #addFactoryLinks(Collection)} is called with given executor and its failures are reported as exceptions.
+     *
+     * @param factoryUrls
+     *         the factory URLs to add
+     * @param executor
+     *         the executor to run blocking calls with
+     * @return the result of the call, which may be completed exceptionally
+     */
+    default CompletableFuture<ConnectorResult> addFactoryLinksAsync(Collection<String> factoryUrls, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            addFactoryLinks(factoryUrls);
+            return ConnectorResult.success(getTarget(), factoryUrls);
+        }, executor);
+    }
+
+    /**
+     * Identify the third-party resource updated by the connector
+     * Links added with connectors that have equal targets are added with a single call, see {@link FactoryLinkBatch}
+     *
+     * @return the target of the connector, the connector itself by default
+     */
+    default Object getTarget() {
+        return this;
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Call connectors in parallel, outside of the threads that handle webhook events
+ *
+ * Connectors are called by up to 'webhooks.connectors.threads' threads (system property, default 8),
+ * at most 'webhooks.connectors.queue.size' calls (default 1000) wait for a thread and further calls fail.
+ * A call that is not done after 'webhooks.connectors.timeout.seconds' (default 60) is reported as failed and cancelled:
+ * it is removed from the queue or its thread is interrupted.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class ConnectorDispatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectorDispatcher.class);
+
+    private static final int  DEFAULT_THREADS         = Integer.getInteger("webhooks.connectors.threads", 8);
+    private static final int  DEFAULT_QUEUE_SIZE      = Integer.getInteger("webhooks.connectors.queue.size", 1000);
+    private static final long DEFAULT_TIMEOUT_SECONDS = Long.getLong("webhooks.connectors.timeout.seconds", 60L);
+
+    private final ThreadPoolExecutor          executor;
+    private final ScheduledThreadPoolExecutor timeouts;
+    private final long                        timeoutMillis;
+    private final AtomicLong                  failures;
+
+    @Inject
+    public ConnectorDispatcher() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE, DEFAULT_TIMEOUT_SECONDS, SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads
+     *         the maximum number of connectors called at the same time
+     * @param queueSize
+     *         the maximum number of calls waiting for a thread
+     * @param timeout
+     *         the time after which a call is reported as failed
+     * @param unit
+     *         the unit of timeout
+     */
+    public ConnectorDispatcher(final int threads, final int queueSize, final long timeout, final TimeUnit unit) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+            final Thread thread = new Thread(r, "webhooks-connectors-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        final ScheduledThreadPoolExecutor timeouts = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "webhooks-connectors-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timeouts.setRemoveOnCancelPolicy(true);
+        this.timeouts = timeouts;
+        this.timeoutMillis = unit.toMillis(timeout);
+        this.failures = new AtomicLong();
+    }
+
+    /**
+     * Add the factory links of a batch, all targets in parallel
+     *
+     * @param batch
+     *         the factory links to add
+     * @return the results of all targets, completed once every target is done or timed out. It never completes exceptionally.
+     */
+    public CompletableFuture<List<ConnectorResult>> dispatch(final FactoryLinkBatch batch) {
+        final List<CompletableFuture<ConnectorResult>> results = new ArrayList<>(batch.size());
+        for (Map.Entry<Object, Connector> target : batch.getConnectors().entrySet()) {
+            results.add(dispatch(target.getValue(), batch.getFactoryUrls(target.getKey())));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()]))
+                                .thenApply(done -> {
+                                    final List<ConnectorResult> all = results.stream()
+                                                                             .map(CompletableFuture::join)
+                                                                             .collect(Collectors.toList());
+                                    final long failed = all.stream().filter(result -> !result.isSuccess()).count();
+                                    if (failed > 0) {
+                                        LOG.error("{} of {} connectors failed: {}", failed, all.size(), all);
+                                    } else {
+                                        LOG.debug("Factory links added by {} connectors", all.size());
+                                    }
+                                    return all;
+                                });
+    }
+
+    /**
+     * @return the number of connectors being called
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of connector calls waiting for a thread
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of connector calls that failed, were rejected or timed out since the server started
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+        timeouts.shutdownNow();
+    }
+
+    private CompletableFuture<ConnectorResult> dispatch(final Connector connector, final Collection<String> factoryUrls) {
+        final Object target = connector.getTarget();
+        // The task run by the executor for the connector, kept so that it can be cancelled
+        final AtomicReference<FutureTask<Void>> task = new AtomicReference<>();
+        final CompletableFuture<ConnectorResult> call;
+        try {
+            call = connector.addFactoryLinksAsync(factoryUrls, command -> {
+                final FutureTask<Void> futureTask = new FutureTask<>(command, null);
+                task.set(futureTask);
+                executor.execute(futureTask);
+            });
+        } catch (RejectedExecutionException e) {
+            failures.incrementAndGet();
+            return CompletableFuture.completedFuture(ConnectorResult.failure(target, factoryUrls, "too many connector calls pending"));
+        }
+
+        final CompletableFuture<ConnectorResult> result = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            if (result.complete(ConnectorResult.failure(target, factoryUrls, "no answer after " + timeoutMillis + " ms"))) {
+                cancel(task.get());
+            }
+        }, timeoutMillis, MILLISECONDS);
+        call.whenComplete((callResult, error) -> {
+            timeout.cancel(false);
+            if (error != null) {
+                result.complete(ConnectorResult.failure(target, factoryUrls, String.valueOf(error.getLocalizedMessage())));
+            } else {
+                result.complete(callResult);
+            }
+        });
+        return result.whenComplete((r, e) -> {
+            if (!r.isSuccess()) {
+                failures.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Free the thread or the queue slot of a connector task that timed out
+     */
+    private void cancel(final FutureTask<Void> task) {
+        if (task != null && task.cancel(true)) {
+            executor.remove(task);
+        }
+    }
+}
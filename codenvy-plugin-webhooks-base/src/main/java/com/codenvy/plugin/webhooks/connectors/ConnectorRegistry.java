@@ -0,0 +1,94 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.codenvy.plugin.webhooks.PropertiesRegistry;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Properties;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * In-memory registry of the connectors configured in CONNECTORS_PROPERTIES_FILENAME properties file, indexed by factory id
+ *
+ * Jenkins connector: [connector-name]=[connector-type],[factory-id],[jenkins-url],[jenkins-job-name]
+ *
+ * Connectors are created once per version of the properties file and shared by all events.
+ * Jenkins connectors of a same Jenkins instance share the client provided by {@link JenkinsClientPool}.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class ConnectorRegistry extends PropertiesRegistry<ListMultimap<String, Connector>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectorRegistry.class);
+
+    private static final String CONNECTORS_PROPERTIES_FILENAME = "connectors.properties";
+
+    private final JenkinsClientPool jenkinsClientPool;
+
+    @Inject
+    public ConnectorRegistry(final JenkinsClientPool jenkinsClientPool) {
+        super(CONNECTORS_PROPERTIES_FILENAME);
+        this.jenkinsClientPool = jenkinsClientPool;
+    }
+
+    /**
+     * Get connectors configured for a given factory
+     *
+     * @param factoryId
+     *         the id of the factory
+     * @return the connectors configured for the factory, empty if none is configured
+     * @throws ServerException
+     */
+    public List<Connector> getConnectors(final String factoryId) throws ServerException {
+        return get().get(factoryId);
+    }
+
+    @Override
+    protected ListMultimap<String, Connector> parse(Properties connectorsProperties) {
+        final ImmutableListMultimap.Builder<String, Connector> connectors = ImmutableListMultimap.builder();
+        for (String key : connectorsProperties.stringPropertyNames()) {
+            final String value = connectorsProperties.getProperty(key);
+            if (isNullOrEmpty(value)) {
+                continue;
+            }
+            final String[] valueSplit = value.split(",");
+            switch (valueSplit[0]) {
+                case "jenkins":
+                    if (valueSplit.length < 4) {
+                        LOG.error("Invalid Jenkins connector {}: {}", key, value);
+                        break;
+                    }
+                    connectors.put(valueSplit[1], new JenkinsConnector(jenkinsClientPool.getClient(valueSplit[2]), valueSplit[3]));
+                    LOG.debug("new JenkinsConnector({}, {})", valueSplit[2], valueSplit[3]);
+                    break;
+                default:
+                    LOG.error("Unknown connector type {}", valueSplit[0]);
+                    break;
+            }
+        }
+        return connectors.build();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Outcome of adding factory links with a {@link Connector}
+ *
+ * @author Stephane Tournie
+ */
+public class ConnectorResult {
+
+    private final String       target;
+    private final List<String> factoryUrls;
+    private final String       error;
+
+    private ConnectorResult(final Object target, final Collection<String> factoryUrls, final String error) {
+        this.target = String.valueOf(target);
+        this.factoryUrls = ImmutableList.copyOf(factoryUrls);
+        this.error = error;
+    }
+
+    /**
+     * The factory links are displayed by the third-party service
+     *
+     * @param target
+     *         the target of the connector, see {@link Connector#getTarget()}
+     * @param factoryUrls
+     *         the factory URLs added
+     */
+    public static ConnectorResult success(final Object target, final Collection<String> factoryUrls) {
+        return new ConnectorResult(target, factoryUrls, null);
+    }
+
+    /**
+     * The factory links could not be added
+     *
+     * @param target
+     *         the target of the connector, see {@link Connector#getTarget()}
+     * @param factoryUrls
+     *         the factory URLs that were to be added
+     * @param error
+     *         the reason of the failure
+     */
+    public static ConnectorResult failure(final Object target, final Collection<String> factoryUrls, final String error) {
+        return new ConnectorResult(target, factoryUrls, error);
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public List<String> getFactoryUrls() {
+        return factoryUrls;
+    }
+
+    /**
+     * @return the reason of the failure, null on success
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return target + " " + factoryUrls + (isSuccess() ? ": OK" : ": " + error);
+    }
+}
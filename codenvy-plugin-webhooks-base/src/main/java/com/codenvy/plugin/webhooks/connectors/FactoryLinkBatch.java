@@ -0,0 +1,75 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Factory links to add with connectors, grouped by connector target
+ *
+ * All the links for a same target (for instance a Jenkins job configured for several factories)
+ * are added with a single call of the connector, targets are updated in parallel by {@link ConnectorDispatcher}.
+ * A batch is meant to be filled by a single thread.
+ *
+ * @author Stephane Tournie
+ */
+public class FactoryLinkBatch {
+
+    // target -> connector that adds the links of the target
+    private final Map<Object, Connector>     connectors  = new LinkedHashMap<>();
+    // target -> factory URLs to add
+    private final SetMultimap<Object, String> factoryUrls = LinkedHashMultimap.create();
+
+    /**
+     * Add a factory link to the batch
+     *
+     * @param connector
+     *         the connector to add the link with
+     * @param factoryUrl
+     *         the factory URL to add
+     */
+    public void add(final Connector connector, final String factoryUrl) {
+        final Object target = connector.getTarget();
+        connectors.putIfAbsent(target, connector);
+        factoryUrls.put(target, factoryUrl);
+    }
+
+    /**
+     * @return the number of targets to update
+     */
+    public int size() {
+        return connectors.size();
+    }
+
+    /**
+     * @return the connector of each target, by target
+     */
+    Map<Object, Connector> getConnectors() {
+        return Collections.unmodifiableMap(connectors);
+    }
+
+    /**
+     * @return the factory URLs to add to a target
+     */
+    Collection<String> getFactoryUrls(final Object target) {
+        return Collections.unmodifiableSet(factoryUrls.get(target));
+    }
+}
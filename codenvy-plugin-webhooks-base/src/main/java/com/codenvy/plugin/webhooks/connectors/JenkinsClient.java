@@ -0,0 +1,165 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.codenvy.plugin.webhooks.EndpointGuard;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * HTTP client shared by all the connectors of a Jenkins instance.
+ *
+ * The underlying JAX-RS client is created once, so that connections to Jenkins are kept alive and reused,
+ * and the number of requests sent at the same time to the Jenkins instance is bounded.
+ * Connections are HTTP/1.1 connections, see {@link JenkinsClientPool}.
+ * Requests are also guarded by the {@link EndpointGuard} of the Jenkins host: they fail fast while Jenkins is failing.
+ *
+ * @author Stephane Tournie
+ */
+public class JenkinsClient {
+
+    private final String        baseUrl;
+    private final Client        client;
+    private final EndpointGuard guard;
+    private final Semaphore     connections;
+    private final long          acquireTimeoutMillis;
+
+    // job name -> lock held while the job configuration is updated
+    private final ConcurrentMap<String, Lock>                                          jobLocks;
+    // job name -> factory links known to be displayed on the job description
+    private final ConcurrentMap<String, AtomicReference<JenkinsConnector.KnownLinks>> knownLinks;
+
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     *
+     * @param baseUrl
+     *         the URL of the Jenkins instance
+     * @param client
+     *         the JAX-RS client used to send requests, owned by the new instance
+     * @param guard
+     *         the guard of the Jenkins host
+     * @param maxConnections
+     *         the maximum number of requests sent at the same time
+     * @param acquireTimeoutMillis
+     *         how long a request waits for a connection to be available
+     */
+    JenkinsClient(final String baseUrl, final Client client, final EndpointGuard guard, final int maxConnections,
+                  final long acquireTimeoutMillis) {
+        this.baseUrl = baseUrl;
+        this.client = client;
+        this.guard = guard;
+        this.connections = new Semaphore(maxConnections, true);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.jobLocks = new ConcurrentHashMap<>();
+        this.knownLinks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the URL of the Jenkins instance
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Send a request to the Jenkins instance and read its response.
+     * The response is closed once read, so that the connection can be reused.
+     * Server errors (5xx) and request failures count as failures of the Jenkins host.
+     *
+     * @param request
+     *         the function that sends the request with given client
+     * @param reader
+     *         the function that reads the response
+     * @return the result of the reader
+     * @throws ProcessingException
+     *         if the client is closed, if Jenkins is failing or no connection is available in time, or if the request fails
+     */
+    public <T> T call(final Function<Client, Response> request, final Function<Response, T> reader) {
+        if (closed) {
+            throw new ProcessingException("Client of Jenkins " + baseUrl + " is closed");
+        }
+        try {
+            if (!connections.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new ProcessingException("No connection to Jenkins " + baseUrl + " available within " + acquireTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException("Interrupted while waiting for a connection to Jenkins " + baseUrl);
+        }
+        try {
+            if (!guard.tryEnter()) {
+                throw new ProcessingException("Call to " + guard + " rejected, too many calls in progress or too many recent failures");
+            }
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final Response response = request.apply(client);
+                try {
+                    failed = response.getStatus() >= 500;
+                    return reader.apply(response);
+                } finally {
+                    response.close();
+                }
+            } finally {
+                guard.exit(start, failed);
+            }
+        } finally {
+            connections.release();
+        }
+    }
+
+    /**
+     * Get the lock that serializes the updates of a job configuration, shared by all connectors of the job
+     *
+     * @param jobName
+     *         the name of the job
+     * @return the lock of the job
+     */
+    public Lock getJobLock(final String jobName) {
+        return jobLocks.computeIfAbsent(jobName, name -> new ReentrantLock());
+    }
+
+    /**
+     * Get the factory links known to be displayed on the description of a job, shared by all connectors of the job
+     * so that they survive the reload of connectors
+     *
+     * @param jobName
+     *         the name of the job
+     * @return the known links of the job
+     */
+    AtomicReference<JenkinsConnector.KnownLinks> getKnownLinks(final String jobName) {
+        return knownLinks.computeIfAbsent(jobName, name -> new AtomicReference<>(JenkinsConnector.KnownLinks.NONE));
+    }
+
+    /**
+     * Close the underlying client, following requests fail
+     */
+    void close() {
+        closed = true;
+        client.close();
+    }
+}
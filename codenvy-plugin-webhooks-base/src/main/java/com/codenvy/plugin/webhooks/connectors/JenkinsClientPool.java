@@ -0,0 +1,117 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.codenvy.plugin.webhooks.EndpointGuards;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.client.Client;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One {@link JenkinsClient} per Jenkins instance, shared by all Jenkins connectors.
+ *
+ * Clients allow at most 'webhooks.jenkins.pool.size' concurrent requests (system property, default 8)
+ * with 'webhooks.jenkins.connect.timeout.ms' (default 5000) and 'webhooks.jenkins.read.timeout.ms' (default 30000) timeouts.
+ * Clients are Jersey clients, whatever the JAX-RS implementation of the server: the JAX-RS 2.0 client API has no timeouts.
+ * The read timeout bounds each wait for data, not the whole response.
+ * Requests use HTTP/1.1 with keep-alive: the default connector of Jersey 2.22 is based on HttpURLConnection,
+ * and none of the connectors of this Jersey version supports HTTP/2.
+ * Clients are closed when the server stops.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class JenkinsClientPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JenkinsClientPool.class);
+
+    private static final int DEFAULT_POOL_SIZE          = Integer.getInteger("webhooks.jenkins.pool.size", 8);
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = Integer.getInteger("webhooks.jenkins.connect.timeout.ms", 5000);
+    private static final int DEFAULT_READ_TIMEOUT_MS    = Integer.getInteger("webhooks.jenkins.read.timeout.ms", 30000);
+
+    private final ConcurrentMap<String, JenkinsClient> clients;
+    private final EndpointGuards                       endpointGuards;
+    private final int                                  poolSize;
+    private final int                                  connectTimeoutMillis;
+    // Configured once, so that a missing Jersey client fails when the pool is created; guarded by itself
+    private final JerseyClientBuilder                  clientBuilder;
+
+    private volatile boolean closed;
+
+    @Inject
+    public JenkinsClientPool(final EndpointGuards endpointGuards) {
+        this(endpointGuards, DEFAULT_POOL_SIZE, DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param endpointGuards
+     *         the guards of the Jenkins hosts
+     * @param poolSize
+     *         the maximum number of concurrent requests to a Jenkins instance
+     * @param connectTimeoutMillis
+     *         the connect timeout of requests
+     * @param readTimeoutMillis
+     *         the read timeout of requests
+     */
+    public JenkinsClientPool(final EndpointGuards endpointGuards, final int poolSize, final int connectTimeoutMillis,
+                             final int readTimeoutMillis) {
+        this.clients = new ConcurrentHashMap<>();
+        this.endpointGuards = endpointGuards;
+        this.poolSize = poolSize;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.clientBuilder = new JerseyClientBuilder().property(ClientProperties.CONNECT_TIMEOUT, connectTimeoutMillis)
+                                                      .property(ClientProperties.READ_TIMEOUT, readTimeoutMillis);
+    }
+
+    /**
+     * Get the client of a Jenkins instance, create it if needed
+     *
+     * @param baseUrl
+     *         the URL of the Jenkins instance
+     * @return the client shared by all connectors of the Jenkins instance
+     */
+    public JenkinsClient getClient(final String baseUrl) {
+        if (closed) {
+            throw new IllegalStateException("Jenkins clients are closed");
+        }
+        final String key = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        return clients.computeIfAbsent(key, url -> {
+            LOG.debug("New client for Jenkins {}", url);
+            final Client client;
+            synchronized (clientBuilder) {
+                client = clientBuilder.build();
+            }
+            return new JenkinsClient(url, client, endpointGuards.get(url), poolSize, connectTimeoutMillis);
+        });
+    }
+
+    @PreDestroy
+    public void close() {
+        closed = true;
+        clients.values().forEach(JenkinsClient::close);
+        clients.clear();
+    }
+}
@@ -14,39 +14,54 @@
  */
 package com.codenvy.plugin.webhooks.connectors;
 
+import com.google.common.collect.ImmutableSet;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
-import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.HttpHeaders;
-import javax.ws.rs.core.Response;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.ws.rs.core.MediaType.APPLICATION_XML;
 
 /**
  * Jenkins implementation of {@link Connector}
  * One {@link JenkinsConnector} is configured for one Jenkins job
+ * Requests are sent with the {@link JenkinsClient} shared by all the jobs of the Jenkins instance
+ *
+ * The factory links known to be displayed on the job description are remembered by the {@link JenkinsClient}, for each job.
+ * Adding such a link again sends no request for 'webhooks.jenkins.links.ttl.seconds' (system property, default 600)
+ * after the description was last read or written. After that, only a conditional request is sent
+ * if Jenkins gave a version (ETag or Last-Modified) of the configuration, and the links are forgotten
+ * as soon as Jenkins returns another version of the configuration.
+ *
+ * Several links are added with a single read-modify-write of the job configuration,
+ * and updates of a job by all its connectors are serialized.
  *
  * @author Stephane Tournie
  */
@@ -54,22 +69,57 @@ public class JenkinsConnector implements Connector {
 
     private static final Logger LOG = LoggerFactory.getLogger(JenkinsConnector.class);
 
+    private static final long DEFAULT_KNOWN_LINKS_TTL_SECONDS = Long.getLong("webhooks.jenkins.links.ttl.seconds", 600L);
+
+    private static final String           DESCRIPTION_ELEMENT = "description";
+    private static final XMLInputFactory  XML_INPUT_FACTORY   = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY  = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory  XML_EVENT_FACTORY   = XMLEventFactory.newInstance();
+
+    static {
+        // Job configurations don't need DTDs nor external entities, don't process them
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    // The client of the Jenkins instance
+    private final JenkinsClient client;
     // The name of the Jenkins job
-    private final String jobName;
+    private final String        jobName;
     // The URL of the XML configuration of the Jenkins job
-    private final String jobConfigXmlUrl;
+    private final String        jobConfigXmlUrl;
+    // How long known links are trusted without asking Jenkins
+    private final long          knownLinksTtlNanos;
 
     /**
      * Constructor
      *
-     * @param url
-     *         the URL of the Jenkins instance to connect to
+     * @param client
+     *         the client of the Jenkins instance to connect to
      * @param jobName
      *         the name of the Jenkins job
      */
-    public JenkinsConnector(final String url, final String jobName) {
+    public JenkinsConnector(final JenkinsClient client, final String jobName) {
+        this(client, jobName, DEFAULT_KNOWN_LINKS_TTL_SECONDS, SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param client
+     *         the client of the Jenkins instance to connect to
+     * @param jobName
+     *         the name of the Jenkins job
+     * @param knownLinksTtl
+     *         how long the links known to be displayed on the job description are trusted without asking Jenkins
+     * @param unit
+     *         the unit of knownLinksTtl
+     */
+    public JenkinsConnector(final JenkinsClient client, final String jobName, final long knownLinksTtl, final TimeUnit unit) {
+        this.client = client;
         this.jobName = jobName;
-        this.jobConfigXmlUrl = url + "/job/" + jobName + "/config.xml";
+        this.jobConfigXmlUrl = client.getBaseUrl() + "/job/" + jobName + "/config.xml";
+        this.knownLinksTtlNanos = unit.toNanos(knownLinksTtl);
     }
 
     /**
@@ -80,79 +130,268 @@ public class JenkinsConnector implements Connector {
      */
     @Override
     public void addFactoryLink(String factoryUrl) {
-        Optional<String> jobConfigXml = getCurrentJenkinsJobConfiguration();
-        jobConfigXml.ifPresent(xml -> {
-            Optional<Document> configDocument = xmlToDocument(xml);
-            configDocument.ifPresent(doc -> {
-                Element root = doc.getDocumentElement();
-                Node descriptionNode = root.getElementsByTagName("description").item(0);
-
-                if (!descriptionNode.getTextContent().contains(factoryUrl)) {
-                    updateJenkinsJobDescription(factoryUrl, doc, descriptionNode);
-                } else {
-                    LOG.debug("factory link {} already displayed on description of Jenkins job {}", factoryUrl, jobName);
-                }
-            });
-        });
+        addFactoryLinks(Collections.singleton(factoryUrl));
     }
 
-    protected Optional<String> getCurrentJenkinsJobConfiguration() {
-        Client client = ClientBuilder.newClient();
-        WebTarget target = client.target(jobConfigXmlUrl);
-        Invocation.Builder builder = target.request(APPLICATION_XML);
-        Response response = builder.get();
-        if (response.getStatus() == 200) {
-            String responseString = response.readEntity(String.class);
-            return Optional.of(responseString);
-        } else {
-            LOG.error(response.getStatus() + " - " + response.readEntity(String.class));
-            return Optional.empty();
-        }
+    /**
+     * Add factory links to configured Jenkins job, with a single update of the job configuration
+     *
+     * @param factoryUrls
+     *         the factory URLs to add
+     */
+    @Override
+    public void addFactoryLinks(Collection<String> factoryUrls) {
+        addFactoryLinksExclusively(factoryUrls);
+    }
+
+    /**
+     * Add factory links to configured Jenkins job with given executor, failures are reported in the result
+     *
+     * @param factoryUrls
+     *         the factory URLs to add
+     * @param executor
+     *         the executor that sends the requests to Jenkins
+     */
+    @Override
+    public CompletableFuture<ConnectorResult> addFactoryLinksAsync(Collection<String> factoryUrls, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> addFactoryLinksExclusively(factoryUrls), executor);
+    }
+
+    /**
+     * @return the URL of the job configuration, connectors of the same job are batched together
+     */
+    @Override
+    public Object getTarget() {
+        return jobConfigXmlUrl;
     }
 
-    protected void updateJenkinsJobDescription(String factoryUrl, Document configDocument, Node descriptionNode) {
-        String descriptionContent = descriptionNode.getTextContent();
-        descriptionNode.setTextContent(descriptionContent + "\n" + "<a href=\"" + factoryUrl + "\">" + factoryUrl + "</a>");
-        String updatedJobConfigXml = documentToXml(configDocument);
+    private ConnectorResult addFactoryLinksExclusively(Collection<String> factoryUrls) {
+        if (factoryUrls.isEmpty()) {
+            return ConnectorResult.success(jobConfigXmlUrl, factoryUrls);
+        }
+        final Lock jobLock = client.getJobLock(jobName);
+        try {
+            jobLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ConnectorResult.failure(jobConfigXmlUrl, factoryUrls,
+                                           "cancelled while waiting for other updates of Jenkins job " + jobName);
+        }
+        try {
+            return doAddFactoryLinks(factoryUrls);
+        } finally {
+            jobLock.unlock();
+        }
+    }
 
-        Client client = ClientBuilder.newClient();
-        WebTarget target = client.target(jobConfigXmlUrl);
-        Invocation.Builder builder = target.request(APPLICATION_XML).header(HttpHeaders.CONTENT_TYPE, APPLICATION_XML);
-        Response response = builder.post(Entity.xml(updatedJobConfigXml));
+    private ConnectorResult doAddFactoryLinks(Collection<String> factoryUrls) {
+        final AtomicReference<KnownLinks> knownLinks = client.getKnownLinks(jobName);
+        final KnownLinks known = knownLinks.get();
+        final boolean allKnown = known.factoryUrls.containsAll(factoryUrls);
+        if (allKnown && !known.isExpired(knownLinksTtlNanos)) {
+            LOG.debug("factory links {} recently found on description of Jenkins job {}", factoryUrls, jobName);
+            return ConnectorResult.success(jobConfigXmlUrl, factoryUrls);
+        }
+        Optional<JobConfiguration> jobConfiguration = getCurrentJenkinsJobConfiguration(allKnown ? known : KnownLinks.NONE);
+        if (!jobConfiguration.isPresent()) {
+            return ConnectorResult.failure(jobConfigXmlUrl, factoryUrls, "unable to get configuration of Jenkins job " + jobName);
+        }
+        final JobConfiguration configuration = jobConfiguration.get();
+        if (configuration.xml == null) {
+            LOG.debug("factory links {} already displayed on description of unchanged Jenkins job {}", factoryUrls, jobName);
+            knownLinks.set(new KnownLinks(known.etag, known.lastModified, known.factoryUrls, ImmutableSet.of()));
+            return ConnectorResult.success(jobConfigXmlUrl, factoryUrls);
+        }
 
-        if (response.getStatus() == 200) {
-            LOG.debug("factory link {} successfully added on description of Jenkins job ", factoryUrl, jobName);
+        // Links found in another version of the configuration may have been removed since
+        final Set<String> stillKnown = configuration.isSameVersion(known) ? known.factoryUrls : ImmutableSet.of();
+        final Optional<String> updatedJobConfigXml;
+        try {
+            updatedJobConfigXml = addLinksToDescription(configuration.xml, factoryUrls);
+        } catch (XMLStreamException e) {
+            LOG.error("Unable to read configuration of Jenkins job {}: {}", jobName, e.getLocalizedMessage());
+            return ConnectorResult.failure(jobConfigXmlUrl, factoryUrls, e.getLocalizedMessage());
+        }
+        if (updatedJobConfigXml.isPresent()) {
+            if (!updateJenkinsJobConfiguration(factoryUrls, updatedJobConfigXml.get())) {
+                return ConnectorResult.failure(jobConfigXmlUrl, factoryUrls, "unable to update configuration of Jenkins job " + jobName);
+            }
+            // The version of the updated configuration is unknown until it is fetched again
+            knownLinks.set(new KnownLinks(null, null, stillKnown, factoryUrls));
         } else {
-            LOG.error(response.getStatus() + " - " + response.readEntity(String.class));
+            LOG.debug("factory links {} already displayed on description of Jenkins job {}", factoryUrls, jobName);
+            knownLinks.set(new KnownLinks(configuration.etag, configuration.lastModified, stillKnown, factoryUrls));
         }
+        return ConnectorResult.success(jobConfigXmlUrl, factoryUrls);
     }
 
-    protected String documentToXml(Document configDocument) {
-        DOMSource domSource = new DOMSource(configDocument);
-        StringWriter writer = new StringWriter();
-        StreamResult result = new StreamResult(writer);
-        TransformerFactory tf = TransformerFactory.newInstance();
-        Transformer transformer = null;
+    /**
+     * Get the configuration of the job
+     *
+     * @param known
+     *         the links known to be displayed, the configuration is only returned if its version differs from theirs
+     * @return the configuration of the job, with a null XML if it is not modified, empty if it cannot be fetched
+     */
+    protected Optional<JobConfiguration> getCurrentJenkinsJobConfiguration(KnownLinks known) {
         try {
-            transformer = tf.newTransformer();
-            transformer.transform(domSource, result);
-        } catch (TransformerException e) {
-            e.printStackTrace();
+            return client.call(c -> {
+                Invocation.Builder builder = c.target(jobConfigXmlUrl).request(APPLICATION_XML);
+                if (known.etag != null) {
+                    builder = builder.header(HttpHeaders.IF_NONE_MATCH, known.etag);
+                }
+                if (known.lastModified != null) {
+                    builder = builder.header(HttpHeaders.IF_MODIFIED_SINCE, known.lastModified);
+                }
+                return builder.get();
+            }, response -> {
+                if (response.getStatus() == 304) {
+                    return Optional.of(new JobConfiguration(null, known.etag, known.lastModified));
+                }
+                if (response.getStatus() == 200) {
+                    return Optional.of(new JobConfiguration(response.readEntity(String.class),
+                                                            response.getHeaderString(HttpHeaders.ETAG),
+                                                            response.getHeaderString(HttpHeaders.LAST_MODIFIED)));
+                }
+                LOG.error(response.getStatus() + " - " + response.readEntity(String.class));
+                return Optional.<JobConfiguration>empty();
+            });
+        } catch (ProcessingException e) {
+            LOG.error("Unable to get configuration of Jenkins job {}: {}", jobName, e.getLocalizedMessage());
+            return Optional.empty();
         }
-        return writer.toString();
     }
 
-    protected Optional<Document> xmlToDocument(String jobConfigXml) {
-        Document document = null;
+    /**
+     * Copy a job configuration with factory links added at the end of the job description.
+     * The configuration is streamed, only the text of the first 'description' element is changed.
+     *
+     * @param jobConfigXml
+     *         the XML configuration of the job
+     * @param factoryUrls
+     *         the factory URLs to add, those already contained in the description are not added again
+     * @return the updated configuration, empty if the description already contains all the factory URLs
+     * @throws XMLStreamException
+     *         if the configuration is not valid XML or has no description
+     */
+    protected Optional<String> addLinksToDescription(String jobConfigXml, Collection<String> factoryUrls) throws XMLStreamException {
+        final StringWriter output = new StringWriter(jobConfigXml.length() + 256 * factoryUrls.size());
+        final XMLEventReader reader = XML_INPUT_FACTORY.createXMLEventReader(new StringReader(jobConfigXml));
+        final XMLEventWriter writer = XML_OUTPUT_FACTORY.createXMLEventWriter(output);
         try {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            document = builder.parse(new ByteArrayInputStream(jobConfigXml.getBytes("utf-8")));
-        } catch (ParserConfigurationException | SAXException | IOException e) {
-            e.printStackTrace();
+            boolean updated = false;
+            while (reader.hasNext()) {
+                final XMLEvent event = reader.nextEvent();
+                writer.add(event);
+                if (updated || !event.isStartElement()) {
+                    continue;
+                }
+                final StartElement element = event.asStartElement();
+                if (!DESCRIPTION_ELEMENT.equals(element.getName().getLocalPart())) {
+                    continue;
+                }
+
+                // Read the text of the description up to its end element, as DOM getTextContent() would
+                final StringBuilder description = new StringBuilder();
+                XMLEvent descriptionEvent = reader.nextEvent();
+                int depth = 0;
+                while (depth > 0 || !descriptionEvent.isEndElement()) {
+                    if (descriptionEvent.isCharacters()) {
+                        description.append(descriptionEvent.asCharacters().getData());
+                    } else if (descriptionEvent.isStartElement()) {
+                        depth++;
+                    } else if (descriptionEvent.isEndElement()) {
+                        depth--;
+                    }
+                    descriptionEvent = reader.nextEvent();
+                }
+                final Set<String> missingUrls = new LinkedHashSet<>();
+                for (String factoryUrl : factoryUrls) {
+                    if (description.indexOf(factoryUrl) < 0) {
+                        missingUrls.add(factoryUrl);
+                    }
+                }
+                if (missingUrls.isEmpty()) {
+                    return Optional.empty();
+                }
+                for (String factoryUrl : missingUrls) {
+                    description.append('\n').append("<a href=\"").append(factoryUrl).append("\">").append(factoryUrl).append("</a>");
+                }
+                writer.add(XML_EVENT_FACTORY.createCharacters(description.toString()));
+                writer.add(descriptionEvent);
+                updated = true;
+            }
+            if (!updated) {
+                throw new XMLStreamException("No " + DESCRIPTION_ELEMENT + " element found");
+            }
+            writer.flush();
+            return Optional.of(output.toString());
+        } finally {
+            reader.close();
+            writer.close();
         }
-        return Optional.ofNullable(document);
     }
-}
 
+    protected boolean updateJenkinsJobConfiguration(Collection<String> factoryUrls, String updatedJobConfigXml) {
+        try {
+            return client.call(c -> c.target(jobConfigXmlUrl)
+                                     .request(APPLICATION_XML)
+                                     .header(HttpHeaders.CONTENT_TYPE, APPLICATION_XML)
+                                     .post(Entity.xml(updatedJobConfigXml)), response -> {
+                if (response.getStatus() == 200) {
+                    LOG.debug("factory links {} successfully added on description of Jenkins job {}", factoryUrls, jobName);
+                    return true;
+                }
+                LOG.error(response.getStatus() + " - " + response.readEntity(String.class));
+                return false;
+            });
+        } catch (ProcessingException e) {
+            LOG.error("Unable to update description of Jenkins job {}: {}", jobName, e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Configuration of the job and its version, as returned by Jenkins
+     */
+    protected static final class JobConfiguration {
+        // The XML configuration, null if it is not modified
+        private final String xml;
+        private final String etag;
+        private final String lastModified;
+
+        JobConfiguration(final String xml, final String etag, final String lastModified) {
+            this.xml = xml;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean isSameVersion(final KnownLinks known) {
+            return (etag != null || lastModified != null)
+                   && Objects.equals(etag, known.etag) && Objects.equals(lastModified, known.lastModified);
+        }
+    }
+
+    /**
+     * Factory links known to be displayed on the job description, the version of the configuration they were found in,
+     * and when the description was read or written
+     */
+    protected static final class KnownLinks {
+        static final KnownLinks NONE = new KnownLinks(null, null, ImmutableSet.of(), ImmutableSet.of());
+
+        private final String      etag;
+        private final String      lastModified;
+        private final Set<String> factoryUrls;
+        private final long        confirmedAt;
+
+        KnownLinks(final String etag, final String lastModified, final Set<String> factoryUrls, final Collection<String> addedUrls) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.factoryUrls = ImmutableSet.<String>builder().addAll(factoryUrls).addAll(addedUrls).build();
+            this.confirmedAt = System.nanoTime();
+        }
+
+        boolean isExpired(final long ttlNanos) {
+            return System.nanoTime() - confirmedAt > ttlNanos;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.auth.shared.dto.Token;
+import org.eclipse.che.api.core.UnauthorizedException;
+import org.eclipse.che.api.core.rest.HttpJsonRequest;
+import org.eclipse.che.api.core.rest.HttpJsonResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for AuthTokenCache
+ *
+ * @author Stephane Tournie
+ */
+public class TestAuthTokenCache {
+
+    private AuthConnection authConnection;
+    private AuthTokenCache authTokenCache;
+
+    @Before
+    public void setUp() throws Exception {
+        final Token t1 = token("t1");
+        final Token t2 = token("t2");
+        final Token t3 = token("t3");
+        authConnection = mock(AuthConnection.class);
+        when(authConnection.authenticateUser(anyString(), anyString())).thenReturn(t1, t2, t3);
+    }
+
+    @After
+    public void tearDown() {
+        if (authTokenCache != null) {
+            authTokenCache.stop();
+        }
+    }
+
+    @Test
+    public void concurrentCallersShareOneAuthentication() throws Exception {
+        final CountDownLatch authenticating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Token t1 = token("t1");
+        when(authConnection.authenticateUser(anyString(), anyString())).thenAnswer(invocation -> {
+            authenticating.countDown();
+            release.await(5, SECONDS);
+            return t1;
+        });
+        authTokenCache = new AuthTokenCache(authConnection, 30, 5, MINUTES);
+        final ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tokens.add(callers.submit(authTokenCache::getToken));
+            }
+            assertTrue(authenticating.await(5, SECONDS));
+            // Let the other callers join the authentication in progress
+            Thread.sleep(100);
+            release.countDown();
+
+            for (Future<String> token : tokens) {
+                assertEquals("t1", token.get(5, SECONDS));
+            }
+            verify(authConnection, times(1)).authenticateUser(anyString(), anyString());
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void tokenIsReusedUntilInvalidated() throws Exception {
+        authTokenCache = new AuthTokenCache(authConnection, 30, 5, MINUTES);
+
+        assertEquals("t1", authTokenCache.getToken());
+        assertEquals("t1", authTokenCache.getToken());
+        verify(authConnection, times(1)).authenticateUser(anyString(), anyString());
+
+        authTokenCache.invalidate("t1");
+
+        assertNull(authTokenCache.peekToken());
+        assertEquals("t2", authTokenCache.getToken());
+        verify(authConnection, times(2)).authenticateUser(anyString(), anyString());
+    }
+
+    @Test
+    public void replacedTokenIsNotInvalidated() throws Exception {
+        authTokenCache = new AuthTokenCache(authConnection, 30, 5, MINUTES);
+        authTokenCache.getToken();
+        authTokenCache.invalidate("t1");
+        authTokenCache.getToken();
+
+        authTokenCache.invalidate("t1");
+
+        assertEquals("t2", authTokenCache.peekToken());
+    }
+
+    @Test
+    public void rejectedTokenIsInvalidatedAndRequestSentAgain() throws Exception {
+        authTokenCache = new AuthTokenCache(authConnection, 30, 5, MINUTES);
+        authTokenCache.getToken();
+        final HttpJsonResponse response = mock(HttpJsonResponse.class);
+        final HttpJsonRequest request = mock(HttpJsonRequest.class);
+        when(request.request()).thenThrow(new UnauthorizedException("Token expired")).thenReturn(response);
+
+        assertSame(response, authTokenCache.request(request));
+
+        verify(request, times(2)).request();
+        assertNull(authTokenCache.peekToken());
+        assertEquals("t2", authTokenCache.getToken());
+    }
+
+    @Test
+    public void tokenIsRefreshedInBackgroundBeforeItsLifetime() throws Exception {
+        authTokenCache = new AuthTokenCache(authConnection, 200, 100, MILLISECONDS);
+        assertEquals("t1", authTokenCache.getToken());
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!"t2".equals(authTokenCache.peekToken()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("t2", authTokenCache.getToken());
+    }
+
+    @Test
+    public void tokenIsNotRefreshedWithoutLifetime() throws Exception {
+        authTokenCache = new AuthTokenCache(authConnection, 0, 0, MILLISECONDS);
+        authTokenCache.getToken();
+
+        Thread.sleep(200);
+
+        assertEquals("t1", authTokenCache.getToken());
+        verify(authConnection, times(1)).authenticateUser(anyString(), anyString());
+    }
+
+    private static Token token(final String value) {
+        final Token token = mock(Token.class);
+        when(token.getValue()).thenReturn(value);
+        return token;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for DeliveryDeduplicator
+ *
+ * @author Stephane Tournie
+ */
+public class TestDeliveryDeduplicator {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void deliveryReceivedAgainIsDuplicate() {
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(1, HOURS, 100, null);
+
+        assertTrue(deduplicator.markIfNew("d1"));
+        assertFalse(deduplicator.markIfNew("d1"));
+        assertTrue(deduplicator.markIfNew("d2"));
+        assertEquals(1, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void deliveryWithoutIdIsNeverDuplicate() {
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(1, HOURS, 100, null);
+
+        assertTrue(deduplicator.markIfNew(null));
+        assertTrue(deduplicator.markIfNew(null));
+        assertTrue(deduplicator.markIfNew(""));
+        assertEquals(0, deduplicator.size());
+    }
+
+    @Test
+    public void deliveryIsForgottenAfterWindow() throws Exception {
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(50, MILLISECONDS, 100, null);
+        deduplicator.markIfNew("d1");
+
+        Thread.sleep(100);
+
+        assertTrue(deduplicator.markIfNew("d1"));
+        assertEquals(1, deduplicator.size());
+    }
+
+    @Test
+    public void oldestDeliveriesAreEvictedBeyondMaxSize() {
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(1, HOURS, 2, null);
+        deduplicator.markIfNew("d1");
+        deduplicator.markIfNew("d2");
+        deduplicator.markIfNew("d3");
+
+        assertEquals(2, deduplicator.size());
+        assertFalse(deduplicator.markIfNew("d3"));
+        assertTrue(deduplicator.markIfNew("d1"));
+    }
+
+    @Test
+    public void forgottenDeliveryIsAcceptedAgain() {
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(1, HOURS, 100, null);
+        deduplicator.markIfNew("d1");
+
+        deduplicator.forget("d1");
+
+        assertTrue(deduplicator.markIfNew("d1"));
+    }
+
+    @Test
+    public void deliveriesAreRememberedAfterRestart() {
+        final Path file = folder.getRoot().toPath().resolve("deliveries.dat");
+        final DeliveryDeduplicator deduplicator = new DeliveryDeduplicator(1, HOURS, 100, file);
+        deduplicator.markIfNew("d1");
+        deduplicator.stop();
+
+        final DeliveryDeduplicator restarted = new DeliveryDeduplicator(1, HOURS, 100, file);
+
+        assertFalse(restarted.markIfNew("d1"));
+        assertTrue(restarted.markIfNew("d2"));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for EndpointGuard
+ *
+ * @author Stephane Tournie
+ */
+public class TestEndpointGuard {
+
+    private static final String ENDPOINT = "jenkins.codenvy.com";
+
+    @Test
+    public void circuitOpensWhenFailureRateIsReached() {
+        final EndpointGuard guard = new EndpointGuard(ENDPOINT, 4, 0, 4, 50, 10000, 60000);
+
+        call(guard, false);
+        call(guard, true);
+        call(guard, false);
+        assertEquals(EndpointGuard.State.CLOSED, guard.getState());
+        call(guard, true);
+
+        assertEquals(EndpointGuard.State.OPEN, guard.getState());
+        assertFalse(guard.tryEnter());
+        assertEquals(1, guard.getRejectedCount());
+    }
+
+    @Test
+    public void circuitStaysClosedUntilTheWindowIsFull() {
+        final EndpointGuard guard = new EndpointGuard(ENDPOINT, 4, 0, 4, 50, 10000, 60000);
+
+        call(guard, true);
+        call(guard, true);
+        call(guard, true);
+
+        assertEquals(EndpointGuard.State.CLOSED, guard.getState());
+        assertEquals(100, guard.getFailureRate());
+    }
+
+    @Test
+    public void slowCallIsAFailure() {
+        final EndpointGuard guard = new EndpointGuard(ENDPOINT, 4, 0, 1, 50, 100, 60000);
+
+        assertTrue(guard.tryEnter());
+        guard.exit(System.nanoTime() - SECONDS.toNanos(1), false);
+
+        assertEquals(EndpointGuard.State.OPEN, guard.getState());
+    }
+
+    @Test
+    public void halfOpenCircuitLetsOneTrialThrough() throws Exception {
+        final EndpointGuard guard = openGuard();
+        Thread.sleep(100);
+
+        assertTrue(guard.tryEnter());
+        assertEquals(EndpointGuard.State.HALF_OPEN, guard.getState());
+        assertFalse(guard.tryEnter());
+    }
+
+    @Test
+    public void successfulTrialClosesTheCircuit() throws Exception {
+        final EndpointGuard guard = openGuard();
+        Thread.sleep(100);
+
+        call(guard, false);
+
+        assertEquals(EndpointGuard.State.CLOSED, guard.getState());
+        assertEquals(0, guard.getFailureRate());
+        assertTrue(guard.tryEnter());
+    }
+
+    @Test
+    public void failedTrialOpensTheCircuitAgain() throws Exception {
+        final EndpointGuard guard = openGuard();
+        Thread.sleep(100);
+
+        call(guard, true);
+
+        assertEquals(EndpointGuard.State.OPEN, guard.getState());
+        assertFalse(guard.tryEnter());
+    }
+
+    @Test
+    public void callIsRejectedWhenTooManyCallsAreRunning() {
+        final EndpointGuard guard = new EndpointGuard(ENDPOINT, 1, 10, 4, 50, 10000, 60000);
+
+        assertTrue(guard.tryEnter());
+        assertFalse(guard.tryEnter());
+        assertEquals(1, guard.getActiveCount());
+        assertEquals(1, guard.getRejectedCount());
+
+        guard.exit(System.nanoTime(), false);
+        assertTrue(guard.tryEnter());
+    }
+
+    private static EndpointGuard openGuard() {
+        final EndpointGuard guard = new EndpointGuard(ENDPOINT, 4, 0, 1, 50, 10000, 50);
+        call(guard, true);
+        assertEquals(EndpointGuard.State.OPEN, guard.getState());
+        return guard;
+    }
+
+    private static void call(final EndpointGuard guard, final boolean failed) {
+        assertTrue(guard.tryEnter());
+        guard.exit(System.nanoTime(), failed);
+    }
+}
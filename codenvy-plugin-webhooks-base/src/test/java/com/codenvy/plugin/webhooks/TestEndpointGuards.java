@@ -0,0 +1,90 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.core.NotFoundException;
+import org.eclipse.che.api.core.ServerException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for EndpointGuards
+ *
+ * @author Stephane Tournie
+ */
+public class TestEndpointGuards {
+
+    private final EndpointGuards guards = new EndpointGuards();
+
+    @Test
+    public void callsToAHostShareAGuard() {
+        assertSame(guards.get("http://jenkins.codenvy.com:8080/job/che-build/config.xml"),
+                   guards.get("http://jenkins.codenvy.com:8080/crumbIssuer/api/json"));
+        assertNotSame(guards.get("http://jenkins.codenvy.com:8080/job/che-build/config.xml"),
+                      guards.get("http://jenkins.codenvy.com:9090/job/che-build/config.xml"));
+    }
+
+    @Test
+    public void groupOfCallsHasItsOwnGuard() {
+        final String url = "https://codenvy.com/api/auth/login";
+
+        assertSame(guards.get(url, "auth"), guards.get("https://codenvy.com/api/auth/refresh", "auth"));
+        assertNotSame(guards.get(url), guards.get(url, "auth"));
+    }
+
+    @Test
+    public void hostIsReadFromUrlsThatAreNotValidUris() {
+        assertEquals("account.visualstudio.com",
+                     EndpointGuards.getHost("https://account.visualstudio.com/DefaultCollection/My Project/_apis/git"));
+        assertEquals("tfs.codenvy.com:8443", EndpointGuards.getHost("https://user:p@ss@tfs.codenvy.com:8443/My Collection?a=b c"));
+        assertEquals("codenvy.com", EndpointGuards.getHost("https://codenvy.com"));
+        assertEquals("unknown", EndpointGuards.getHost("/api/factory"));
+    }
+
+    @Test
+    public void serverErrorIsAFailure() throws Exception {
+        final String url = "https://codenvy.com/api/factory";
+        try {
+            guards.call(url, () -> {
+                throw new ServerException("Internal error");
+            });
+            fail("The error of the call should be thrown");
+        } catch (ServerException e) {
+            assertEquals("Internal error", e.getMessage());
+        }
+
+        assertEquals(100, guards.get(url).getFailureRate());
+    }
+
+    @Test
+    public void apiErrorIsNotAFailure() throws Exception {
+        final String url = "https://codenvy.com/api/factory";
+        try {
+            guards.call(url, () -> {
+                throw new NotFoundException("No factory");
+            });
+            fail("The error of the call should be thrown");
+        } catch (NotFoundException e) {
+            assertEquals("No factory", e.getMessage());
+        }
+
+        assertEquals("factory", guards.call(url, () -> "factory"));
+        assertEquals(0, guards.get(url).getFailureRate());
+    }
+}
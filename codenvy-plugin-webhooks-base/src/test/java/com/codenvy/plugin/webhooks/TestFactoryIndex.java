@@ -0,0 +1,145 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.eclipse.che.api.factory.shared.dto.Factory;
+import org.eclipse.che.api.workspace.shared.dto.ProjectConfigDto;
+import org.eclipse.che.api.workspace.shared.dto.SourceStorageDto;
+import org.eclipse.che.api.workspace.shared.dto.WorkspaceConfigDto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for FactoryIndex
+ *
+ * @author Stephane Tournie
+ */
+public class TestFactoryIndex {
+
+    private static final String REPOSITORY = "https://github.com/codenvy/che";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path         file;
+    private FactoryIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.getRoot().toPath().resolve("factories-index.dat");
+        index = new FactoryIndex(file, 1, HOURS);
+    }
+
+    @After
+    public void tearDown() {
+        index.stop();
+    }
+
+    @Test
+    public void unknownFactoriesAreCandidates() {
+        assertEquals(ImmutableSet.of("f1", "f2"), index.getCandidates(ImmutableSet.of("f1", "f2"), REPOSITORY, "master"));
+    }
+
+    @Test
+    public void factoriesOfOtherRepositoriesOrBranchesAreNotCandidates() {
+        index.index(factory("f1", REPOSITORY + ".git", "dev"));
+        index.index(factory("f2", "https://github.com/codenvy/other", "dev"));
+        index.index(factory("f3", REPOSITORY, "feature"));
+
+        final Set<String> candidates = index.getCandidates(ImmutableSet.of("f1", "f2", "f3"), "https://GitHub.com/codenvy/che/", "dev");
+        assertEquals(ImmutableSet.of("f1"), candidates);
+    }
+
+    @Test
+    public void masterMatchesFactoriesOfAnyBranch() {
+        index.index(factory("f1", REPOSITORY, "dev"));
+        index.index(factory("f2", REPOSITORY, null));
+
+        assertEquals(ImmutableSet.of("f1", "f2"), index.getCandidates(ImmutableSet.of("f1", "f2"), REPOSITORY, "master"));
+    }
+
+    @Test
+    public void reindexedFactoryReplacesItsLocations() {
+        index.index(factory("f1", REPOSITORY, "dev"));
+        index.index(factory("f1", REPOSITORY, "feature"));
+
+        assertEquals(Collections.emptySet(), index.getCandidates(ImmutableSet.of("f1"), REPOSITORY, "dev"));
+        assertEquals(ImmutableSet.of("f1"), index.getCandidates(ImmutableSet.of("f1"), REPOSITORY, "feature"));
+    }
+
+    @Test
+    public void expiredFactoriesAreCandidates() throws Exception {
+        index.stop();
+        index = new FactoryIndex(file, 1, MILLISECONDS);
+        index.index(factory("f1", REPOSITORY, "dev"));
+        Thread.sleep(10);
+
+        assertEquals(ImmutableSet.of("f1"), index.getCandidates(ImmutableSet.of("f1"), REPOSITORY, "feature"));
+    }
+
+    @Test
+    public void removedAndClearedFactoriesAreCandidates() {
+        index.index(factory("f1", REPOSITORY, "dev"));
+        index.index(factory("f2", REPOSITORY, "dev"));
+        index.remove("f1");
+
+        assertEquals(ImmutableSet.of("f1"), index.getCandidates(ImmutableSet.of("f1", "f2"), REPOSITORY, "feature"));
+
+        index.clear();
+
+        assertEquals(ImmutableSet.of("f1", "f2"), index.getCandidates(ImmutableSet.of("f1", "f2"), REPOSITORY, "feature"));
+    }
+
+    @Test
+    public void indexIsLoadedAfterRestart() {
+        index.index(factory("f1", REPOSITORY, "dev"));
+        index.stop();
+
+        index = new FactoryIndex(file, 1, HOURS);
+
+        final Set<String> ids = ImmutableSet.of("f1");
+        assertEquals(Collections.emptySet(), index.getCandidates(ids, REPOSITORY, "feature"));
+        assertEquals(ids, index.getCandidates(ids, REPOSITORY, "dev"));
+    }
+
+    private static Factory factory(final String id, final String location, final String branch) {
+        final SourceStorageDto source = mock(SourceStorageDto.class);
+        when(source.getLocation()).thenReturn(location);
+        when(source.getParameters()).thenReturn(branch == null ? Collections.emptyMap() : Collections.singletonMap("branch", branch));
+        final ProjectConfigDto project = mock(ProjectConfigDto.class);
+        when(project.getSource()).thenReturn(source);
+        final WorkspaceConfigDto workspace = mock(WorkspaceConfigDto.class);
+        when(workspace.getProjects()).thenReturn(Collections.singletonList(project));
+        final Factory factory = mock(Factory.class);
+        when(factory.getId()).thenReturn(id);
+        when(factory.getWorkspace()).thenReturn(workspace);
+        return factory;
+    }
+}
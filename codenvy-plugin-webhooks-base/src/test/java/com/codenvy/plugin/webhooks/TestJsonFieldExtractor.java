@@ -0,0 +1,107 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for JsonFieldExtractor
+ *
+ * @author Stephane Tournie
+ */
+public class TestJsonFieldExtractor {
+
+    // Large enough to exceed the buffers of the reader
+    private static final String PADDING = Strings.repeat("x", 100000);
+
+    @Test
+    public void nestedFieldsAreExtracted() throws Exception {
+        final JsonFieldExtractor extractor =
+                new JsonFieldExtractor("id", "resource.merged", "resource.count", "resource.fields.System.TeamProject", "resource.none");
+
+        final Map<String, String> fields = extractor.extract(json("{\"id\":\"1\",\"resource\":{\"merged\":true,\"count\":42,"
+                                                                  + "\"fields\":{\"System.TeamProject\":\"project\"},\"none\":null}}"));
+
+        assertEquals(5, fields.size());
+        assertEquals("1", fields.get("id"));
+        assertEquals("true", fields.get("resource.merged"));
+        assertEquals("42", fields.get("resource.count"));
+        assertEquals("project", fields.get("resource.fields.System.TeamProject"));
+        assertTrue(fields.containsKey("resource.none"));
+    }
+
+    @Test
+    public void arraysAndUnwantedObjectsAreSkipped() throws Exception {
+        final JsonFieldExtractor extractor = new JsonFieldExtractor("ref", "repository.html_url");
+
+        final Map<String, String> fields = extractor.extract(json("{\"commits\":[{\"ref\":\"in-array\"}],\"sender\":{\"ref\":\"other\"},"
+                                                                  + "\"repository\":{\"owner\":{\"html_url\":\"owner\"},"
+                                                                  + "\"html_url\":\"https://github.com/codenvy/che\"},"
+                                                                  + "\"ref\":\"refs/heads/master\"}"));
+
+        assertEquals(ImmutableMap.of("ref", "refs/heads/master", "repository.html_url", "https://github.com/codenvy/che"), fields);
+    }
+
+    @Test
+    public void readingStopsOnceAllFieldsAreFound() throws Exception {
+        final JsonFieldExtractor extractor = new JsonFieldExtractor("ref");
+        final byte[] document = ("{\"ref\":\"master\",\"padding\":\"" + PADDING + "\"}").getBytes(UTF_8);
+        final CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(document));
+
+        assertEquals(ImmutableMap.of("ref", "master"), extractor.extract(in));
+        assertTrue(in.getCount() < document.length / 2);
+    }
+
+    @Test
+    public void readingStopsWhenFieldsAreComplete() throws Exception {
+        final JsonFieldExtractor extractor = new JsonFieldExtractor("action", "pull_request.merged");
+        final byte[] document =
+                ("{\"action\":\"opened\",\"padding\":\"" + PADDING + "\",\"pull_request\":{\"merged\":false}}").getBytes(UTF_8);
+        final CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(document));
+
+        final Map<String, String> fields = extractor.extract(in, values -> "opened".equals(values.get("action")));
+
+        assertEquals(ImmutableMap.of("action", "opened"), fields);
+        assertTrue(in.getCount() < document.length / 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void documentMustBeAnObject() throws Exception {
+        new JsonFieldExtractor("ref").extract(json("[\"ref\"]"));
+    }
+
+    @Test
+    public void pathsAreExposed() {
+        assertEquals(ImmutableSet.of("a", "b.c"), new JsonFieldExtractor("a", "b.c").getPaths());
+    }
+
+    private static InputStream json(final String json) {
+        return new ByteArrayInputStream(json.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for PartitionedExecutor
+ *
+ * @author Stephane Tournie
+ */
+public class TestPartitionedExecutor {
+
+    // "a" and "b" go to different lanes of a 2 lanes executor
+    private static final String KEY_A = "a";
+    private static final String KEY_B = "b";
+
+    private PartitionedExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new PartitionedExecutor("test", 2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void tasksWithSameKeyRunInSubmissionOrder() throws Exception {
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int task = i;
+            executor.execute(KEY_A, () -> {
+                order.add(task);
+                done.countDown();
+            });
+        }
+
+        assertTrue(done.await(5, SECONDS));
+        assertEquals(IntStream.range(0, 100).boxed().collect(Collectors.toList()), new ArrayList<>(order));
+    }
+
+    @Test
+    public void tasksWithDifferentKeysRunInParallel() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(2);
+        for (String key : new String[]{KEY_A, KEY_B}) {
+            executor.execute(key, () -> {
+                bothStarted.countDown();
+                try {
+                    // Never reached if the other task waits for this one
+                    if (bothStarted.await(5, SECONDS)) {
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+
+        assertTrue(done.await(5, SECONDS));
+    }
+
+    @Test
+    public void waitingTasksAndBusyLanesAreCounted() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(KEY_A, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, SECONDS));
+        executor.execute(KEY_A, () -> {
+        });
+
+        assertEquals(1, executor.getBusyLanes());
+        assertEquals(1, executor.getWaitingTasks());
+
+        release.countDown();
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void tasksAreRejectedAfterShutdown() {
+        executor.shutdownNow();
+
+        executor.execute(KEY_A, () -> {
+        });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void atLeastOneLaneIsRequired() {
+        new PartitionedExecutor("test", 0);
+    }
+}
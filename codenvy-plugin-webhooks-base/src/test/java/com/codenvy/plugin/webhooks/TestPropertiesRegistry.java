@@ -0,0 +1,186 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.eclipse.che.api.core.ServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for PropertiesRegistry
+ *
+ * @author Stephane Tournie
+ */
+public class TestPropertiesRegistry {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path         file;
+    private TestRegistry registry;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.getRoot().toPath().resolve("test.properties");
+        write("value=1");
+        registry = new TestRegistry(file);
+    }
+
+    @After
+    public void tearDown() {
+        registry.stop();
+    }
+
+    @Test
+    public void propertiesAreLoadedOnStart() throws Exception {
+        try {
+            registry.get();
+            fail("The registry should not be loaded before being started");
+        } catch (ServerException e) {
+            // expected
+        }
+
+        registry.start();
+
+        assertEquals("1", registry.get());
+        assertEquals(1, registry.parsed.get());
+    }
+
+    @Test
+    public void propertiesAreReloadedWhenTheFileChanges() throws Exception {
+        registry.start();
+
+        write("value=2");
+
+        assertEquals("2", awaitValue("2"));
+    }
+
+    @Test
+    public void emptyFileDoesNotReplaceTheProperties() throws Exception {
+        registry.start();
+
+        write("");
+        registry.reload();
+
+        assertEquals("1", registry.get());
+    }
+
+    @Test
+    public void unparsableFileDoesNotReplaceTheProperties() throws Exception {
+        registry.start();
+
+        write("value=\\uzzzz");
+        registry.reload();
+        assertEquals("1", registry.get());
+
+        write("value=invalid");
+        registry.reload();
+        assertEquals("1", registry.get());
+    }
+
+    @Test
+    public void fileBeingWrittenIsNotLoaded() throws Exception {
+        registry.start();
+
+        // Changes closer than the reload delay (500 ms by default) are loaded once
+        for (int i = 2; i <= 6; i++) {
+            write("value=" + i);
+            Thread.sleep(100);
+            assertEquals("1", registry.get());
+        }
+
+        assertEquals("6", awaitValue("6"));
+        assertEquals(2, registry.parsed.get());
+    }
+
+    @Test
+    public void storedPropertiesAreKept() throws Exception {
+        registry.start();
+        final ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> stores = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final String key = "key" + i;
+                stores.add(writers.submit(() -> {
+                    registry.storeProperty(key, "stored");
+                    return null;
+                }));
+            }
+            for (Future<?> store : stores) {
+                store.get(10, SECONDS);
+            }
+        } finally {
+            writers.shutdownNow();
+        }
+
+        final Properties properties = new Properties();
+        properties.load(Files.newInputStream(file));
+        assertEquals(21, properties.size());
+        assertEquals("1", properties.getProperty("value"));
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+        assertEquals("1", registry.get());
+    }
+
+    private String awaitValue(final String expected) throws Exception {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (!expected.equals(registry.get()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        return registry.get();
+    }
+
+    private void write(final String content) throws Exception {
+        Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Registry of the 'value' property, which must be a number
+     */
+    private static final class TestRegistry extends PropertiesRegistry<String> {
+
+        private final AtomicInteger parsed = new AtomicInteger();
+
+        private TestRegistry(final Path file) {
+            super(file.toString());
+        }
+
+        @Override
+        protected String parse(Properties properties) {
+            final String value = properties.getProperty("value");
+            Integer.parseInt(value);
+            parsed.incrementAndGet();
+            return value;
+        }
+    }
+}
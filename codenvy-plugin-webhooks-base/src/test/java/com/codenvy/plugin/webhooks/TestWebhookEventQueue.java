@@ -0,0 +1,232 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for WebhookEventQueue
+ *
+ * @author Stephane Tournie
+ */
+public class TestWebhookEventQueue {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path              directory;
+    private List<String>      handled;
+    private WebhookEventQueue queue;
+
+    @Before
+    public void setUp() {
+        directory = folder.getRoot().toPath().resolve("events");
+        handled = new CopyOnWriteArrayList<>();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.stop();
+        }
+    }
+
+    @Test
+    public void eventsAreProcessedAndRemoved() throws Exception {
+        queue = new WebhookEventQueue(directory, 2, event -> handled.add(payload(event)));
+        queue.start();
+
+        queue.enqueue(event("repo1", "e1"));
+        queue.enqueue(event("repo2", "e2"));
+
+        waitFor(() -> handled.size() == 2 && queue.getDepth() == 0);
+        assertEquals(0, queue.getRetryCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void enqueueFailsWhenNotStarted() throws Exception {
+        queue = new WebhookEventQueue(directory, 1, event -> handled.add(payload(event)));
+
+        queue.enqueue(event("repo", "e1"));
+    }
+
+    @Test
+    public void onlyUnprocessedEventsAreRecoveredAfterRestart() throws Exception {
+        // Failed events wait for a retry that never comes before the restart
+        queue = new WebhookEventQueue(directory, 1, 5, 1, HOURS, event -> {
+            handled.add(payload(event));
+            if (payload(event).startsWith("fail")) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        queue.start();
+        queue.enqueue(event("repo", "ok1"));
+        queue.enqueue(event("repo", "fail1"));
+        queue.enqueue(event("repo2", "ok2"));
+        waitFor(() -> handled.size() == 3);
+        queue.stop();
+
+        final List<String> recovered = new CopyOnWriteArrayList<>();
+        queue = new WebhookEventQueue(directory, 1, event -> recovered.add(payload(event)));
+        queue.start();
+
+        waitFor(() -> queue.getDepth() == 0);
+        assertEquals(1, recovered.size());
+        assertEquals("fail1", recovered.get(0));
+    }
+
+    @Test
+    public void failingEventIsRetriedThenMovedToDeadLetters() throws Exception {
+        queue = new WebhookEventQueue(directory, 1, 2, 1, MILLISECONDS, event -> {
+            handled.add(payload(event));
+            throw new IllegalStateException("failed");
+        });
+        queue.start();
+
+        queue.enqueue(event("repo", "e1"));
+
+        waitFor(() -> queue.getDeadLetterCount() == 1);
+        waitFor(() -> queue.getDepth() == 0);
+        assertEquals(3, handled.size());
+        assertEquals(2, queue.getRetryCount());
+        assertTrue(Files.size(directory.resolve("dead-letters.log")) > 0);
+    }
+
+    @Test
+    public void retryWaitsForTheRequestedDelay() throws Exception {
+        final List<Long> attempts = new CopyOnWriteArrayList<>();
+        queue = new WebhookEventQueue(directory, 1, 2, 1, MILLISECONDS, event -> {
+            attempts.add(System.nanoTime());
+            if (attempts.size() == 1) {
+                throw new RetryLaterException("throttled", 300);
+            }
+        });
+        queue.start();
+
+        queue.enqueue(event("repo", "e1"));
+
+        waitFor(() -> queue.getDepth() == 0);
+        assertEquals(2, attempts.size());
+        assertTrue(MILLISECONDS.convert(attempts.get(1) - attempts.get(0), NANOSECONDS) >= 300);
+    }
+
+    @Test
+    public void eventsOfAPartitionWaitForTheRetryOfAFailedEvent() throws Exception {
+        queue = new WebhookEventQueue(directory, 2, 5, 300, MILLISECONDS, event -> {
+            handled.add(payload(event));
+            if (handled.size() == 1) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        queue.start();
+
+        queue.enqueue(event("repo", "a"));
+        queue.enqueue(event("repo", "b"));
+        queue.enqueue(event("repo", "c"));
+
+        waitFor(() -> queue.getDepth() == 0);
+        assertEquals(Arrays.asList("a", "a", "b", "c"), handled);
+    }
+
+    @Test
+    public void otherPartitionsAreNotHeldBack() throws Exception {
+        queue = new WebhookEventQueue(directory, 1, 5, 1, HOURS, event -> {
+            handled.add(payload(event));
+            if (payload(event).startsWith("fail")) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        queue.start();
+
+        queue.enqueue(event("repo1", "fail"));
+        queue.enqueue(event("repo1", "held"));
+        queue.enqueue(event("repo2", "ok"));
+
+        waitFor(() -> handled.size() == 2 && queue.getDepth() == 2);
+        assertEquals(Arrays.asList("fail", "ok"), handled);
+    }
+
+    @Test
+    public void eventsOfAPartitionAreReleasedByADeadLetter() throws Exception {
+        queue = new WebhookEventQueue(directory, 1, 1, 1, MILLISECONDS, event -> {
+            handled.add(payload(event));
+            if (payload(event).startsWith("fail")) {
+                throw new IllegalStateException("failed");
+            }
+        });
+        queue.start();
+
+        queue.enqueue(event("repo", "fail"));
+        queue.enqueue(event("repo", "ok"));
+
+        waitFor(() -> queue.getDepth() == 0);
+        assertEquals(Arrays.asList("fail", "fail", "ok"), handled);
+        assertEquals(1, queue.getDeadLetterCount());
+    }
+
+    @Test
+    public void recordWithInvalidLengthIsSkipped() throws Exception {
+        Files.createDirectories(directory);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(directory.resolve("segment-00000000000000000001.log")))) {
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeLong(0);
+        }
+        queue = new WebhookEventQueue(directory, 1, event -> handled.add(payload(event)));
+
+        queue.start();
+        queue.enqueue(event("repo", "e1"));
+
+        waitFor(() -> handled.size() == 1 && queue.getDepth() == 0);
+        assertEquals("e1", handled.get(0));
+    }
+
+    private static WebhookEvent event(final String partitionKey, final String payload) {
+        return new WebhookEvent("push", payload, partitionKey, System.currentTimeMillis(), payload.getBytes(UTF_8));
+    }
+
+    private static String payload(final WebhookEvent event) {
+        return new String(event.getPayload(), UTF_8);
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition not met within " + TIMEOUT_MS + " ms", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for ConnectorDispatcher
+ *
+ * @author Stephane Tournie
+ */
+public class TestConnectorDispatcher {
+
+    private static final String FACTORY_1 = "https://codenvy.com/f?id=factory1";
+    private static final String FACTORY_2 = "https://codenvy.com/f?id=factory2";
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private ConnectorDispatcher dispatcher;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        dispatcher.stop();
+    }
+
+    @Test
+    public void oneResultPerTarget() {
+        dispatcher = new ConnectorDispatcher(2, 10, 10, SECONDS);
+        final Connector first = factoryUrl -> {};
+        final Connector second = factoryUrl -> {};
+        final FactoryLinkBatch batch = new FactoryLinkBatch();
+        batch.add(first, FACTORY_1);
+        batch.add(second, FACTORY_1);
+        batch.add(first, FACTORY_2);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(batch).join();
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).isSuccess());
+        assertEquals(ImmutableList.of(FACTORY_1, FACTORY_2), results.get(0).getFactoryUrls());
+        assertTrue(results.get(1).isSuccess());
+        assertEquals(ImmutableList.of(FACTORY_1), results.get(1).getFactoryUrls());
+        assertEquals(0, dispatcher.getFailureCount());
+    }
+
+    @Test
+    public void targetsAreCalledInParallel() {
+        dispatcher = new ConnectorDispatcher(2, 10, 10, SECONDS);
+        // Each connector waits for the other one to be called
+        final CountDownLatch called = new CountDownLatch(2);
+        final FactoryLinkBatch batch = new FactoryLinkBatch();
+        batch.add(factoryUrl -> {
+            called.countDown();
+            await(called);
+        }, FACTORY_1);
+        batch.add(factoryUrl -> {
+            called.countDown();
+            await(called);
+        }, FACTORY_1);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(batch).join();
+
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+    }
+
+    @Test
+    public void failingConnectorDoesNotFailOtherTargets() {
+        dispatcher = new ConnectorDispatcher(2, 10, 10, SECONDS);
+        final FactoryLinkBatch batch = new FactoryLinkBatch();
+        batch.add(factoryUrl -> {
+            throw new IllegalStateException("Jenkins is down");
+        }, FACTORY_1);
+        batch.add(factoryUrl -> {}, FACTORY_1);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(batch).join();
+
+        assertFalse(results.get(0).isSuccess());
+        assertTrue(results.get(0).getError().contains("Jenkins is down"));
+        assertTrue(results.get(1).isSuccess());
+        assertEquals(1, dispatcher.getFailureCount());
+    }
+
+    @Test
+    public void timedOutCallIsInterrupted() throws Exception {
+        dispatcher = new ConnectorDispatcher(1, 10, 100, MILLISECONDS);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final FactoryLinkBatch batch = new FactoryLinkBatch();
+        batch.add(factoryUrl -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        }, FACTORY_1);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(batch).join();
+
+        assertFalse(results.get(0).isSuccess());
+        assertTrue(results.get(0).getError().startsWith("no answer"));
+        assertTrue(interrupted.await(5, SECONDS));
+        assertEquals(1, dispatcher.getFailureCount());
+    }
+
+    @Test
+    public void timedOutCallIsRemovedFromTheQueue() throws Exception {
+        dispatcher = new ConnectorDispatcher(1, 10, 100, MILLISECONDS);
+        final FactoryLinkBatch blocking = new FactoryLinkBatch();
+        // Keeps the only thread busy, even once interrupted
+        blocking.add(factoryUrl -> Uninterruptibles.awaitUninterruptibly(release, 5, SECONDS), FACTORY_1);
+        dispatcher.dispatch(blocking);
+        final FactoryLinkBatch queued = new FactoryLinkBatch();
+        queued.add(factoryUrl -> {}, FACTORY_2);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(queued).join();
+
+        assertFalse(results.get(0).isSuccess());
+        // The call is removed right after its result is completed
+        final long deadline = System.nanoTime() + SECONDS.toNanos(5);
+        while (dispatcher.getQueuedCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, dispatcher.getQueuedCount());
+    }
+
+    @Test
+    public void callIsRejectedWhenTheQueueIsFull() {
+        dispatcher = new ConnectorDispatcher(1, 1, 10, SECONDS);
+        final FactoryLinkBatch blocking = new FactoryLinkBatch();
+        blocking.add(factoryUrl -> await(release), FACTORY_1);
+        blocking.add(factoryUrl -> await(release), FACTORY_1);
+        dispatcher.dispatch(blocking);
+        final FactoryLinkBatch rejected = new FactoryLinkBatch();
+        rejected.add(factoryUrl -> {}, FACTORY_2);
+
+        final List<ConnectorResult> results = dispatcher.dispatch(rejected).join();
+
+        assertFalse(results.get(0).isSuccess());
+        assertEquals("too many connector calls pending", results.get(0).getError());
+        assertEquals(1, dispatcher.getFailureCount());
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(5, SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.connectors;
+
+import com.codenvy.plugin.webhooks.EndpointGuards;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.ws.rs.client.Client;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Unit tests for JenkinsConnector
+ *
+ * @author Stephane Tournie
+ */
+public class TestJenkinsConnector {
+
+    private static final String JENKINS_URL = "http://jenkins.codenvy.com";
+    private static final String JOB_NAME    = "che-build";
+    private static final String FACTORY_1   = "https://codenvy.com/f?id=factory1";
+    private static final String FACTORY_2   = "https://codenvy.com/f?id=factory2";
+
+    private JenkinsClient client;
+
+    @Before
+    public void setUp() {
+        client = new JenkinsClient(JENKINS_URL, mock(Client.class), new EndpointGuards().get(JENKINS_URL), 2, 1000);
+    }
+
+    @Test
+    public void missingLinksAreAppendedToDescription() throws Exception {
+        final JenkinsConnector connector = new JenkinsConnector(client, JOB_NAME);
+
+        final Optional<String> updated = connector.addLinksToDescription(config("Build of Che"), ImmutableList.of(FACTORY_1, FACTORY_2));
+
+        assertTrue(updated.isPresent());
+        final Document document = parse(updated.get());
+        assertEquals("Build of Che\n" + link(FACTORY_1) + "\n" + link(FACTORY_2),
+                     document.getElementsByTagName("description").item(0).getTextContent());
+        // The rest of the configuration is copied as is
+        assertEquals("false", document.getElementsByTagName("disabled").item(0).getTextContent());
+        assertEquals("hudson.plugins.git.GitSCM", document.getElementsByTagName("scm").item(0).getAttributes()
+                                                          .getNamedItem("class").getNodeValue());
+    }
+
+    @Test
+    public void existingLinksAreNotAddedAgain() throws Exception {
+        final JenkinsConnector connector = new JenkinsConnector(client, JOB_NAME);
+        final String description = "Build of Che\n" + link(FACTORY_1).replace("<", "&lt;").replace(">", "&gt;");
+
+        assertFalse(connector.addLinksToDescription(config(description), ImmutableList.of(FACTORY_1)).isPresent());
+
+        final Optional<String> updated = connector.addLinksToDescription(config(description), ImmutableList.of(FACTORY_1, FACTORY_2));
+        assertTrue(updated.isPresent());
+        final String text = parse(updated.get()).getElementsByTagName("description").item(0).getTextContent();
+        // Once in the href and once in the text of the existing link only
+        assertEquals(2, text.split(Pattern.quote(FACTORY_1), -1).length - 1);
+        assertTrue(text.endsWith(link(FACTORY_2)));
+    }
+
+    @Test
+    public void linksAreAddedToEmptyDescription() throws Exception {
+        final JenkinsConnector connector = new JenkinsConnector(client, JOB_NAME);
+
+        final Optional<String> updated = connector.addLinksToDescription(config(""), ImmutableList.of(FACTORY_1));
+
+        assertTrue(updated.isPresent());
+        assertEquals("\n" + link(FACTORY_1),
+                     parse(updated.get()).getElementsByTagName("description").item(0).getTextContent());
+    }
+
+    @Test(expected = XMLStreamException.class)
+    public void configurationWithoutDescriptionIsRejected() throws Exception {
+        new JenkinsConnector(client, JOB_NAME).addLinksToDescription("<project><disabled>false</disabled></project>",
+                                                                     ImmutableList.of(FACTORY_1));
+    }
+
+    @Test
+    public void knownLinksSendNoRequest() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(1, HOURS);
+
+        assertTrue(add(connector, FACTORY_1).isSuccess());
+        assertTrue(add(connector, FACTORY_1).isSuccess());
+
+        assertEquals(1, connector.fetches.size());
+        assertEquals(1, connector.updates);
+    }
+
+    @Test
+    public void knownLinksAreSharedByConnectorsOfTheJob() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(1, HOURS);
+        add(connector, FACTORY_1);
+
+        // Same job, as after a reload of the connectors
+        final FakeJenkinsConnector reloaded = new FakeJenkinsConnector(1, HOURS);
+        reloaded.xml = connector.xml;
+
+        assertTrue(add(reloaded, FACTORY_1).isSuccess());
+        assertEquals(0, reloaded.fetches.size());
+    }
+
+    @Test
+    public void unknownLinkIsAddedAfterAnUnconditionalRequest() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(1, HOURS);
+        add(connector, FACTORY_1);
+
+        assertTrue(add(connector, FACTORY_2).isSuccess());
+
+        assertEquals(2, connector.fetches.size());
+        assertSame(JenkinsConnector.KnownLinks.NONE, connector.fetches.get(1));
+        assertEquals(2, connector.updates);
+    }
+
+    @Test
+    public void expiredLinksAreRevalidatedWithConditionalRequest() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(0, HOURS);
+        connector.xml = config(link(FACTORY_1));
+        add(connector, FACTORY_1);
+        connector.notModified = true;
+
+        assertTrue(add(connector, FACTORY_1).isSuccess());
+
+        assertEquals(2, connector.fetches.size());
+        assertNotSame(JenkinsConnector.KnownLinks.NONE, connector.fetches.get(1));
+        assertEquals(0, connector.updates);
+    }
+
+    @Test
+    public void linkRemovedFromChangedConfigurationIsAddedAgain() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(0, HOURS);
+        connector.xml = config(link(FACTORY_1));
+        add(connector, FACTORY_1);
+        // The description is edited in Jenkins
+        connector.xml = config("Build of Che");
+        connector.etag = "\"2\"";
+
+        assertTrue(add(connector, FACTORY_1).isSuccess());
+
+        assertEquals(1, connector.updates);
+    }
+
+    @Test
+    public void failedUpdateIsReportedAndNotRemembered() {
+        final FakeJenkinsConnector connector = new FakeJenkinsConnector(1, HOURS);
+        connector.updateSucceeds = false;
+
+        final ConnectorResult result = add(connector, FACTORY_1);
+        assertFalse(result.isSuccess());
+        assertEquals(ImmutableList.of(FACTORY_1), result.getFactoryUrls());
+
+        connector.updateSucceeds = true;
+        assertTrue(add(connector, FACTORY_1).isSuccess());
+        assertEquals(2, connector.fetches.size());
+    }
+
+    private static ConnectorResult add(final JenkinsConnector connector, final String... factoryUrls) {
+        return connector.addFactoryLinksAsync(ImmutableList.copyOf(factoryUrls), Runnable::run).join();
+    }
+
+    private static String config(final String description) {
+        return "<?xml version='1.0' encoding='UTF-8'?>\n"
+               + "<project>\n"
+               + "  <actions/>\n"
+               + "  <description>" + description + "</description>\n"
+               + "  <scm class=\"hudson.plugins.git.GitSCM\" plugin=\"git@2.4.0\"><configVersion>2</configVersion></scm>\n"
+               + "  <disabled>false</disabled>\n"
+               + "</project>";
+    }
+
+    private static String link(final String factoryUrl) {
+        return "<a href=\"" + factoryUrl + "\">" + factoryUrl + "</a>";
+    }
+
+    private static Document parse(final String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * Connector of a job whose configuration is kept in memory instead of being sent to Jenkins
+     */
+    private class FakeJenkinsConnector extends JenkinsConnector {
+        private final List<KnownLinks> fetches = new ArrayList<>();
+
+        private String  xml            = config("Build of Che");
+        private String  etag           = "\"1\"";
+        private boolean notModified;
+        private boolean updateSucceeds = true;
+        private int     updates;
+
+        FakeJenkinsConnector(final long knownLinksTtl, final TimeUnit unit) {
+            super(client, JOB_NAME, knownLinksTtl, unit);
+        }
+
+        @Override
+        protected Optional<JobConfiguration> getCurrentJenkinsJobConfiguration(final KnownLinks known) {
+            fetches.add(known);
+            if (notModified && known != KnownLinks.NONE) {
+                return Optional.of(new JobConfiguration(null, etag, null));
+            }
+            return Optional.of(new JobConfiguration(xml, etag, null));
+        }
+
+        @Override
+        protected boolean updateJenkinsJobConfiguration(final Collection<String> factoryUrls, final String updatedJobConfigXml) {
+            if (!updateSucceeds) {
+                return false;
+            }
+            updates++;
+            xml = updatedJobConfigXml;
+            etag = "\"" + (updates + 1) + "\"";
+            return true;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.github;
+
+import com.codenvy.plugin.webhooks.PropertiesRegistry;
+import com.google.common.collect.ImmutableMap;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+import static com.codenvy.plugin.webhooks.RepositoryUrls.normalize;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * In-memory registry of the GitHub webhooks configured in GITHUB_WEBHOOKS_PROPERTIES_FILENAME properties file
+ *
+ * GitHub webhook: [webhook-name]=[webhook-type],[repository-url],[factory-id];[factory-id];...;[factory-id]
+ *
+ * Webhooks are indexed by normalized repository URL (see {@link com.codenvy.plugin.webhooks.RepositoryUrls#normalize(String)}).
+ * If several webhooks are configured for the same repository they are merged into one webhook that lists all their factories.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class GitHubWebhookRegistry extends PropertiesRegistry<Map<String, GithubWebhook>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GitHubWebhookRegistry.class);
+
+    private static final String GITHUB_WEBHOOKS_PROPERTIES_FILENAME = "github-webhooks.properties";
+
+    public GitHubWebhookRegistry() {
+        this(GITHUB_WEBHOOKS_PROPERTIES_FILENAME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fileName
+     *         the properties file the webhooks are configured in
+     */
+    public GitHubWebhookRegistry(final String fileName) {
+        super(fileName);
+    }
+
+    /**
+     * Get webhook configured for a given repository
+     *
+     * @param repositoryUrl
+     *         the URL of the repository
+     * @return the webhook configured for the repository or an empty {@link Optional} if no webhook is configured for this repository
+     * @throws ServerException
+     */
+    public Optional<GithubWebhook> getWebhook(final String repositoryUrl) throws ServerException {
+        return Optional.ofNullable(get().get(normalize(repositoryUrl)));
+    }
+
+    @Override
+    protected Map<String, GithubWebhook> parse(Properties webhooksProperties) {
+        final Map<String, GithubWebhook> webhooks = new HashMap<>();
+        for (String key : webhooksProperties.stringPropertyNames()) {
+            String value = webhooksProperties.getProperty(key);
+            if (!isNullOrEmpty(value)) {
+                String[] valueSplit = value.split(",");
+                if (valueSplit.length == 3
+                    && valueSplit[0].equals("github")) {
+                    String[] factoriesIDs = valueSplit[2].split(";");
+                    GithubWebhook githubWebhook = new GithubWebhook(valueSplit[1], factoriesIDs);
+                    webhooks.merge(normalize(valueSplit[1]), githubWebhook, GitHubWebhookRegistry::merge);
+                    LOG.debug("new GithubWebhook({})", value);
+                }
+            }
+        }
+        return ImmutableMap.copyOf(webhooks);
+    }
+
+    private static GithubWebhook merge(final GithubWebhook first, final GithubWebhook second) {
+        LOG.warn("Several webhooks are configured for repository {}, their factories are merged", first.getRepositoryUrl());
+        final Set<String> factoriesIds = new HashSet<>(first.getFactoriesIds());
+        factoriesIds.addAll(second.getFactoriesIds());
+        return new GithubWebhook(first.getRepositoryUrl(), factoriesIds.toArray(new String[factoriesIds.size()]));
+    }
+}
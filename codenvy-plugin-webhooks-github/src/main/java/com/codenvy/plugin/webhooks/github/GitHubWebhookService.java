@@ -20,22 +20,30 @@ import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
-import com.codenvy.plugin.webhooks.AuthConnection;
-import com.codenvy.plugin.webhooks.FactoryConnection;
+import com.codenvy.plugin.webhooks.AuthTokenCache;
 import com.codenvy.plugin.webhooks.BaseWebhookService;
+import com.codenvy.plugin.webhooks.DeliveryDeduplicator;
+import com.codenvy.plugin.webhooks.EndpointGuards;
+import com.codenvy.plugin.webhooks.FactoryConnection;
+import com.codenvy.plugin.webhooks.FactoryFetcher;
+import com.codenvy.plugin.webhooks.FactoryIndex;
+import com.codenvy.plugin.webhooks.JsonFieldExtractor;
+import com.codenvy.plugin.webhooks.WebhookEvent;
 import com.codenvy.plugin.webhooks.connectors.Connector;
-import com.codenvy.plugin.webhooks.github.shared.PullRequestEvent;
-import com.codenvy.plugin.webhooks.github.shared.PushEvent;
+import com.codenvy.plugin.webhooks.connectors.ConnectorDispatcher;
+import com.codenvy.plugin.webhooks.connectors.ConnectorRegistry;
+import com.codenvy.plugin.webhooks.connectors.FactoryLinkBatch;
+import com.google.common.io.ByteStreams;
 
 import org.eclipse.che.api.core.ServerException;
 import org.eclipse.che.api.core.rest.shared.dto.Link;
 import org.eclipse.che.api.factory.shared.dto.Factory;
 import org.eclipse.che.commons.env.EnvironmentContext;
-import org.eclipse.che.dto.server.DtoFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
@@ -44,13 +52,15 @@ import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.Properties;
 import java.util.Set;
 
+import static com.codenvy.plugin.webhooks.RepositoryUrls.normalize;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
@@ -59,16 +69,46 @@ import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
         description = "GitHub webhooks handler"
 )
 @Path("/github-webhook")
+@Singleton
 public class GitHubWebhookService extends BaseWebhookService {
 
     private static final Logger LOG = LoggerFactory.getLogger(GitHubWebhookService.class);
 
-    private static final String GITHUB_WEBHOOKS_PROPERTIES_FILENAME = "github-webhooks.properties";
-    private static final String GITHUB_REQUEST_HEADER               = "X-GitHub-Event";
+    private static final String GITHUB_REQUEST_HEADER  = "X-GitHub-Event";
+    private static final String GITHUB_DELIVERY_HEADER = "X-GitHub-Delivery";
+    private static final String DELIVERY_SOURCE        = "github";
+
+    private static final String PUSH         = "push";
+    private static final String PULL_REQUEST = "pull_request";
+
+    // Paths of the fields of push and pull_request events that are needed to process them
+    private static final String REPOSITORY_HTML_URL   = "repository.html_url";
+    private static final String REF                   = "ref";
+    private static final String ACTION                = "action";
+    private static final String PR_MERGED             = "pull_request.merged";
+    private static final String PR_HEAD_REPO_HTML_URL = "pull_request.head.repo.html_url";
+    private static final String PR_HEAD_REF           = "pull_request.head.ref";
+    private static final String PR_HEAD_SHA           = "pull_request.head.sha";
+    private static final String PR_BASE_REPO_HTML_URL = "pull_request.base.repo.html_url";
+
+    private static final JsonFieldExtractor PUSH_EVENT_FIELDS                   = new JsonFieldExtractor(REPOSITORY_HTML_URL, REF);
+    private static final JsonFieldExtractor PUSH_REPOSITORY_FIELDS              = new JsonFieldExtractor(REPOSITORY_HTML_URL);
+    private static final JsonFieldExtractor PULL_REQUEST_EVENT_FIELDS           =
+            new JsonFieldExtractor(ACTION, PR_MERGED, PR_HEAD_REPO_HTML_URL, PR_HEAD_REF, PR_HEAD_SHA, PR_BASE_REPO_HTML_URL);
+    private static final JsonFieldExtractor PULL_REQUEST_PEEK_FIELDS            = new JsonFieldExtractor(ACTION);
+    private static final JsonFieldExtractor PULL_REQUEST_BASE_REPOSITORY_FIELDS = new JsonFieldExtractor(PR_BASE_REPO_HTML_URL);
+
+    private final GitHubWebhookRegistry webhookRegistry;
 
     @Inject
-    public GitHubWebhookService(final AuthConnection authConnection, final FactoryConnection factoryConnection) {
-        super(authConnection, factoryConnection);
+    public GitHubWebhookService(final AuthTokenCache authTokenCache, final FactoryConnection factoryConnection,
+                                final FactoryFetcher factoryFetcher, final FactoryIndex factoryIndex,
+                                final ConnectorRegistry connectorRegistry, final ConnectorDispatcher connectorDispatcher,
+                                final DeliveryDeduplicator deliveryDeduplicator, final EndpointGuards endpointGuards,
+                                final GitHubWebhookRegistry webhookRegistry) {
+        super(authTokenCache, factoryConnection, factoryFetcher, factoryIndex, connectorRegistry, connectorDispatcher,
+              deliveryDeduplicator, endpointGuards);
+        this.webhookRegistry = webhookRegistry;
     }
 
     @ApiOperation(value = "Handle GitHub webhook events",
@@ -84,54 +124,167 @@ public class GitHubWebhookService extends BaseWebhookService {
                                              @Context HttpServletRequest request)
             throws ServerException {
 
-        Response response = Response.ok().build();
+        // Decide from headers alone whether the body has to be read
+        final String githubHeader = request.getHeader(GITHUB_REQUEST_HEADER);
+        if (isNullOrEmpty(githubHeader)) {
+            return Response.ok().build();
+        }
+        if (!PUSH.equals(githubHeader) && !PULL_REQUEST.equals(githubHeader)) {
+            return ignored("GitHub message \'" + githubHeader + "\' received. It isn't intended to be processed.");
+        }
+
+        final String deliveryId = request.getHeader(GITHUB_DELIVERY_HEADER);
+        if (isDuplicateDelivery(DELIVERY_SOURCE, deliveryId)) {
+            return Response.ok(new GenericEntity<>("GitHub delivery \'" + deliveryId + "\' already received.", String.class)).build();
+        }
+
         try (ServletInputStream inputStream = request.getInputStream()) {
-            if (inputStream != null) {
-                String githubHeader = request.getHeader(GITHUB_REQUEST_HEADER);
-                if (!isNullOrEmpty(githubHeader)) {
-                    switch (githubHeader) {
-                        case "push":
-                            final PushEvent pushEvent = DtoFactory.getInstance().createDtoFromJson(inputStream, PushEvent.class);
-                            handlePushEvent(pushEvent);
-                            break;
-                        case "pull_request":
-                            final PullRequestEvent PRevent = DtoFactory.getInstance().createDtoFromJson(inputStream, PullRequestEvent.class);
-                            handlePullRequestEvent(PRevent);
-                            break;
-                        default:
-                            response = Response.accepted(new GenericEntity<>(
-                                    "GitHub message \'" + githubHeader + "\' received. It isn't intended to be processed.", String.class))
-                                               .build();
-                            break;
+            if (inputStream == null) {
+                return Response.ok().build();
+            }
+            if (isAsync()) {
+                final byte[] payload = ByteStreams.toByteArray(inputStream);
+                if (PULL_REQUEST.equals(githubHeader)) {
+                    final Map<String, String> prEvent = PULL_REQUEST_PEEK_FIELDS.extract(new ByteArrayInputStream(payload));
+                    if (!isActionablePullRequest(prEvent)) {
+                        return ignoredPullRequest(prEvent);
                     }
                 }
+                return enqueueEvent(new WebhookEvent(githubHeader, deliveryId, getBaseRepositoryUrl(githubHeader, payload),
+                                                     System.currentTimeMillis(), payload));
             }
+
+            final Map<String, String> event = readEvent(githubHeader, inputStream);
+            if (PULL_REQUEST.equals(githubHeader) && !isActionablePullRequest(event)) {
+                return ignoredPullRequest(event);
+            }
+            processInOrder(getBaseRepositoryUrl(githubHeader, event), () -> handleEvent(githubHeader, event));
         } catch (IOException e) {
+            // Let GitHub redeliver an event that was not processed
+            forgetDelivery(DELIVERY_SOURCE, deliveryId);
             LOG.error(e.getLocalizedMessage());
             throw new ServerException(e.getLocalizedMessage());
+        } catch (ServerException | RuntimeException e) {
+            forgetDelivery(DELIVERY_SOURCE, deliveryId);
+            throw e;
+        }
+
+        return Response.ok().build();
+    }
+
+    @Override
+    protected String getEventQueueName() {
+        return "github-events";
+    }
+
+    @Override
+    protected void processEvent(final WebhookEvent event) throws ServerException, IOException {
+        handleEvent(event.getType(), readEvent(event.getType(), new ByteArrayInputStream(event.getPayload())));
+    }
+
+    /**
+     * Get the repository an event is about, so that events about the same repository are processed in order
+     *
+     * @param githubHeader
+     *         the value of X-GitHub-Event header
+     * @param payload
+     *         the JSON body of the event
+     * @return the normalized URL of the repository that receives the commits, null if unknown
+     */
+    private String getBaseRepositoryUrl(final String githubHeader, final byte[] payload) throws IOException {
+        if (PUSH.equals(githubHeader)) {
+            return normalize(PUSH_REPOSITORY_FIELDS.extract(new ByteArrayInputStream(payload)).get(REPOSITORY_HTML_URL));
         }
+        return normalize(PULL_REQUEST_BASE_REPOSITORY_FIELDS.extract(new ByteArrayInputStream(payload)).get(PR_BASE_REPO_HTML_URL));
+    }
+
+    /**
+     * Get the repository an event is about, see {@link #getBaseRepositoryUrl(String, byte[])}
+     *
+     * @param githubHeader
+     *         the value of X-GitHub-Event header
+     * @param event
+     *         the fields of the event
+     * @return the normalized URL of the repository that receives the commits, null if unknown
+     */
+    private static String getBaseRepositoryUrl(final String githubHeader, final Map<String, String> event) {
+        return normalize(event.get(PUSH.equals(githubHeader) ? REPOSITORY_HTML_URL : PR_BASE_REPO_HTML_URL));
+    }
+
+    /**
+     * Read the fields of a GitHub 'push' or 'pull_request' event that are needed to process it.
+     * Reading of a pull request event stops as soon as its action shows it is not intended to be processed.
+     *
+     * @param githubHeader
+     *         the value of X-GitHub-Event header
+     * @param inputStream
+     *         the JSON body of the event
+     * @return the fields of the event, by path
+     */
+    private static Map<String, String> readEvent(final String githubHeader, final InputStream inputStream) throws IOException {
+        if (PUSH.equals(githubHeader)) {
+            return PUSH_EVENT_FIELDS.extract(inputStream);
+        }
+        return PULL_REQUEST_EVENT_FIELDS.extract(inputStream, fields -> fields.size() == PULL_REQUEST_EVENT_FIELDS.getPaths().size()
+                                                                       || (fields.containsKey(ACTION) && !isActionablePullRequest(fields)));
+    }
+
+    /**
+     * Whether or not a pull request event may lead to factory updates, that is the pull request was closed
+     */
+    private static boolean isActionablePullRequest(final Map<String, String> prEvent) {
+        return "closed".equals(prEvent.get(ACTION));
+    }
+
+    private Response ignoredPullRequest(final Map<String, String> prEvent) {
+        LOG.debug("Pull request event with action {} ignored", prEvent.get(ACTION));
+        return ignored("PullRequest Event action is " + prEvent.get(ACTION) + ". " + getClass().getSimpleName()
+                       + " do not handle this one.");
+    }
 
-        return response;
+    private static Response ignored(final String message) {
+        return Response.accepted(new GenericEntity<>(message, String.class)).build();
     }
 
     /**
-     * Handle GitHub {@link PushEvent}
+     * Handle a GitHub 'push' or 'pull_request' event
+     *
+     * @param githubHeader
+     *         the value of X-GitHub-Event header
+     * @param event
+     *         the fields of the event
+     * @throws ServerException
+     */
+    private void handleEvent(final String githubHeader, final Map<String, String> event) throws ServerException {
+        switch (githubHeader) {
+            case PUSH:
+                handlePushEvent(event);
+                break;
+            case PULL_REQUEST:
+                handlePullRequestEvent(event);
+                break;
+            default:
+                LOG.warn("GitHub message '{}' isn't intended to be processed", githubHeader);
+                break;
+        }
+    }
+
+    /**
+     * Handle GitHub push event
      *
      * @param contribution
-     *         the push event to handle
-     * @return HTTP 200 response if event was processed successfully
-     * HTTP 202 response if event was processed partially
+     *         the fields of the push event read with {@link #PUSH_EVENT_FIELDS}
      * @throws ServerException
      */
-    private void handlePushEvent(PushEvent contribution) throws ServerException {
+    private void handlePushEvent(Map<String, String> contribution) throws ServerException {
         LOG.debug("{}", contribution);
 
         // Set current Codenvy user
         EnvironmentContext.getCurrent().setUser(new TokenUser());
 
         // Get contribution data
-        final String contribRepositoryHtmlUrl = contribution.getRepository().getHtmlUrl();
-        final String[] contribRefSplit = contribution.getRef().split("/");
+        final String contribRepositoryHtmlUrl = getField(contribution, REPOSITORY_HTML_URL);
+        final String[] contribRefSplit = getField(contribution, REF).split("/");
         final String contribBranch = contribRefSplit[contribRefSplit.length - 1];
 
         // Get factories id's that are configured in a webhook
@@ -143,6 +296,7 @@ public class GitHubWebhookService extends BaseWebhookService {
             throw new ServerException("No factory found for repository " + contribRepositoryHtmlUrl + " and branch " + contribBranch);
         }
 
+        final FactoryLinkBatch factoryLinks = new FactoryLinkBatch();
         for (Factory f : factories) {
             // Get 'open factory' URL
             final Link factoryLink = f.getLink(FACTORY_URL_REL);
@@ -152,45 +306,39 @@ public class GitHubWebhookService extends BaseWebhookService {
 
             // Get connectors configured for the factory
             final List<Connector> connectors = getConnectors(f.getId());
-
-            // Add factory link within third-party services
-            connectors.forEach(connector -> connector.addFactoryLink(factoryLink.getHref()));
+            connectors.forEach(connector -> factoryLinks.add(connector, factoryLink.getHref()));
         }
+
+        // Add factory links within third-party services, once per third-party resource and in parallel
+        addFactoryLinks(factoryLinks);
     }
 
     /**
-     * Handle GitHub {@link PullRequestEvent}
+     * Handle GitHub pull request event
      *
      * @param prEvent
-     *         the pull request event to handle
-     * @return HTTP 200 response if event was processed successfully
-     * HTTP 202 response if event was processed partially
+     *         the fields of the pull request event read with {@link #PULL_REQUEST_EVENT_FIELDS}
      * @throws ServerException
      */
-    private void handlePullRequestEvent(PullRequestEvent prEvent) throws ServerException {
+    private void handlePullRequestEvent(Map<String, String> prEvent) throws ServerException {
         LOG.debug("{}", prEvent);
 
         // Set current Codenvy user
         EnvironmentContext.getCurrent().setUser(new TokenUser());
 
-        // Check that event indicates a successful merging
-        final String action = prEvent.getAction();
-        if (!"closed".equals(action)) {
-            throw new ServerException(
-                    "PullRequest Event action is " + action + ". " + this.getClass().getSimpleName() + " do not handle this one.");
-        }
-        final boolean isMerged = prEvent.getPullRequest().getMerged();
+        // Check that event indicates a successful merging, only closed pull requests are processed
+        final boolean isMerged = Boolean.parseBoolean(prEvent.get(PR_MERGED));
         if (!isMerged) {
             throw new ServerException("Pull Request was closed with unmerged commits !");
         }
 
         // Get head repository data
-        final String prHeadRepositoryHtmlUrl = prEvent.getPullRequest().getHead().getRepo().getHtmlUrl();
-        final String prHeadBranch = prEvent.getPullRequest().getHead().getRef();
-        final String prHeadCommitId = prEvent.getPullRequest().getHead().getSha();
+        final String prHeadRepositoryHtmlUrl = getField(prEvent, PR_HEAD_REPO_HTML_URL);
+        final String prHeadBranch = getField(prEvent, PR_HEAD_REF);
+        final String prHeadCommitId = getField(prEvent, PR_HEAD_SHA);
 
         // Get base repository data
-        final String prBaseRepositoryHtmlUrl = prEvent.getPullRequest().getBase().getRepo().getHtmlUrl();
+        final String prBaseRepositoryHtmlUrl = getField(prEvent, PR_BASE_REPO_HTML_URL);
 
         // Get factories id's that are configured in a webhook
         final Set<String> factoriesIDs = getWebhookConfiguredFactoriesIDs(prBaseRepositoryHtmlUrl);
@@ -213,6 +361,25 @@ public class GitHubWebhookService extends BaseWebhookService {
         }
     }
 
+    /**
+     * Get a mandatory field of an event
+     *
+     * @param event
+     *         the fields of the event
+     * @param path
+     *         the path of the field
+     * @return the value of the field
+     * @throws ServerException
+     *         if the event doesn't contain the field
+     */
+    private static String getField(final Map<String, String> event, final String path) throws ServerException {
+        final String value = event.get(path);
+        if (isNullOrEmpty(value)) {
+            throw new ServerException("GitHub event doesn't contain mandatory field \'" + path + "\'");
+        }
+        return value;
+    }
+
     /**
      * Get factories configured in a webhook for given base repository
      * and contain a project for given head repository and head branch
@@ -226,7 +393,7 @@ public class GitHubWebhookService extends BaseWebhookService {
             throws ServerException {
 
         // Get webhook configured for given repository
-        final Optional<GithubWebhook> webhook = getGitHubWebhook(baseRepositoryHtmlUrl);
+        final Optional<GithubWebhook> webhook = webhookRegistry.getWebhook(baseRepositoryHtmlUrl);
 
         final GithubWebhook w = webhook.orElseThrow(
                 () -> new ServerException("No webhook configured for repository " + baseRepositoryHtmlUrl));
@@ -234,51 +401,4 @@ public class GitHubWebhookService extends BaseWebhookService {
         // Get factory id's listed into the webhook
         return w.getFactoriesIds();
     }
-
-    /**
-     * Get webhook configured for a given repository
-     *
-     * @param repositoryUrl
-     *         the URL of the repository
-     * @return the webhook configured for the repository or null if no webhook is configured for this repository
-     * @throws ServerException
-     */
-    private Optional<GithubWebhook> getGitHubWebhook(String repositoryUrl) throws ServerException {
-        List<GithubWebhook> webhooks = getGitHubWebhooks();
-        GithubWebhook webhook = null;
-        for (GithubWebhook w : webhooks) {
-            String webhookRepositoryUrl = w.getRepositoryUrl();
-            if (repositoryUrl.equals(webhookRepositoryUrl)) {
-                webhook = w;
-            }
-        }
-        return Optional.ofNullable(webhook);
-    }
-
-    /**
-     * Get all configured webhooks
-     *
-     * GitHub webhook: [webhook-name]=[webhook-type],[repository-url],[factory-id];[factory-id];...;[factory-id]
-     *
-     * @return the list of all webhooks contained in GITHUB_WEBHOOKS_PROPERTIES_FILENAME properties fil
-     */
-    private static List<GithubWebhook> getGitHubWebhooks() throws ServerException {
-        List<GithubWebhook> webhooks = new ArrayList<>();
-        Properties webhooksProperties = getProperties(GITHUB_WEBHOOKS_PROPERTIES_FILENAME);
-        Set<String> keySet = webhooksProperties.stringPropertyNames();
-        keySet.stream().forEach(key -> {
-            String value = webhooksProperties.getProperty(key);
-            if (!isNullOrEmpty(value)) {
-                String[] valueSplit = value.split(",");
-                if (valueSplit.length == 3
-                    && valueSplit[0].equals("github")) {
-                    String[] factoriesIDs = valueSplit[2].split(";");
-                    GithubWebhook githubWebhook = new GithubWebhook(valueSplit[1], factoriesIDs);
-                    webhooks.add(githubWebhook);
-                    LOG.debug("new GithubWebhook({})", value);
-                }
-            }
-        });
-        return webhooks;
-    }
 }
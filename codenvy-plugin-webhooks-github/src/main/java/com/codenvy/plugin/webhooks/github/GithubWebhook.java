@@ -18,6 +18,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -40,7 +41,7 @@ public class GithubWebhook {
         if (factoriesIds.length == 0) {
             LOG.warn("A webhook for repository {} cannot be set without factories", repositoryUrl);
         }
-        this.factoriesIds = new HashSet<String>(Arrays.asList(factoriesIds));
+        this.factoriesIds = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(factoriesIds)));
     }
 
     public String getRepositoryUrl() {
@@ -14,15 +14,22 @@
  */
 package com.codenvy.plugin.webhooks;
 
+import com.codenvy.plugin.webhooks.connectors.ConnectorDispatcher;
+import com.codenvy.plugin.webhooks.connectors.ConnectorRegistry;
+import com.codenvy.plugin.webhooks.connectors.JenkinsClientPool;
+import com.codenvy.plugin.webhooks.github.GitHubWebhookRegistry;
 import com.codenvy.plugin.webhooks.github.GitHubWebhookService;
 
 import org.eclipse.che.api.auth.shared.dto.Token;
 import org.eclipse.che.api.factory.shared.dto.Factory;
 import org.eclipse.che.api.user.shared.dto.UserDescriptor;
 import org.eclipse.che.dto.server.DtoFactory;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -36,6 +43,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static javax.ws.rs.core.Response.Status.OK;
@@ -56,7 +64,18 @@ public class TestGitHubWebhookService {
         VSTS
     }
 
-    private GitHubWebhookService fakeGitHubWebhookService;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AuthTokenCache        authTokenCache;
+    private FactoryFetcher        factoryFetcher;
+    private FactoryIndex          factoryIndex;
+    private JenkinsClientPool     jenkinsClientPool;
+    private ConnectorRegistry     connectorRegistry;
+    private ConnectorDispatcher   connectorDispatcher;
+    private DeliveryDeduplicator  deliveryDeduplicator;
+    private GitHubWebhookRegistry webhookRegistry;
+    private GitHubWebhookService  fakeGitHubWebhookService;
 
     @Before
     public void setUp() throws Exception {
@@ -77,8 +96,36 @@ public class TestGitHubWebhookService {
         when(mockFactoryConnection.getFactory("fakeFactoryId")).thenReturn(gitHubfakeFactory);
         when(mockFactoryConnection.updateFactory(gitHubfakeFactory)).thenReturn(gitHubfakeFactory);
 
+        // Prepare registries, started by the injector otherwise
+        EndpointGuards endpointGuards = new EndpointGuards();
+        jenkinsClientPool = new JenkinsClientPool(endpointGuards);
+        connectorRegistry = new ConnectorRegistry(jenkinsClientPool);
+        connectorRegistry.start();
+        webhookRegistry = new GitHubWebhookRegistry();
+        webhookRegistry.start();
+
         // Prepare GitHubWebhookService
-        fakeGitHubWebhookService = new GitHubWebhookService(mockAuthConnection, mockFactoryConnection);
+        authTokenCache = new AuthTokenCache(mockAuthConnection);
+        factoryFetcher = new FactoryFetcher(mockFactoryConnection);
+        factoryIndex = new FactoryIndex(folder.getRoot().toPath().resolve("factories-index.dat"), 6, HOURS);
+        connectorDispatcher = new ConnectorDispatcher();
+        deliveryDeduplicator = new DeliveryDeduplicator();
+        fakeGitHubWebhookService = new GitHubWebhookService(authTokenCache, mockFactoryConnection, factoryFetcher, factoryIndex,
+                                                            connectorRegistry, connectorDispatcher, deliveryDeduplicator, endpointGuards,
+                                                            webhookRegistry);
+    }
+
+    @After
+    public void tearDown() {
+        fakeGitHubWebhookService.stop();
+        webhookRegistry.stop();
+        deliveryDeduplicator.stop();
+        connectorDispatcher.stop();
+        connectorRegistry.stop();
+        jenkinsClientPool.close();
+        factoryIndex.stop();
+        factoryFetcher.stop();
+        authTokenCache.stop();
     }
 
     @Test
@@ -16,7 +16,6 @@ package com.codenvy.plugin.webhooks.vsts;
 
 import com.google.common.collect.Sets;
 
-import org.eclipse.che.commons.lang.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,19 +32,19 @@ public class PullRequestUpdatedWebhook {
 
     private static final Logger LOG = LoggerFactory.getLogger(PullRequestUpdatedWebhook.class);
 
-    private final String               id;
-    private final String               host;
-    private final String               account;
-    private final String               collection;
-    private final String               apiVersion;
-    private final Pair<String, String> credentials;
-    private final Set<String>          factoriesIds;
+    private final String          id;
+    private final String          host;
+    private final String          account;
+    private final String          collection;
+    private final String          apiVersion;
+    private final VSTSCredentials credentials;
+    private final Set<String>     factoriesIds;
 
     public PullRequestUpdatedWebhook(final String host,
                                      final String account,
                                      final String collection,
                                      final String apiVersion,
-                                     final Pair<String, String> credentials,
+                                     final VSTSCredentials credentials,
                                      final String... factoriesIds) {
         this.host = host;
         this.account = account;
@@ -63,6 +62,17 @@ public class PullRequestUpdatedWebhook {
         }
     }
 
+    /**
+     * Copy a webhook, the copy can be updated without affecting the original webhook
+     *
+     * @param webhook
+     *         the webhook to copy
+     */
+    public PullRequestUpdatedWebhook(final PullRequestUpdatedWebhook webhook) {
+        this(webhook.getHost(), webhook.getAccount(), webhook.getCollection(), webhook.getApiVersion(), webhook.getCredentials(),
+             webhook.getFactoriesIds().toArray(new String[webhook.getFactoriesIds().size()]));
+    }
+
     public String getId() {
         return id;
     }
@@ -83,7 +93,7 @@ public class PullRequestUpdatedWebhook {
         return apiVersion;
     }
 
-    public Pair<String, String> getCredentials() {
+    public VSTSCredentials getCredentials() {
         return credentials;
     }
 
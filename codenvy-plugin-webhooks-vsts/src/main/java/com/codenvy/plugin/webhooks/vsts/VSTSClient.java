@@ -0,0 +1,154 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.EndpointGuard;
+import com.codenvy.plugin.webhooks.EndpointGuards;
+import com.codenvy.plugin.webhooks.RetryLaterException;
+
+import org.eclipse.che.api.core.ApiException;
+import org.eclipse.che.api.core.ServerException;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.JerseyClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * HTTP client shared by all calls to VSTS REST API.
+ *
+ * Unlike {@link org.eclipse.che.api.core.rest.HttpJsonRequest}, responses are read with their headers, so that
+ * the 'Retry-After' and 'X-RateLimit-*' headers of throttled requests feed the {@link VSTSRateLimiter} of the account.
+ * A throttled request is sent again once the account budget allows it, at most 'webhooks.vsts.throttle.retries' times
+ * (system property, default 5), then the call fails with a {@link RetryLaterException}.
+ * Requests use 'webhooks.vsts.connect.timeout.ms' (default 5000) and 'webhooks.vsts.read.timeout.ms' (default 30000) timeouts,
+ * and are guarded by the {@link EndpointGuard} of the VSTS host.
+ * The client is a Jersey client, whatever the JAX-RS implementation of the server: the JAX-RS 2.0 client API has no timeouts.
+ * The read timeout bounds each wait for data, not the whole response.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class VSTSClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSTSClient.class);
+
+    private static final int RETRIES            = Integer.getInteger("webhooks.vsts.throttle.retries", 5);
+    private static final int CONNECT_TIMEOUT_MS = Integer.getInteger("webhooks.vsts.connect.timeout.ms", 5000);
+    private static final int READ_TIMEOUT_MS    = Integer.getInteger("webhooks.vsts.read.timeout.ms", 30000);
+
+    private final Client          client;
+    private final EndpointGuards  endpointGuards;
+    private final VSTSRateLimiter rateLimiter;
+
+    /**
+     * Read a VSTS response
+     */
+    public interface ResponseReader<T> {
+        T read(Response response) throws ApiException;
+    }
+
+    @Inject
+    public VSTSClient(final EndpointGuards endpointGuards, final VSTSRateLimiter rateLimiter) {
+        this(new JerseyClientBuilder().property(ClientProperties.CONNECT_TIMEOUT, CONNECT_TIMEOUT_MS)
+                                      .property(ClientProperties.READ_TIMEOUT, READ_TIMEOUT_MS)
+                                      .build(),
+             endpointGuards, rateLimiter);
+    }
+
+    VSTSClient(final Client client, final EndpointGuards endpointGuards, final VSTSRateLimiter rateLimiter) {
+        this.client = client;
+        this.endpointGuards = endpointGuards;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Send a request to a VSTS account and read its response, waiting for the budget of the account.
+     * The response is closed once read.
+     *
+     * @param account
+     *         the VSTS account the request is sent to
+     * @param url
+     *         the URL of the request
+     * @param request
+     *         the function that sends the request with given client
+     * @param reader
+     *         the function that reads the response, never called with a throttled response
+     * @return the result of the reader
+     * @throws RetryLaterException
+     *         if the account is still throttled after all retries or the budget can't be obtained in time
+     * @throws ServerException
+     *         if the VSTS host is failing, or if the request fails
+     * @throws ApiException
+     *         if the reader throws it
+     */
+    public <T> T call(final String account, final String url, final Function<Client, Response> request, final ResponseReader<T> reader)
+            throws ApiException {
+        for (int attempt = 1; ; attempt++) {
+            rateLimiter.acquire(account);
+
+            final EndpointGuard guard = endpointGuards.get(url);
+            if (!guard.tryEnter()) {
+                throw new ServerException("Call to " + guard + " rejected, too many calls in progress or too many recent failures");
+            }
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final Response response = request.apply(client);
+                try {
+                    final boolean throttled = rateLimiter.onResponse(account, response.getStatus(), response::getHeaderString);
+                    // Throttling is handled by the budget of the account, it is not a failure of the host
+                    failed = !throttled && response.getStatus() >= 500;
+                    if (!throttled) {
+                        return reader.read(response);
+                    }
+                } finally {
+                    response.close();
+                }
+            } catch (ProcessingException e) {
+                LOG.error(e.getLocalizedMessage(), e);
+                throw new ServerException(e.getLocalizedMessage());
+            } finally {
+                guard.exit(start, failed);
+            }
+
+            if (attempt > RETRIES) {
+                throw new RetryLaterException("VSTS account " + account + " still throttles requests after " + attempt + " attempts",
+                                              rateLimiter.getWaitMillis(account));
+            }
+            LOG.debug("Request to VSTS account {} throttled, attempt {} of {}", account, attempt, RETRIES + 1);
+        }
+    }
+
+    /**
+     * Get the budget of the VSTS accounts, by metric name
+     */
+    public Map<String, Number> getMetrics() {
+        return rateLimiter.getMetrics();
+    }
+
+    @PreDestroy
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import java.util.Objects;
+
+/**
+ * Identify a VSTS collection by its host, account and collection name
+ *
+ * @author Stephane Tournie
+ */
+final class VSTSCollection {
+
+    private final String host;
+    private final String account;
+    private final String collection;
+    private final int    hashCode;
+
+    VSTSCollection(final String host, final String account, final String collection) {
+        this.host = host;
+        this.account = account;
+        this.collection = collection;
+        this.hashCode = Objects.hash(host, account, collection);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    String getAccount() {
+        return account;
+    }
+
+    String getCollection() {
+        return collection;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VSTSCollection)) {
+            return false;
+        }
+        final VSTSCollection other = (VSTSCollection)o;
+        return Objects.equals(host, other.host)
+               && Objects.equals(account, other.account)
+               && Objects.equals(collection, other.collection);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return "VSTSCollection{host=" + host + ", account=" + account + ", collection=" + collection + "}";
+    }
+}
@@ -14,30 +14,53 @@
  */
 package com.codenvy.plugin.webhooks.vsts;
 
+import com.codenvy.plugin.webhooks.RetryLaterException;
 import com.codenvy.plugin.webhooks.vsts.shared.Repository;
 import com.codenvy.plugin.webhooks.vsts.shared.StorageDocument;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import org.eclipse.che.api.core.ApiException;
+import org.eclipse.che.api.core.NotFoundException;
 import org.eclipse.che.api.core.ServerException;
-import org.eclipse.che.api.core.rest.HttpJsonRequest;
-import org.eclipse.che.api.core.rest.HttpJsonRequestFactory;
-import org.eclipse.che.api.core.rest.HttpJsonResponse;
-import org.eclipse.che.commons.lang.Pair;
 import org.eclipse.che.dto.server.DtoFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
-import java.io.IOException;
-import java.util.Base64;
+import javax.inject.Singleton;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.Response;
+import java.net.URI;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static java.lang.String.format;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static javax.ws.rs.core.HttpHeaders.AUTHORIZATION;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
 /**
- * Wrapper class for calls to Visual Studio Team Services REST API
+ * Wrapper class for calls to Visual Studio Team Services REST API, sent by {@link VSTSClient}
+ *
+ * Repository URLs obtained from repository id URLs are cached per credentials: the cache holds at most
+ * 'webhooks.vsts.repositories.cache.size' URLs (system property, default 1000) for at most
+ * 'webhooks.vsts.repositories.cache.ttl.minutes' (default 1440). URLs older than 'webhooks.vsts.repositories.cache.refresh.minutes'
+ * (default 60) are fetched again in background while the cached URL is still returned.
+ * Repositories not found are remembered 'webhooks.vsts.repositories.cache.not.found.minutes' (default 5).
  *
  * @author Stephane Tournie
  */
+@Singleton
 public class VSTSConnection {
 
     private static final Logger LOG = LoggerFactory.getLogger(VSTSConnection.class);
@@ -46,11 +69,47 @@ public class VSTSConnection {
     private static final String PUBLISHER = "codenvy";
     private static final String EXTENSION = "codenvy-extension";
 
-    private final HttpJsonRequestFactory httpJsonRequestFactory;
+    private static final long REPOSITORIES_CACHE_SIZE              = Long.getLong("webhooks.vsts.repositories.cache.size", 1000L);
+    private static final long REPOSITORIES_CACHE_TTL_MINUTES       = Long.getLong("webhooks.vsts.repositories.cache.ttl.minutes", 1440L);
+    private static final long REPOSITORIES_CACHE_REFRESH_MINUTES   =
+            Long.getLong("webhooks.vsts.repositories.cache.refresh.minutes", 60L);
+    private static final long REPOSITORIES_CACHE_NOT_FOUND_MINUTES =
+            Long.getLong("webhooks.vsts.repositories.cache.not.found.minutes", 5L);
+
+    private final VSTSClient                          vstsClient;
+    private final ExecutorService                     refresher;
+    // repository -> repository name URL
+    private final LoadingCache<RepositoryKey, String> repositoryNameUrls;
+    // repository -> error message of the repository not found
+    private final Cache<RepositoryKey, String>        repositoriesNotFound;
 
     @Inject
-    public VSTSConnection(final HttpJsonRequestFactory httpJsonRequestFactory) {
-        this.httpJsonRequestFactory = httpJsonRequestFactory;
+    public VSTSConnection(final VSTSClient vstsClient) {
+        this.vstsClient = vstsClient;
+        this.refresher = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "webhooks-vsts-repositories-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.repositoryNameUrls = CacheBuilder.newBuilder()
+                                              .maximumSize(REPOSITORIES_CACHE_SIZE)
+                                              .expireAfterWrite(REPOSITORIES_CACHE_TTL_MINUTES, MINUTES)
+                                              .refreshAfterWrite(REPOSITORIES_CACHE_REFRESH_MINUTES, MINUTES)
+                                              .build(CacheLoader.asyncReloading(new CacheLoader<RepositoryKey, String>() {
+                                                  @Override
+                                                  public String load(final RepositoryKey key) throws ServerException {
+                                                      return fetchRepositoryNameUrl(key);
+                                                  }
+                                              }, refresher));
+        this.repositoriesNotFound = CacheBuilder.newBuilder()
+                                                .maximumSize(REPOSITORIES_CACHE_SIZE)
+                                                .expireAfterWrite(REPOSITORIES_CACHE_NOT_FOUND_MINUTES, MINUTES)
+                                                .build();
+    }
+
+    @PreDestroy
+    public void stop() {
+        refresher.shutdownNow();
     }
 
     /**
@@ -70,61 +129,176 @@ public class VSTSConnection {
      *         the name of the storage key
      * @param factoryUrl
      *         the factory URL that will be stored
+     * @return the document stored
      * @throws ServerException
      */
-    public void storeFactorySetting(final String visualStudioHost, final String account, final String collection, final String apiVersion,
-                                    final Pair<String, String> credentials, final String settingKey, final String factoryUrl)
+    public StorageDocument storeFactorySetting(final String visualStudioHost, final String account, final String collection,
+                                               final String apiVersion, final VSTSCredentials credentials, final String settingKey,
+                                               final String factoryUrl)
             throws ServerException {
         final StorageDocument document = DtoFactory.newDto(StorageDocument.class).withId(settingKey).withValue(factoryUrl).withEtag("-1");
 
         final String extensionStorageUrl = extensionStorageHttpUrl(visualStudioHost, account, collection);
 
-        final String userCredentials = credentials.first + ":" + credentials.second;
-        final String basicAuth = "Basic " + new String(Base64.getEncoder().encode(userCredentials.getBytes()));
-
-        HttpJsonRequest httpJsonRequest =
-                httpJsonRequestFactory.fromUrl(extensionStorageUrl).usePutMethod().setBody(document).setAuthorizationHeader(basicAuth)
-                                      .addQueryParam("api-version", apiVersion);
+        final String body = DtoFactory.getInstance().toJson(document);
         StorageDocument newDocument;
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
-            newDocument = response.asDto(StorageDocument.class);
+            newDocument = vstsClient.call(account, extensionStorageUrl,
+                                          client -> request(client, extensionStorageUrl, apiVersion, credentials).put(Entity.json(body)),
+                                          response -> readDto(response, StorageDocument.class));
             LOG.debug("Factory URL stored on VSTS: {}", newDocument);
 
-        } catch (IOException | ApiException e) {
+        } catch (RetryLaterException e) {
+            throw e;
+        } catch (ApiException e) {
             LOG.error(e.getLocalizedMessage(), e);
             throw new ServerException(e.getLocalizedMessage());
         }
+        return newDocument;
     }
 
     /**
-     * Get URL of repository name
+     * Remove a project setting from VSTS extension storage
+     *
+     * @param visualStudioHost
+     *         the VSTS host
+     * @param account
+     *         the VSTS account
+     * @param collection
+     *         the VSTS collection
+     * @param apiVersion
+     *         the VSTS API version to use
+     * @param credentials
+     *         the VSTS credentials to use
+     * @param settingKey
+     *         the name of the storage key to remove
+     * @throws ServerException
+     */
+    public void deleteFactorySetting(final String visualStudioHost, final String account, final String collection,
+                                     final String apiVersion, final VSTSCredentials credentials, final String settingKey)
+            throws ServerException {
+        final String documentUrl = extensionStorageHttpUrl(visualStudioHost, account, collection) + "/" + settingKey;
+
+        try {
+            vstsClient.call(account, documentUrl, client -> request(client, documentUrl, apiVersion, credentials).delete(),
+                            VSTSConnection::checkStatus);
+            LOG.debug("Factory setting {} removed from VSTS", settingKey);
+
+        } catch (RetryLaterException e) {
+            throw e;
+        } catch (ApiException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            throw new ServerException(e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Get URL of repository name, from the cache if present
      *
      * @param repositoryIdUrl
      *         the repository id URL
      * @param apiVersion
      *         the VSTS API version to use
+     * @param credentials
+     *         the VSTS credentials to use
      * @return the repository name URL
+     * @throws ServerException
+     *         if the repository cannot be obtained or was not found recently
      */
-    public String getRepositoryNameUrl(String repositoryIdUrl, String apiVersion, final Pair<String, String> credentials)
+    public String getRepositoryNameUrl(String repositoryIdUrl, String apiVersion, final VSTSCredentials credentials)
             throws ServerException {
-        final String userCredentials = credentials.first + ":" + credentials.second;
-        final String basicAuth = "Basic " + new String(Base64.getEncoder().encode(userCredentials.getBytes()));
+        final RepositoryKey key = new RepositoryKey(repositoryIdUrl, apiVersion, credentials);
+        final String notFound = repositoriesNotFound.getIfPresent(key);
+        if (notFound != null) {
+            repositoryNameUrls.invalidate(key);
+            throw new ServerException(notFound);
+        }
+        try {
+            return repositoryNameUrls.get(key);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof ServerException) {
+                throw (ServerException)e.getCause();
+            }
+            throw new ServerException(e.getCause().getLocalizedMessage());
+        }
+    }
 
-        HttpJsonRequest httpJsonRequest = httpJsonRequestFactory.fromUrl(repositoryIdUrl).useGetMethod().setAuthorizationHeader(
-                basicAuth).addQueryParam("api-version", apiVersion);
+    private String fetchRepositoryNameUrl(final RepositoryKey key) throws ServerException {
         try {
-            HttpJsonResponse response = httpJsonRequest.request();
-            Repository repository = response.asDto(Repository.class);
+            Repository repository =
+                    vstsClient.call(getAccount(key.repositoryIdUrl), key.repositoryIdUrl,
+                                    client -> request(client, key.repositoryIdUrl, key.apiVersion, key.credentials).get(),
+                                    response -> readDto(response, Repository.class));
             LOG.debug("Repository obtained: {}", repository);
             return repository.getRemoteUrl();
 
-        } catch (IOException | ApiException e) {
+        } catch (NotFoundException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+            repositoriesNotFound.put(key, e.getLocalizedMessage());
+            throw new ServerException(e.getLocalizedMessage());
+        } catch (RetryLaterException e) {
+            // Kept as is, so that the caller knows when to try again
+            throw e;
+        } catch (ApiException e) {
             LOG.error(e.getLocalizedMessage(), e);
             throw new ServerException(e.getLocalizedMessage());
         }
     }
 
+    /**
+     * Get the budget of the VSTS accounts, by metric name
+     */
+    public Map<String, Number> getMetrics() {
+        return vstsClient.getMetrics();
+    }
+
+    private static Invocation.Builder request(final Client client, final String url, final String apiVersion,
+                                              final VSTSCredentials credentials) {
+        return client.target(url)
+                     .queryParam("api-version", apiVersion)
+                     .request(APPLICATION_JSON)
+                     .header(AUTHORIZATION, credentials.getAuthorizationHeader());
+    }
+
+    /**
+     * Check that VSTS accepted a request
+     *
+     * @param response
+     *         the response of VSTS
+     * @throws NotFoundException
+     *         if VSTS answered HTTP 404
+     * @throws ServerException
+     *         if VSTS answered another error
+     */
+    private static Void checkStatus(final Response response) throws ApiException {
+        final int status = response.getStatus();
+        if (status >= 200 && status < 300) {
+            return null;
+        }
+        final String message = "VSTS answered HTTP " + status + ": " + response.readEntity(String.class);
+        if (status == 404) {
+            throw new NotFoundException(message);
+        }
+        throw new ServerException(message);
+    }
+
+    private static <T> T readDto(final Response response, final Class<T> dtoClass) throws ApiException {
+        checkStatus(response);
+        return DtoFactory.getInstance().createDtoFromJson(response.readEntity(String.class), dtoClass);
+    }
+
+    /**
+     * Get the VSTS account of a URL
+     *
+     * @param url
+     *         an URL of VSTS REST API: 'https://{account}.{host}.com/...'
+     * @return the VSTS account
+     */
+    private static String getAccount(final String url) {
+        final String host = URI.create(url).getHost();
+        return host == null ? url : host.substring(0, host.indexOf('.') > 0 ? host.indexOf('.') : host.length());
+    }
+
     /**
      * Build VSTS extension storage URL
      *
@@ -145,4 +319,37 @@ public class VSTSConnection {
                                             "/Data/Scopes/Default/Current/Collections/$settings/Documents";
         return format("%s://%s/%s/%s", PROTOCOL, host, collectionPath, extensionStoragePath);
     }
+
+    /**
+     * A repository as seen with given credentials
+     */
+    private static final class RepositoryKey {
+        private final String          repositoryIdUrl;
+        private final String          apiVersion;
+        private final VSTSCredentials credentials;
+
+        RepositoryKey(final String repositoryIdUrl, final String apiVersion, final VSTSCredentials credentials) {
+            this.repositoryIdUrl = repositoryIdUrl;
+            this.apiVersion = apiVersion;
+            this.credentials = credentials;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RepositoryKey)) {
+                return false;
+            }
+            final RepositoryKey other = (RepositoryKey)o;
+            return repositoryIdUrl.equals(other.repositoryIdUrl) && Objects.equals(apiVersion, other.apiVersion)
+                   && Objects.equals(credentials, other.credentials);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(repositoryIdUrl, apiVersion, credentials);
+        }
+    }
 }
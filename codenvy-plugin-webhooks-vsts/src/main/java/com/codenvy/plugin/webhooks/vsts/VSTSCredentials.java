@@ -0,0 +1,77 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import java.util.Base64;
+import java.util.Objects;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Credentials of a VSTS webhook: a username and a password or personal access token.
+ * The 'Authorization' header is computed once, when the webhook is loaded.
+ * A rotated token is taken into account when {@link VSTSWebhookRegistry} reloads the webhooks, which creates new credentials.
+ *
+ * @author Stephane Tournie
+ */
+public final class VSTSCredentials {
+
+    private final String username;
+    private final String password;
+    private final String authorizationHeader;
+
+    public VSTSCredentials(final String username, final String password) {
+        this.username = username;
+        this.password = password;
+        this.authorizationHeader = "Basic " + Base64.getEncoder().encodeToString((username + ":" + password).getBytes(UTF_8));
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the value of the 'Authorization' header of requests made with these credentials
+     */
+    public String getAuthorizationHeader() {
+        return authorizationHeader;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VSTSCredentials)) {
+            return false;
+        }
+        final VSTSCredentials other = (VSTSCredentials)o;
+        return Objects.equals(username, other.username) && Objects.equals(password, other.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(username, password);
+    }
+
+    @Override
+    public String toString() {
+        return "VSTSCredentials{username=" + username + "}";
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.RetryLaterException;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Request budget of each VSTS account, so that calls slow down instead of failing when VSTS throttles them
+ *
+ * Each account has a token bucket of 'webhooks.vsts.rate.burst' requests (system property, default 10)
+ * refilled at up to 'webhooks.vsts.rate.per.second' requests per second (default 5).
+ * The rate adapts to VSTS answers: it is halved when VSTS throttles a call (HTTP 429 or 'Retry-After' header),
+ * no call is sent before the 'Retry-After' delay, the rate is lowered to spread the 'X-RateLimit-Remaining' requests
+ * until 'X-RateLimit-Reset', and it grows back to the configured rate while calls succeed.
+ * A call waits at most 'webhooks.vsts.throttle.max.wait.seconds' (default 5) for the budget of its account,
+ * otherwise it fails with a {@link RetryLaterException} giving the time the budget would have taken.
+ * If 'webhooks.async' system property is true, a call never waits: the stored event is processed again later,
+ * instead of holding a worker thread while the account is throttled.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class VSTSRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSTSRateLimiter.class);
+
+    private static final double DEFAULT_RATE             = Double.parseDouble(System.getProperty("webhooks.vsts.rate.per.second", "5"));
+    private static final int    DEFAULT_BURST            = Integer.getInteger("webhooks.vsts.rate.burst", 10);
+    private static final long   DEFAULT_MAX_WAIT_SECONDS =
+            Boolean.getBoolean("webhooks.async") ? 0 : Long.getLong("webhooks.vsts.throttle.max.wait.seconds", 5L);
+
+    static final String RETRY_AFTER          = "Retry-After";
+    static final String RATE_LIMIT_REMAINING = "X-RateLimit-Remaining";
+    static final String RATE_LIMIT_RESET     = "X-RateLimit-Reset";
+
+    private final ConcurrentMap<String, Budget> budgets;
+    private final double                        rate;
+    private final int                           burst;
+    private final long                          maxWaitNanos;
+
+    @Inject
+    public VSTSRateLimiter() {
+        this(DEFAULT_RATE, DEFAULT_BURST, DEFAULT_MAX_WAIT_SECONDS, SECONDS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param rate
+     *         the maximum number of requests per second to an account
+     * @param burst
+     *         the number of requests that can be sent at once to an account that was idle
+     * @param maxWait
+     *         how long a call waits for the budget of its account, 0 to never wait
+     * @param unit
+     *         the unit of maxWait
+     */
+    public VSTSRateLimiter(final double rate, final int burst, final long maxWait, final TimeUnit unit) {
+        this.budgets = new ConcurrentHashMap<>();
+        this.rate = rate;
+        this.burst = burst;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+    }
+
+    /**
+     * Wait until a request can be sent to an account
+     *
+     * @param account
+     *         the VSTS account
+     * @throws RetryLaterException
+     *         if the request would wait longer than the maximum wait
+     * @throws ServerException
+     *         if the thread is interrupted
+     */
+    public void acquire(final String account) throws ServerException {
+        final Budget budget = getBudget(account);
+        final long waitNanos = budget.reserve(maxWaitNanos);
+        if (waitNanos > maxWaitNanos) {
+            throw new RetryLaterException("VSTS account " + account + " is throttled, next request can be sent in "
+                                          + NANOSECONDS.toMillis(waitNanos) + " ms", NANOSECONDS.toMillis(waitNanos));
+        }
+        if (waitNanos > 0) {
+            LOG.debug("Request to VSTS account {} delayed {} ms", account, NANOSECONDS.toMillis(waitNanos));
+            try {
+                NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServerException("Interrupted while waiting for the budget of VSTS account " + account);
+            }
+        }
+    }
+
+    /**
+     * Adapt the budget of an account to the answer of VSTS
+     *
+     * @param account
+     *         the VSTS account
+     * @param status
+     *         the HTTP status of the answer
+     * @param headers
+     *         the function that gives the value of a header of the answer, null if absent
+     * @return true if VSTS throttled the request, and it should be sent again
+     */
+    public boolean onResponse(final String account, final int status, final Function<String, String> headers) {
+        final long retryAfterNanos = parseRetryAfter(headers.apply(RETRY_AFTER));
+        final boolean throttled = status == 429 || (status == 503 && retryAfterNanos >= 0);
+        final Budget budget = getBudget(account);
+        budget.update(throttled, retryAfterNanos, parseLong(headers.apply(RATE_LIMIT_REMAINING)),
+                      parseLong(headers.apply(RATE_LIMIT_RESET)));
+        if (throttled) {
+            LOG.warn("VSTS account {} throttled requests (HTTP {}), rate lowered to {} requests per second", account, status,
+                     String.format("%.2f", budget.getRate()));
+        }
+        return throttled;
+    }
+
+    /**
+     * @param account
+     *         the VSTS account
+     * @return how long a request to the account would wait for its budget now, in milliseconds
+     */
+    public long getWaitMillis(final String account) {
+        return NANOSECONDS.toMillis(getBudget(account).getWait());
+    }
+
+    /**
+     * Get the budget of the accounts, by metric name
+     */
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new LinkedHashMap<>();
+        new TreeMap<>(budgets).forEach((account, budget) -> {
+            final String prefix = "webhooks.vsts." + account + '.';
+            metrics.put(prefix + "rate", budget.getRate());
+            metrics.put(prefix + "tokens", budget.getTokens());
+            metrics.put(prefix + "remaining", budget.getRemaining());
+            metrics.put(prefix + "throttled", budget.throttled.get());
+            metrics.put(prefix + "delayed.ms", NANOSECONDS.toMillis(budget.delayedNanos.get()));
+        });
+        return metrics;
+    }
+
+    private Budget getBudget(final String account) {
+        return budgets.computeIfAbsent(account, a -> new Budget(rate, burst));
+    }
+
+    /**
+     * @return the delay given by a 'Retry-After' header (seconds or date), in nanoseconds, -1 if absent or invalid
+     */
+    static long parseRetryAfter(final String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return -1;
+        }
+        try {
+            return SECONDS.toNanos(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                final ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                final long delayMillis = date.toInstant().toEpochMilli() - System.currentTimeMillis();
+                return TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+
+    private static long parseLong(final String value) {
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Token bucket of an account
+     */
+    static final class Budget {
+
+        // Lowest rate the budget adapts to, in requests per second
+        private static final double MIN_RATE = 0.1;
+
+        private final double maxRate;
+        private final int    capacity;
+
+        private double rate;
+        private double tokens;
+        private long   refilledAt;
+        private long   blockedUntil;
+        private long   remaining;
+
+        private final AtomicLong throttled;
+        private final AtomicLong delayedNanos;
+
+        Budget(final double maxRate, final int capacity) {
+            this.maxRate = maxRate;
+            this.capacity = capacity;
+            this.rate = maxRate;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+            this.blockedUntil = refilledAt;
+            this.remaining = -1;
+            this.throttled = new AtomicLong();
+            this.delayedNanos = new AtomicLong();
+        }
+
+        /**
+         * Take a token, possibly in advance
+         *
+         * @param maxWaitNanos
+         *         the longest acceptable wait
+         * @return how long the caller must wait before sending its request, no token is taken if longer than maxWaitNanos
+         */
+        synchronized long reserve(final long maxWaitNanos) {
+            final long wait = getWait();
+            if (wait > maxWaitNanos) {
+                return wait;
+            }
+            tokens -= 1;
+            if (wait > 0) {
+                delayedNanos.addAndGet(wait);
+            }
+            return wait;
+        }
+
+        /**
+         * @return how long a request would wait for a token, without taking it
+         */
+        synchronized long getWait() {
+            final long now = System.nanoTime();
+            refill(now);
+            final double missing = 1 - tokens;
+            final long tokenWait = missing > 0 ? (long)(missing / rate * SECONDS.toNanos(1)) : 0;
+            return Math.max(0, Math.max(tokenWait, blockedUntil - now));
+        }
+
+        synchronized void update(final boolean wasThrottled, final long retryAfterNanos, final long remaining,
+                                 final long resetEpochSeconds) {
+            final long now = System.nanoTime();
+            refill(now);
+            if (retryAfterNanos >= 0) {
+                blockedUntil = Math.max(blockedUntil, now + retryAfterNanos);
+            }
+            if (wasThrottled) {
+                throttled.incrementAndGet();
+                rate = Math.max(MIN_RATE, rate / 2);
+                tokens = Math.min(tokens, 0);
+            } else if (remaining < 0) {
+                // Additive increase while VSTS doesn't report any limit
+                rate = Math.min(maxRate, rate + maxRate / 10);
+            }
+            if (remaining >= 0) {
+                this.remaining = remaining;
+                if (resetEpochSeconds > 0) {
+                    // Spread the remaining requests until the limit is reset
+                    final long secondsToReset = Math.max(1, resetEpochSeconds - System.currentTimeMillis() / 1000);
+                    rate = Math.max(MIN_RATE, Math.min(maxRate, (double)remaining / secondsToReset));
+                }
+            }
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        synchronized double getTokens() {
+            refill(System.nanoTime());
+            return tokens;
+        }
+
+        synchronized long getRemaining() {
+            return remaining;
+        }
+
+        private void refill(final long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (double)(now - refilledAt) / SECONDS.toNanos(1) * rate);
+                refilledAt = now;
+            }
+        }
+    }
+}
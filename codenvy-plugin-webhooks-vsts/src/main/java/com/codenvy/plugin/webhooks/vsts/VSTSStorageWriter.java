@@ -0,0 +1,266 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.vsts.shared.StorageDocument;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Write factory settings into VSTS extension storage in batches
+ *
+ * Writes to the same collection are gathered for 'webhooks.vsts.storage.batch.window.ms' (system property, default 100)
+ * or until 'webhooks.vsts.storage.batch.size' writes (default 50) are pending, then flushed together.
+ * Only the last write of a setting is sent. VSTS has no batch endpoint for extension storage documents,
+ * so the documents of a batch are sent as concurrent requests, by up to 'webhooks.vsts.storage.concurrency' threads (default 4).
+ * Each write gets its own result.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class VSTSStorageWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSTSStorageWriter.class);
+
+    private static final long DEFAULT_WINDOW_MS   = Long.getLong("webhooks.vsts.storage.batch.window.ms", 100L);
+    private static final int  DEFAULT_BATCH_SIZE  = Integer.getInteger("webhooks.vsts.storage.batch.size", 50);
+    private static final int  DEFAULT_CONCURRENCY = Integer.getInteger("webhooks.vsts.storage.concurrency", 4);
+
+    private final VSTSConnection              vstsConnection;
+    private final long                        windowMillis;
+    private final int                         batchSize;
+    private final ScheduledThreadPoolExecutor flushes;
+    private final ThreadPoolExecutor          writers;
+    // collection -> writes waiting to be flushed, guarded by this
+    private final Map<VSTSCollection, Batch>  batches;
+    private final AtomicLong                  flushedBatches;
+    private final AtomicLong                  sentDocuments;
+
+    @Inject
+    public VSTSStorageWriter(final VSTSConnection vstsConnection) {
+        this(vstsConnection, DEFAULT_WINDOW_MS, MILLISECONDS, DEFAULT_BATCH_SIZE, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param vstsConnection
+     *         the connection used to write documents
+     * @param window
+     *         how long writes to a collection are gathered
+     * @param unit
+     *         the unit of window
+     * @param batchSize
+     *         the number of pending writes to a collection that triggers a flush
+     * @param concurrency
+     *         the maximum number of documents sent at the same time
+     */
+    public VSTSStorageWriter(final VSTSConnection vstsConnection, final long window, final TimeUnit unit, final int batchSize,
+                             final int concurrency) {
+        this.vstsConnection = vstsConnection;
+        this.windowMillis = unit.toMillis(window);
+        this.batchSize = batchSize;
+        final ScheduledThreadPoolExecutor flushes = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread thread = new Thread(r, "webhooks-vsts-storage-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushes.setRemoveOnCancelPolicy(true);
+        this.flushes = flushes;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.writers = new ThreadPoolExecutor(concurrency, concurrency, 60, SECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "webhooks-vsts-storage-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writers.allowCoreThreadTimeOut(true);
+        this.batches = new HashMap<>();
+        this.flushedBatches = new AtomicLong();
+        this.sentDocuments = new AtomicLong();
+    }
+
+    /**
+     * Store a factory URL as a project setting into VSTS extension storage, with the next batch of its collection
+     *
+     * @param visualStudioHost
+     *         the VSTS host
+     * @param account
+     *         the VSTS account
+     * @param collection
+     *         the VSTS collection
+     * @param apiVersion
+     *         the VSTS API version to use
+     * @param credentials
+     *         the VSTS credentials to use
+     * @param settingKey
+     *         the name of the storage key
+     * @param factoryUrl
+     *         the factory URL that will be stored
+     * @return the document stored, completed exceptionally with a {@link ServerException} if it could not be stored
+     */
+    public CompletableFuture<StorageDocument> storeFactorySetting(final String visualStudioHost, final String account,
+                                                                  final String collection, final String apiVersion,
+                                                                  final VSTSCredentials credentials, final String settingKey,
+                                                                  final String factoryUrl) {
+        final VSTSCollection vstsCollection = new VSTSCollection(visualStudioHost, account, collection);
+        final Write write = new Write(apiVersion, credentials, settingKey, factoryUrl);
+        final Batch full;
+        synchronized (this) {
+            final Batch batch = batches.computeIfAbsent(vstsCollection, c -> {
+                final Batch newBatch = new Batch(c);
+                flushes.schedule(() -> flush(newBatch), windowMillis, MILLISECONDS);
+                return newBatch;
+            });
+            batch.add(write);
+            full = batch.size() >= batchSize ? batch : null;
+        }
+        if (full != null) {
+            flush(full);
+        }
+        return write.result;
+    }
+
+    /**
+     * @return the number of writes waiting to be flushed
+     */
+    public synchronized int getPendingCount() {
+        return batches.values().stream().mapToInt(Batch::size).sum();
+    }
+
+    /**
+     * Get the activity of the writer, by metric name
+     */
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("webhooks.vsts.storage.pending", getPendingCount());
+        metrics.put("webhooks.vsts.storage.batches", flushedBatches.get());
+        metrics.put("webhooks.vsts.storage.documents", sentDocuments.get());
+        return metrics;
+    }
+
+    @PreDestroy
+    public void stop() {
+        final List<Batch> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        pending.forEach(batch -> batch.fail("VSTS storage writer stopped before the setting was stored"));
+        flushes.shutdownNow();
+        writers.shutdownNow();
+    }
+
+    private void flush(final Batch batch) {
+        synchronized (this) {
+            // The batch is flushed once, either when it is full or when its window ends
+            if (!batches.remove(batch.collection, batch)) {
+                return;
+            }
+        }
+        flushedBatches.incrementAndGet();
+        LOG.debug("Flushing {} settings of {}", batch.size(), batch.collection);
+        for (List<Write> writes : batch.writes.values()) {
+            // Only the last value of a setting is sent, all writes of the setting get its result
+            final Write last = writes.get(writes.size() - 1);
+            try {
+                writers.execute(() -> send(batch.collection, last, writes));
+            } catch (RejectedExecutionException e) {
+                writes.forEach(write -> write.result.completeExceptionally(new ServerException("VSTS storage writer is stopped")));
+            }
+        }
+    }
+
+    private void send(final VSTSCollection collection, final Write last, final List<Write> writes) {
+        try {
+            sentDocuments.incrementAndGet();
+            final StorageDocument document =
+                    vstsConnection.storeFactorySetting(collection.getHost(), collection.getAccount(), collection.getCollection(),
+                                                       last.apiVersion, last.credentials, last.settingKey, last.factoryUrl);
+            writes.forEach(write -> write.result.complete(document));
+        } catch (ServerException | RuntimeException e) {
+            writes.forEach(write -> write.result.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * A pending write of a setting
+     */
+    private static final class Write {
+        private final String                             apiVersion;
+        private final VSTSCredentials                    credentials;
+        private final String                             settingKey;
+        private final String                             factoryUrl;
+        private final CompletableFuture<StorageDocument> result;
+
+        Write(final String apiVersion, final VSTSCredentials credentials, final String settingKey, final String factoryUrl) {
+            this.apiVersion = apiVersion;
+            this.credentials = credentials;
+            this.settingKey = settingKey;
+            this.factoryUrl = factoryUrl;
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * The writes to a collection gathered during a window
+     */
+    private static final class Batch {
+        private final VSTSCollection           collection;
+        // setting key -> writes of the setting, in the order they were made
+        private final Map<String, List<Write>> writes;
+        private       int                      size;
+
+        Batch(final VSTSCollection collection) {
+            this.collection = collection;
+            this.writes = new LinkedHashMap<>();
+        }
+
+        void add(final Write write) {
+            writes.computeIfAbsent(write.settingKey, key -> new ArrayList<>()).add(write);
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void fail(final String message) {
+            writes.values().forEach(settingWrites -> settingWrites.forEach(
+                    write -> write.result.completeExceptionally(new ServerException(message))));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.PropertiesRegistry;
+import com.google.common.collect.ImmutableMap;
+
+import org.eclipse.che.api.core.ServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Singleton;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import static com.codenvy.plugin.webhooks.vsts.VSTSWebhookType.PULL_REQUEST_UPDATED_WEBHOOK;
+import static com.codenvy.plugin.webhooks.vsts.VSTSWebhookType.WORK_ITEM_CREATED_WEBHOOK;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * In-memory registry of the VSTS webhooks configured in VSTS_WEBHOOKS_PROPERTIES_FILENAME properties file,
+ * indexed by VSTS host, account and collection
+ *
+ * Work item created webhook: [webhook-name]=work-item-created,[host],[account],[collection],[api-version],[username],[password]
+ * Pull request updated webhook: [webhook-name]=pull-request-updated,[host],[account],[collection],[api-version],[username],[password],[factory-id];...;[factory-id]
+ *
+ * No more than one webhook of each type can be configured for a given collection, the first one found is kept.
+ *
+ * @author Stephane Tournie
+ */
+@Singleton
+public class VSTSWebhookRegistry extends PropertiesRegistry<VSTSWebhookRegistry.Webhooks> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSTSWebhookRegistry.class);
+
+    static final String VSTS_WEBHOOKS_PROPERTIES_FILENAME = "vsts-webhooks.properties";
+
+    public VSTSWebhookRegistry() {
+        this(VSTS_WEBHOOKS_PROPERTIES_FILENAME);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param fileName
+     *         the properties file the webhooks are configured in
+     */
+    public VSTSWebhookRegistry(final String fileName) {
+        super(fileName);
+    }
+
+    /**
+     * Get configured 'work item created' webhook for given account, host and collection
+     *
+     * @param host
+     *         the VSTS host
+     * @param account
+     *         the VSTS account
+     * @param collection
+     *         the VSTS collection
+     * @return the webhook configured for given account, host and collection or an empty {@link Optional} if no webhook is configured
+     * @throws ServerException
+     */
+    public Optional<WorkItemCreatedWebhook> getWorkItemCreatedWebhook(final String host, final String account, final String collection)
+            throws ServerException {
+        return Optional.ofNullable(get().workItemCreatedWebhooks.get(new VSTSCollection(host, account, collection)));
+    }
+
+    /**
+     * Get configured 'pull request updated' webhook for given account, host and collection.
+     * The returned webhook is shared, copy it before adding or removing factories.
+     *
+     * @param host
+     *         the VSTS host
+     * @param account
+     *         the VSTS account
+     * @param collection
+     *         the VSTS collection
+     * @return the webhook configured for given account, host and collection or an empty {@link Optional} if no webhook is configured
+     * @throws ServerException
+     */
+    public Optional<PullRequestUpdatedWebhook> getPullRequestUpdatedWebhook(final String host, final String account,
+                                                                            final String collection) throws ServerException {
+        return Optional.ofNullable(get().pullRequestUpdatedWebhooks.get(new VSTSCollection(host, account, collection)));
+    }
+
+    @Override
+    protected Webhooks parse(Properties webhooksProperties) {
+        final Map<VSTSCollection, WorkItemCreatedWebhook> wicWebhooks = new HashMap<>();
+        final Map<VSTSCollection, PullRequestUpdatedWebhook> pruWebhooks = new HashMap<>();
+
+        for (String key : webhooksProperties.stringPropertyNames()) {
+            String value = webhooksProperties.getProperty(key);
+            if (isNullOrEmpty(value)) {
+                continue;
+            }
+            String[] valueSplit = value.split(",");
+            if (valueSplit.length < 7) {
+                continue;
+            }
+            final VSTSCollection vstsCollection = new VSTSCollection(valueSplit[1], valueSplit[2], valueSplit[3]);
+
+            if (valueSplit.length == 7 && valueSplit[0].equals(WORK_ITEM_CREATED_WEBHOOK.toString())) {
+                WorkItemCreatedWebhook webhook =
+                        new WorkItemCreatedWebhook(valueSplit[1], valueSplit[2], valueSplit[3], valueSplit[4],
+                                                   new VSTSCredentials(valueSplit[5], valueSplit[6]));
+                if (wicWebhooks.putIfAbsent(vstsCollection, webhook) == null) {
+                    LOG.debug("new WorkItemCreatedWebhook({})", value);
+                } else {
+                    LOG.warn("Several 'work item created' webhooks are configured for {}, webhook {} is ignored", vstsCollection, key);
+                }
+
+            } else if (valueSplit[0].equals(PULL_REQUEST_UPDATED_WEBHOOK.toString())) {
+                final String[] factoriesIDs = (valueSplit.length == 8 ? valueSplit[7].split(";") : new String[0]);
+                PullRequestUpdatedWebhook webhook =
+                        new PullRequestUpdatedWebhook(valueSplit[1], valueSplit[2], valueSplit[3], valueSplit[4],
+                                                      new VSTSCredentials(valueSplit[5], valueSplit[6]), factoriesIDs);
+                if (pruWebhooks.putIfAbsent(vstsCollection, webhook) == null) {
+                    LOG.debug("new PullRequestUpdatedWebhook({})", value);
+                } else {
+                    LOG.warn("Several 'pull request updated' webhooks are configured for {}, webhook {} is ignored", vstsCollection, key);
+                }
+            }
+        }
+        return new Webhooks(ImmutableMap.copyOf(wicWebhooks), ImmutableMap.copyOf(pruWebhooks));
+    }
+
+    /**
+     * Immutable snapshot of the configured VSTS webhooks
+     */
+    static final class Webhooks {
+
+        private final Map<VSTSCollection, WorkItemCreatedWebhook>    workItemCreatedWebhooks;
+        private final Map<VSTSCollection, PullRequestUpdatedWebhook> pullRequestUpdatedWebhooks;
+
+        private Webhooks(final Map<VSTSCollection, WorkItemCreatedWebhook> workItemCreatedWebhooks,
+                         final Map<VSTSCollection, PullRequestUpdatedWebhook> pullRequestUpdatedWebhooks) {
+            this.workItemCreatedWebhooks = workItemCreatedWebhooks;
+            this.pullRequestUpdatedWebhooks = pullRequestUpdatedWebhooks;
+        }
+    }
+}
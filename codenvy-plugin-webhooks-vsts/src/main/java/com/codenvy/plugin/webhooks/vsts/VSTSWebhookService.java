@@ -20,28 +20,36 @@ import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
-import com.codenvy.plugin.webhooks.AuthConnection;
+import com.codenvy.plugin.webhooks.AuthTokenCache;
+import com.codenvy.plugin.webhooks.BaseWebhookService;
+import com.codenvy.plugin.webhooks.DeliveryDeduplicator;
+import com.codenvy.plugin.webhooks.EndpointGuards;
 import com.codenvy.plugin.webhooks.FactoryConnection;
+import com.codenvy.plugin.webhooks.FactoryFetcher;
+import com.codenvy.plugin.webhooks.FactoryIndex;
 import com.codenvy.plugin.webhooks.FactoryType;
+import com.codenvy.plugin.webhooks.JsonFieldExtractor;
+import com.codenvy.plugin.webhooks.RetryLaterException;
 import com.codenvy.plugin.webhooks.UserConnection;
-import com.codenvy.plugin.webhooks.BaseWebhookService;
-import com.codenvy.plugin.webhooks.vsts.shared.GenericEvent;
-import com.codenvy.plugin.webhooks.vsts.shared.PullRequestUpdatedEvent;
-import com.codenvy.plugin.webhooks.vsts.shared.WorkItemCreationEvent;
-import com.codenvy.plugin.webhooks.vsts.shared.WorkItemCreationResource;
+import com.codenvy.plugin.webhooks.WebhookEvent;
+import com.codenvy.plugin.webhooks.connectors.ConnectorDispatcher;
+import com.codenvy.plugin.webhooks.connectors.ConnectorRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
 
 import org.eclipse.che.api.core.ServerException;
 import org.eclipse.che.api.core.rest.shared.dto.Link;
 import org.eclipse.che.api.factory.shared.dto.Factory;
 import org.eclipse.che.api.factory.shared.dto.Policies;
 import org.eclipse.che.commons.env.EnvironmentContext;
-import org.eclipse.che.commons.lang.IoUtil;
-import org.eclipse.che.commons.lang.Pair;
 import org.eclipse.che.dto.server.DtoFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.Consumes;
@@ -50,44 +58,108 @@ import javax.ws.rs.Path;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static com.codenvy.plugin.webhooks.FactoryType.DEVELOP;
 import static com.codenvy.plugin.webhooks.FactoryType.REVIEW;
 import static com.codenvy.plugin.webhooks.vsts.VSTSWebhookType.PULL_REQUEST_UPDATED_WEBHOOK;
-import static com.codenvy.plugin.webhooks.vsts.VSTSWebhookType.WORK_ITEM_CREATED_WEBHOOK;
 
 @Api(
         value = "/vsts-webhook",
         description = "VSTS webhooks handler"
 )
 @Path("/vsts-webhook")
+@Singleton
 public class VSTSWebhookService extends BaseWebhookService {
 
-    private static final Logger LOG                               = LoggerFactory.getLogger(VSTSWebhookService.class);
-    private static final String VSTS_WEBHOOKS_PROPERTIES_FILENAME = "vsts-webhooks.properties";
-
-    private final FactoryConnection factoryConnection;
-    private final UserConnection    userConnection;
-    private final VSTSConnection    vstsConnection;
+    private static final Logger LOG = LoggerFactory.getLogger(VSTSWebhookService.class);
+
+    private static final String DELIVERY_SOURCE = "vsts";
+
+    private static final String WORK_ITEM_CREATED    = "workitem.created";
+    private static final String PULL_REQUEST_UPDATED = "git.pullrequest.updated";
+
+    // Paths of the fields of VSTS events that are needed to process them
+    private static final String EVENT_TYPE                     = "eventType";
+    private static final String EVENT_ID                       = "id";
+    private static final String ACCOUNT_ID                     = "resourceContainers.account.id";
+    private static final String COLLECTION_ID                  = "resourceContainers.collection.id";
+    private static final String WI_ID                          = "resource.id";
+    private static final String WI_TEAM_PROJECT                = "resource.fields.System.TeamProject";
+    private static final String WI_SELF_HREF                   = "resource._links.self.href";
+    private static final String PR_STATUS                      = "resource.status";
+    private static final String PR_MERGE_STATUS                = "resource.mergeStatus";
+    private static final String PR_REPOSITORY_URL              = "resource.repository.url";
+    private static final String PR_SOURCE_REF_NAME             = "resource.sourceRefName";
+    private static final String PR_LAST_MERGE_SOURCE_COMMIT_ID = "resource.lastMergeSourceCommit.commitId";
+
+    private static final JsonFieldExtractor EVENT_FIELDS =
+            new JsonFieldExtractor(EVENT_TYPE, EVENT_ID, ACCOUNT_ID, COLLECTION_ID, WI_ID, WI_TEAM_PROJECT, WI_SELF_HREF, PR_STATUS,
+                                   PR_MERGE_STATUS, PR_REPOSITORY_URL, PR_SOURCE_REF_NAME, PR_LAST_MERGE_SOURCE_COMMIT_ID);
+
+    private static final Map<String, Set<String>> REQUIRED_FIELDS = ImmutableMap.of(
+            WORK_ITEM_CREATED, ImmutableSet.of(EVENT_TYPE, EVENT_ID, ACCOUNT_ID, COLLECTION_ID, WI_ID, WI_TEAM_PROJECT, WI_SELF_HREF),
+            PULL_REQUEST_UPDATED, ImmutableSet.of(EVENT_TYPE, EVENT_ID, ACCOUNT_ID, COLLECTION_ID, PR_STATUS, PR_MERGE_STATUS,
+                                                  PR_REPOSITORY_URL, PR_SOURCE_REF_NAME, PR_LAST_MERGE_SOURCE_COMMIT_ID));
+
+    // Maximum number of factories of work items created at the same time
+    private static final int WORK_ITEMS_THREADS = Integer.getInteger("webhooks.vsts.workitems.threads", 8);
+
+    private final FactoryConnection   factoryConnection;
+    private final UserConnection      userConnection;
+    private final VSTSConnection      vstsConnection;
+    private final VSTSStorageWriter   storageWriter;
+    private final VSTSWebhookRegistry webhookRegistry;
+    private final ThreadPoolExecutor  workItemExecutor;
 
     @Inject
-    public VSTSWebhookService(final AuthConnection authConnection, final FactoryConnection factoryConnection,
-                              final UserConnection userConnection, final VSTSConnection vstsConnection) {
-        super(authConnection, factoryConnection);
+    public VSTSWebhookService(final AuthTokenCache authTokenCache, final FactoryConnection factoryConnection,
+                              final FactoryFetcher factoryFetcher, final FactoryIndex factoryIndex,
+                              final ConnectorRegistry connectorRegistry, final ConnectorDispatcher connectorDispatcher,
+                              final DeliveryDeduplicator deliveryDeduplicator, final EndpointGuards endpointGuards,
+                              final UserConnection userConnection, final VSTSConnection vstsConnection,
+                              final VSTSStorageWriter storageWriter, final VSTSWebhookRegistry webhookRegistry) {
+        super(authTokenCache, factoryConnection, factoryFetcher, factoryIndex, connectorRegistry, connectorDispatcher,
+              deliveryDeduplicator, endpointGuards);
 
         this.factoryConnection = factoryConnection;
         this.userConnection = userConnection;
         this.vstsConnection = vstsConnection;
+        this.storageWriter = storageWriter;
+        this.webhookRegistry = webhookRegistry;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workItemExecutor = new ThreadPoolExecutor(WORK_ITEMS_THREADS, WORK_ITEMS_THREADS, 60, SECONDS,
+                                                       new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "webhooks-vsts-work-items-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workItemExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    @PreDestroy
+    public void stop() {
+        super.stop();
+        workItemExecutor.shutdownNow();
     }
 
     @ApiOperation(value = "Handle VSTS webhook events",
@@ -104,24 +176,31 @@ public class VSTSWebhookService extends BaseWebhookService {
             throws ServerException {
         Response response = Response.ok().build();
         try (ServletInputStream inputStream = request.getInputStream()) {
-            final String requestInputString = IoUtil.readAndCloseQuietly(inputStream);
+            final byte[] payload = isAsync() ? ByteStreams.toByteArray(inputStream) : null;
 
-            // Create {@link GenericEvent} from JSON
-            final GenericEvent genericEvent = DtoFactory.getInstance().createDtoFromJson(requestInputString, GenericEvent.class);
-            final String eventType = genericEvent.getEventType();
+            // Read the fields of the event in one pass, reading stops early for event types that are not processed
+            final Map<String, String> event = readEvent(payload != null ? new ByteArrayInputStream(payload) : inputStream);
+            final String eventType = event.get(EVENT_TYPE);
             if (!isNullOrEmpty(eventType)) {
                 switch (eventType) {
-                    case "workitem.created":
-                        // Create {@link WorkItemCreationEvent} from JSON
-                        final WorkItemCreationEvent wicEvent =
-                                DtoFactory.getInstance().createDtoFromJson(requestInputString, WorkItemCreationEvent.class);
-                        handleWorkItemCreationEvent(wicEvent);
-                        break;
-                    case "git.pullrequest.updated":
-                        // Create {@link PullRequestUpdatedEvent} from JSON
-                        final PullRequestUpdatedEvent pruEvent =
-                                DtoFactory.getInstance().createDtoFromJson(requestInputString, PullRequestUpdatedEvent.class);
-                        handlePullRequestUpdatedEvent(pruEvent);
+                    case WORK_ITEM_CREATED:
+                    case PULL_REQUEST_UPDATED:
+                        final String deliveryId = event.get(EVENT_ID);
+                        if (isDuplicateDelivery(DELIVERY_SOURCE, deliveryId)) {
+                            return Response.ok(new GenericEntity<>("VSTS event \'" + deliveryId + "\' already received.", String.class))
+                                           .build();
+                        }
+                        try {
+                            if (payload != null) {
+                                return enqueueEvent(new WebhookEvent(eventType, deliveryId, getCollectionKey(event),
+                                                                     System.currentTimeMillis(), payload));
+                            }
+                            processInOrder(getCollectionKey(event), () -> handleEvent(eventType, event));
+                        } catch (ServerException | RuntimeException e) {
+                            // Let VSTS retry an event that was not processed
+                            forgetDelivery(DELIVERY_SOURCE, deliveryId);
+                            throw e;
+                        }
                         break;
                     default:
                         response = Response.accepted(
@@ -138,16 +217,90 @@ public class VSTSWebhookService extends BaseWebhookService {
         return response;
     }
 
+    @Override
+    protected String getEventQueueName() {
+        return "vsts-events";
+    }
+
+    @Override
+    protected void processEvent(final WebhookEvent event) throws ServerException, IOException {
+        handleEvent(event.getType(), readEvent(new ByteArrayInputStream(event.getPayload())));
+    }
+
+    @Override
+    protected Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = super.getMetrics();
+        metrics.putAll(vstsConnection.getMetrics());
+        metrics.putAll(storageWriter.getMetrics());
+        return metrics;
+    }
+
+    /**
+     * Read the fields of a VSTS event that are needed to process it.
+     * Reading stops as soon as the fields needed for the type of the event are found,
+     * or as soon as the type is known if the event is not intended to be processed.
+     *
+     * @param inputStream
+     *         the JSON body of the event
+     * @return the fields of the event, by path
+     */
+    private static Map<String, String> readEvent(final InputStream inputStream) throws IOException {
+        return EVENT_FIELDS.extract(inputStream, fields -> {
+            final String eventType = fields.get(EVENT_TYPE);
+            if (eventType == null) {
+                return false;
+            }
+            final Set<String> required = REQUIRED_FIELDS.get(eventType);
+            return required == null || fields.keySet().containsAll(required);
+        });
+    }
+
+    /**
+     * Get the VSTS collection an event comes from, so that events of the same collection are processed in order
+     *
+     * @param event
+     *         the fields of the event
+     * @return the account id and collection id of the event, null if unknown
+     */
+    private static String getCollectionKey(final Map<String, String> event) {
+        final String collectionId = event.get(COLLECTION_ID);
+        if (collectionId == null) {
+            return null;
+        }
+        return event.get(ACCOUNT_ID) + "/" + collectionId;
+    }
+
+    /**
+     * Handle a VSTS 'workitem.created' or 'git.pullrequest.updated' event
+     *
+     * @param eventType
+     *         the type of the event
+     * @param event
+     *         the fields of the event
+     * @throws ServerException
+     */
+    private void handleEvent(final String eventType, final Map<String, String> event) throws ServerException {
+        switch (eventType) {
+            case WORK_ITEM_CREATED:
+                handleWorkItemCreationEvent(event);
+                break;
+            case PULL_REQUEST_UPDATED:
+                handlePullRequestUpdatedEvent(event);
+                break;
+            default:
+                LOG.warn("VSTS message '{}' isn't intended to be processed", eventType);
+                break;
+        }
+    }
+
     /**
-     * Handle VSTS {@link WorkItemCreationEvent}
+     * Handle VSTS work item creation event
      *
      * @param workItemCreationEvent
-     *         the work item creation event to handle
-     * @return HTTP 200 response if event was processed successfully
-     * HTTP 202 response if event was processed partially
+     *         the fields of the work item creation event to handle
      * @throws ServerException
      */
-    private void handleWorkItemCreationEvent(WorkItemCreationEvent workItemCreationEvent) throws ServerException {
+    private void handleWorkItemCreationEvent(Map<String, String> workItemCreationEvent) throws ServerException {
         LOG.debug("{}", workItemCreationEvent);
 
         // Set current Codenvy user
@@ -159,10 +312,9 @@ public class VSTSWebhookService extends BaseWebhookService {
         final String userId = userConnection.getCurrentUser().getId();
 
         // Get work item data
-        final WorkItemCreationResource resource = workItemCreationEvent.getResource();
-        final String projectName = resource.getFields().getTeamProject().toLowerCase(Locale.getDefault());
-        final String workItemId = resource.getId();
-        final String workItemUrl = resource.getLinks().getSelf().getHref();
+        final String projectName = getField(workItemCreationEvent, WI_TEAM_PROJECT).toLowerCase(Locale.getDefault());
+        final String workItemId = getField(workItemCreationEvent, WI_ID);
+        final String workItemUrl = getField(workItemCreationEvent, WI_SELF_HREF);
 
         // Get parent factory for the project
         final List<Factory> parentFactories = factoryConnection.findFactory(projectName, userId);
@@ -174,14 +326,6 @@ public class VSTSWebhookService extends BaseWebhookService {
 
         final Factory parentFactory = parentFactories.get(0);
 
-        // Create Develop & Review factories from parent factory
-        final Factory developFactory = createFactoryForWorkItem(parentFactory, DEVELOP, workItemId);
-        final Factory storedDevelopFactory = factoryConnection.saveFactory(developFactory);
-        LOG.debug("storedDevelopFactory: {}", storedDevelopFactory);
-        final Factory reviewFactory = createFactoryForWorkItem(parentFactory, REVIEW, workItemId);
-        final Factory storedReviewFactory = factoryConnection.saveFactory(reviewFactory);
-        LOG.debug("storedReviewFactory: {}", storedReviewFactory);
-
         // Get VSTS data from work item URL
         // URL to parse: 'https://{account}.{host}.com/{collection}/_apis/wit/workItems'
         final String collectionUrl = workItemUrl.substring(0, workItemUrl.indexOf("/_apis/wit/workItems"));
@@ -194,29 +338,63 @@ public class VSTSWebhookService extends BaseWebhookService {
         final String host = hostSplit[1];
 
         // Get configured 'work item created' webhook for given VSTS account, host and collection
-        Optional<WorkItemCreatedWebhook> webhook  = getWorkItemCreatedWebhook(host, account, collection);
+        Optional<WorkItemCreatedWebhook> webhook = webhookRegistry.getWorkItemCreatedWebhook(host, account, collection);
 
         WorkItemCreatedWebhook w = webhook.orElseThrow(
                 () -> new ServerException("No 'work item created' webhook configured for collection URL " + collectionUrl));
 
-        // Prepare data to store in VSTS project settings
         final String apiVersion = w.getApiVersion();
-        final Pair<String, String> credentials = w.getCredentials();
-
-        final String developSettingKey = String.format("WI%s-%s-factory", workItemId, DEVELOP.toString());
-        final String reviewSettingKey = String.format("WI%s-%s-factory", workItemId, REVIEW.toString());
-
-        final String developFactoryUrl = getFactoryUrl(storedDevelopFactory);
-        final String reviewFactoryUrl = getFactoryUrl(storedReviewFactory);
+        final VSTSCredentials credentials = w.getCredentials();
+
+        // Create Develop & Review factories from parent factory and push their URLs to VSTS project settings storage, in parallel
+        final EnvironmentContext context = EnvironmentContext.getCurrent();
+        final List<WorkItemFactory> workItemFactories = new ArrayList<>();
+        final List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (FactoryType factoryType : new FactoryType[]{DEVELOP, REVIEW}) {
+            final WorkItemFactory workItemFactory =
+                    new WorkItemFactory(createFactoryForWorkItem(parentFactory, factoryType, workItemId),
+                                        String.format("WI%s-%s-factory", workItemId, factoryType.toString()));
+            workItemFactories.add(workItemFactory);
+            calls.add(CompletableFuture.runAsync(() -> {
+                EnvironmentContext.setCurrent(context);
+                try {
+                    workItemFactory.store(host, account, collection, apiVersion, credentials);
+                } finally {
+                    EnvironmentContext.reset();
+                }
+            }, workItemExecutor));
+        }
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture[calls.size()])).join();
+
+        final List<String> errors = workItemFactories.stream()
+                                                     .filter(workItemFactory -> workItemFactory.error != null)
+                                                     .map(workItemFactory -> workItemFactory.error)
+                                                     .collect(Collectors.toList());
+        if (!errors.isEmpty()) {
+            // Don't leave half of the factories of the work item, the event will be processed again
+            workItemFactories.forEach(workItemFactory -> workItemFactory.remove(host, account, collection, apiVersion, credentials));
+            LOG.error("Factories of work item {} could not be created: {}", workItemId, errors);
+            final String message = "Factories of work item " + workItemId + " could not be created: " + String.join(", ", errors);
+            // A throttled VSTS account gives the time after which the event can be processed again
+            final long retryDelayMillis = workItemFactories.stream()
+                                                           .map(workItemFactory -> workItemFactory.failure)
+                                                           .filter(failure -> failure instanceof RetryLaterException)
+                                                           .mapToLong(failure -> ((RetryLaterException)failure).getDelayMillis())
+                                                           .max()
+                                                           .orElse(-1);
+            if (retryDelayMillis >= 0) {
+                throw new RetryLaterException(message, retryDelayMillis);
+            }
+            throw new ServerException(message);
+        }
 
-        // Push factory URLs to VSTS project settings storage
-        vstsConnection.storeFactorySetting(host, account, collection, apiVersion, credentials, developSettingKey, developFactoryUrl);
-        vstsConnection.storeFactorySetting(host, account, collection, apiVersion, credentials, reviewSettingKey, reviewFactoryUrl);
+        final Factory storedDevelopFactory = workItemFactories.get(0).storedFactory;
+        final Factory storedReviewFactory = workItemFactories.get(1).storedFactory;
 
         // Create/update 'pull request updated' webhook that contains Develop & Review factories
-        final Optional<PullRequestUpdatedWebhook> pruWebhook = getPullRequestUpdatedWebhook(host, account, collection);
+        final Optional<PullRequestUpdatedWebhook> pruWebhook = webhookRegistry.getPullRequestUpdatedWebhook(host, account, collection);
         if (pruWebhook.isPresent()) {
-            final PullRequestUpdatedWebhook pruW = pruWebhook.get();
+            final PullRequestUpdatedWebhook pruW = new PullRequestUpdatedWebhook(pruWebhook.get());
             pruW.addFactoryId(storedDevelopFactory.getId());
             pruW.addFactoryId(storedReviewFactory.getId());
             storePullRequestUpdatedWebhook(pruW);
@@ -228,15 +406,13 @@ public class VSTSWebhookService extends BaseWebhookService {
     }
 
     /**
-     * Handle VSTS {@link PullRequestUpdatedEvent}
+     * Handle VSTS pull request updated event
      *
      * @param pullRequestUpdatedEvent
-     *         the pull request creation event to handle
-     * @return HTTP 200 response if event was processed successfully
-     * HTTP 202 response if event was processed partially
+     *         the fields of the pull request updated event to handle
      * @throws ServerException
      */
-    private void handlePullRequestUpdatedEvent(PullRequestUpdatedEvent pullRequestUpdatedEvent) throws ServerException {
+    private void handlePullRequestUpdatedEvent(Map<String, String> pullRequestUpdatedEvent) throws ServerException {
         LOG.debug("{}", pullRequestUpdatedEvent);
 
         // Set current Codenvy user
@@ -245,19 +421,19 @@ public class VSTSWebhookService extends BaseWebhookService {
         }
 
         // Get event data
-        final String prStatus = pullRequestUpdatedEvent.getResource().getStatus();
-        final String prMergeStatus = pullRequestUpdatedEvent.getResource().getMergeStatus();
+        final String prStatus = pullRequestUpdatedEvent.get(PR_STATUS);
+        final String prMergeStatus = pullRequestUpdatedEvent.get(PR_MERGE_STATUS);
 
         // Check that PR is completed and commits merged
         if ("completed".equals(prStatus) && "succeeded".equals(prMergeStatus)) {
 
             // Get event source data
-            final String repositoryIdUrl = pullRequestUpdatedEvent.getResource().getRepository().getUrl();
+            final String repositoryIdUrl = getField(pullRequestUpdatedEvent, PR_REPOSITORY_URL);
 
-            final String[] sourceBranchSplit = pullRequestUpdatedEvent.getResource().getSourceRefName().split("/");
+            final String[] sourceBranchSplit = getField(pullRequestUpdatedEvent, PR_SOURCE_REF_NAME).split("/");
             final String sourceBranch = sourceBranchSplit[sourceBranchSplit.length - 1];
 
-            final String headCommitId = pullRequestUpdatedEvent.getResource().getLastMergeSourceCommit().getCommitId();
+            final String headCommitId = getField(pullRequestUpdatedEvent, PR_LAST_MERGE_SOURCE_COMMIT_ID);
 
             // Get VSTS data from repository URL
             // URL to parse: 'https://{account}.{host}.com/{collection}/_apis/git/repositories/{repositoryId}'
@@ -271,18 +447,18 @@ public class VSTSWebhookService extends BaseWebhookService {
             final String host = hostSplit[1];
 
             // Get VSTS 'pull request merged' webhook configured for given host, account and collection
-            final Optional<PullRequestUpdatedWebhook> webhook  = getPullRequestUpdatedWebhook(host, account, collection);
+            final Optional<PullRequestUpdatedWebhook> webhook = webhookRegistry.getPullRequestUpdatedWebhook(host, account, collection);
 
-            final PullRequestUpdatedWebhook w = webhook.orElseThrow(() -> new ServerException(
+            final PullRequestUpdatedWebhook w = new PullRequestUpdatedWebhook(webhook.orElseThrow(() -> new ServerException(
                     "No 'pull request updated' webhook configured for host " + host + ", account " + account + " and collection " +
-                    collection));
+                    collection)));
 
             // Get factory id's listed into the webhook
             final Set<String> factoryIDs = w.getFactoriesIds();
 
             // Get repository named URL
             final String apiVersion = w.getApiVersion();
-            final Pair<String, String> credentials = w.getCredentials();
+            final VSTSCredentials credentials = w.getCredentials();
             final String repositoryNameUrl = vstsConnection.getRepositoryNameUrl(repositoryIdUrl, apiVersion, credentials);
 
             // Get factories that contain a project for given repository and branch
@@ -309,6 +485,61 @@ public class VSTSWebhookService extends BaseWebhookService {
         }
     }
 
+    /**
+     * A Develop or Review factory of a work item, and its URL stored in VSTS project settings
+     */
+    private final class WorkItemFactory {
+        private final Factory factory;
+        private final String  settingKey;
+
+        private volatile Factory   storedFactory;
+        private volatile boolean   settingStored;
+        private volatile String    error;
+        private volatile Throwable failure;
+
+        WorkItemFactory(final Factory factory, final String settingKey) {
+            this.factory = factory;
+            this.settingKey = settingKey;
+        }
+
+        /**
+         * Save the factory then store its URL in VSTS project settings, the error is kept if any step fails
+         */
+        void store(final String host, final String account, final String collection, final String apiVersion,
+                   final VSTSCredentials credentials) {
+            try {
+                storedFactory = factoryConnection.saveFactory(factory);
+                LOG.debug("Stored factory: {}", storedFactory);
+                storageWriter.storeFactorySetting(host, account, collection, apiVersion, credentials, settingKey,
+                                                  getFactoryUrl(storedFactory)).join();
+                settingStored = true;
+            } catch (CompletionException e) {
+                failure = e.getCause();
+                error = factory.getName() + ": " + e.getCause().getLocalizedMessage();
+            } catch (ServerException | RuntimeException e) {
+                failure = e;
+                error = factory.getName() + ": " + e.getLocalizedMessage();
+            }
+        }
+
+        /**
+         * Remove what {@link #store(String, String, String, String, VSTSCredentials)} created, failures are only logged
+         */
+        void remove(final String host, final String account, final String collection, final String apiVersion,
+                    final VSTSCredentials credentials) {
+            try {
+                if (settingStored) {
+                    vstsConnection.deleteFactorySetting(host, account, collection, apiVersion, credentials, settingKey);
+                }
+                if (storedFactory != null && storedFactory.getId() != null) {
+                    factoryConnection.deleteFactory(storedFactory.getId());
+                }
+            } catch (ServerException | RuntimeException e) {
+                LOG.warn("Factory {} of a failed work item could not be removed: {}", factory.getName(), e.getLocalizedMessage());
+            }
+        }
+    }
+
     /**
      * Create a new factory for a VSTS work item based on the Team Project parent factory and save it
      *
@@ -346,6 +577,25 @@ public class VSTSWebhookService extends BaseWebhookService {
         return newFactory;
     }
 
+    /**
+     * Get a mandatory field of an event
+     *
+     * @param event
+     *         the fields of the event
+     * @param path
+     *         the path of the field
+     * @return the value of the field
+     * @throws ServerException
+     *         if the event doesn't contain the field
+     */
+    private static String getField(final Map<String, String> event, final String path) throws ServerException {
+        final String value = event.get(path);
+        if (isNullOrEmpty(value)) {
+            throw new ServerException("VSTS event doesn't contain mandatory field \'" + path + "\'");
+        }
+        return value;
+    }
+
     /**
      * Get factory URL
      *
@@ -361,119 +611,6 @@ public class VSTSWebhookService extends BaseWebhookService {
         return factoryLink.getHref();
     }
 
-    /**
-     * Get configured 'work item created' webhook for given account, host and collection
-     *
-     * @param host
-     *         the VSTS host
-     * @param account
-     *         the VSTS account
-     * @param collection
-     *         the VSTS collection
-     * @return the webhook configured for given account, host and collection or null if no webhook is configured
-     * @throws ServerException
-     */
-    private Optional<WorkItemCreatedWebhook> getWorkItemCreatedWebhook(final String host, final String account, final String collection)
-            throws ServerException {
-        final List webhooks = getVSTSWebhooks(WORK_ITEM_CREATED_WEBHOOK);
-        WorkItemCreatedWebhook webhook = null;
-        for (Object o : webhooks) {
-            final WorkItemCreatedWebhook w = (WorkItemCreatedWebhook)o;
-            final String webhookHost = w.getHost();
-            final String webhookAccount = w.getAccount();
-            final String webhookCollection = w.getCollection();
-            if (host.equals(webhookHost) && account.equals(webhookAccount) && collection.equals(webhookCollection)) {
-                webhook = w;
-                break;
-            }
-        }
-        return Optional.ofNullable(webhook);
-    }
-
-    /**
-     * Get configured 'pull request updated' webhook for given account, host and collection
-     *
-     * @param host
-     *         the VSTS host
-     * @param account
-     *         the VSTS account
-     * @param collection
-     *         the VSTS collection
-     * @return the webhook configured for given account, host and collection or null if no webhook is configured
-     * @throws ServerException
-     */
-    private Optional<PullRequestUpdatedWebhook> getPullRequestUpdatedWebhook(final String host, final String account, final String collection)
-            throws ServerException {
-        final List webhooks = getVSTSWebhooks(PULL_REQUEST_UPDATED_WEBHOOK);
-        PullRequestUpdatedWebhook webhook = null;
-        for (Object o : webhooks) {
-            final PullRequestUpdatedWebhook w = (PullRequestUpdatedWebhook)o;
-            final String webhookHost = w.getHost();
-            final String webhookAccount = w.getAccount();
-            final String webhookCollection = w.getCollection();
-            if (host.equals(webhookHost) && account.equals(webhookAccount) && collection.equals(webhookCollection)) {
-                webhook = w;
-                break;
-            }
-        }
-        return Optional.ofNullable(webhook);
-    }
-
-    /**
-     * Get configured VSTS webhooks of given type
-     *
-     * @param webhookType
-     *         WORK_ITEM_CREATED_WEBHOOK or PULL_REQUEST_UPDATED_WEBHOOK
-     * @return the list of webhooks of given type contained in VSTS_WEBHOOKS_PROPERTIES_FILENAME properties file
-     */
-    private static List getVSTSWebhooks(final VSTSWebhookType webhookType) throws ServerException {
-        Properties webhooksProperties = getProperties(VSTS_WEBHOOKS_PROPERTIES_FILENAME);
-        Set<String> keySet = webhooksProperties.stringPropertyNames();
-
-        if (webhookType == WORK_ITEM_CREATED_WEBHOOK) {
-            List<WorkItemCreatedWebhook> wicWebhooks = new ArrayList<>();
-            keySet.stream().forEach(key -> {
-                String value = webhooksProperties.getProperty(key);
-                if (!isNullOrEmpty(value)) {
-                    String[] valueSplit = value.split(",");
-                    if (valueSplit.length == 7 &&
-                        valueSplit[0].equals(webhookType.toString())) {
-
-                        WorkItemCreatedWebhook webhook =
-                                new WorkItemCreatedWebhook(valueSplit[1], valueSplit[2], valueSplit[3], valueSplit[4],
-                                                           Pair.of(valueSplit[5], valueSplit[6]));
-                        wicWebhooks.add(webhook);
-                        LOG.debug("new WorkItemCreatedWebhook({})", value);
-                    }
-                }
-            });
-            return wicWebhooks;
-        }
-
-        if (webhookType == PULL_REQUEST_UPDATED_WEBHOOK) {
-            List<PullRequestUpdatedWebhook> pruWebhooks = new ArrayList<>();
-            keySet.stream().forEach(key -> {
-                String value = webhooksProperties.getProperty(key);
-                if (!isNullOrEmpty(value)) {
-                    String[] valueSplit = value.split(",");
-                    if (valueSplit.length >= 7
-                        && valueSplit[0].equals(webhookType.toString())) {
-
-                        final String[] factoriesIDs = (valueSplit.length == 8 ? valueSplit[7].split(";") : new String[0]);
-                        PullRequestUpdatedWebhook webhook =
-                                new PullRequestUpdatedWebhook(valueSplit[1], valueSplit[2], valueSplit[3], valueSplit[4],
-                                                              Pair.of(valueSplit[5], valueSplit[6]), factoriesIDs);
-                        pruWebhooks.add(webhook);
-                        LOG.debug("new PullRequestUpdatedWebhook({})", value);
-                    }
-                }
-            });
-            return pruWebhooks;
-        }
-
-        return new ArrayList();
-    }
-
     /**
      * Store a 'pull request updated' webhook in webhooks property file.
      * If a webhook with same id already exist it will be replaced.
@@ -490,14 +627,14 @@ public class VSTSWebhookService extends BaseWebhookService {
                                                    pruWebhook.getAccount(),
                                                    pruWebhook.getCollection(),
                                                    pruWebhook.getApiVersion(),
-                                                   pruWebhook.getCredentials().first,
-                                                   pruWebhook.getCredentials().second);
+                                                   pruWebhook.getCredentials().getUsername(),
+                                                   pruWebhook.getCredentials().getPassword());
 
         if (factoriesIDs.size() > 0) {
             final String concatedFactoriesIDs = String.join(";", factoriesIDs);
             propertyValue = propertyValue + "," + concatedFactoriesIDs;
         }
 
-        storeProperty(pruWebhook.getId(), propertyValue, VSTS_WEBHOOKS_PROPERTIES_FILENAME);
+        webhookRegistry.storeProperty(pruWebhook.getId(), propertyValue);
     }
 }
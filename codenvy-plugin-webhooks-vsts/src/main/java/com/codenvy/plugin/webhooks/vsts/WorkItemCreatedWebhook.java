@@ -14,8 +14,6 @@
  */
 package com.codenvy.plugin.webhooks.vsts;
 
-import org.eclipse.che.commons.lang.Pair;
-
 /**
  * Wrapper that provides data for a configured VSTS 'work item created' webhook
  *
@@ -23,14 +21,14 @@ import org.eclipse.che.commons.lang.Pair;
  */
 public class WorkItemCreatedWebhook {
 
-    private final String               host;
-    private final String               account;
-    private final String               collection;
-    private final String               apiVersion;
-    private final Pair<String, String> credentials;
+    private final String          host;
+    private final String          account;
+    private final String          collection;
+    private final String          apiVersion;
+    private final VSTSCredentials credentials;
 
     public WorkItemCreatedWebhook(final String host, final String account, final String collection, final String apiVersion,
-                                  final Pair<String, String> credentials) {
+                                  final VSTSCredentials credentials) {
         this.host = host;
         this.account = account;
         this.collection = collection;
@@ -54,7 +52,7 @@ public class WorkItemCreatedWebhook {
         return apiVersion;
     }
 
-    public Pair<String, String> getCredentials() {
+    public VSTSCredentials getCredentials() {
         return credentials;
     }
 }
@@ -14,17 +14,28 @@
  */
 package com.codenvy.plugin.webhooks;
 
+import com.codenvy.plugin.webhooks.connectors.ConnectorDispatcher;
+import com.codenvy.plugin.webhooks.connectors.ConnectorRegistry;
+import com.codenvy.plugin.webhooks.connectors.JenkinsClientPool;
 import com.codenvy.plugin.webhooks.vsts.VSTSConnection;
+import com.codenvy.plugin.webhooks.vsts.VSTSCredentials;
+import com.codenvy.plugin.webhooks.vsts.VSTSStorageWriter;
+import com.codenvy.plugin.webhooks.vsts.VSTSWebhookRegistry;
 import com.codenvy.plugin.webhooks.vsts.VSTSWebhookService;
+import com.codenvy.plugin.webhooks.vsts.shared.StorageDocument;
 import com.google.common.collect.ImmutableList;
 
 import org.eclipse.che.api.auth.shared.dto.Token;
+import org.eclipse.che.api.core.ServerException;
 import org.eclipse.che.api.factory.shared.dto.Factory;
 import org.eclipse.che.api.user.shared.dto.UserDescriptor;
 import org.eclipse.che.dto.server.DtoFactory;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -37,9 +48,21 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.endsWith;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static javax.ws.rs.core.Response.Status.OK;
 
@@ -53,7 +76,30 @@ public class TestVSTSWebhookService {
 
     private final static String FAKE_USER_ID = "TEST_USER_ID";
 
-    private VSTSWebhookService fakeVSTSWebhookService;
+    // VSTS collection and settings of the work item of vsts-work-item-created-event.json
+    private final static String          WI_HOST         = "visualstudio";
+    private final static String          WI_ACCOUNT      = "stournie";
+    private final static String          WI_COLLECTION   = "DefaultCollection";
+    private final static String          WI_API_VERSION  = "2.2-preview.1";
+    private final static VSTSCredentials WI_CREDENTIALS  = new VSTSCredentials("vststest", "Vsts2015");
+    private final static String          DEVELOP_SETTING = "WI9-develop-factory";
+    private final static String          REVIEW_SETTING  = "WI9-review-factory";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FactoryConnection    mockFactoryConnection;
+    private VSTSConnection       mockVSTSConnection;
+    private VSTSStorageWriter    mockStorageWriter;
+    private AuthTokenCache       authTokenCache;
+    private FactoryFetcher       factoryFetcher;
+    private FactoryIndex         factoryIndex;
+    private JenkinsClientPool    jenkinsClientPool;
+    private ConnectorRegistry    connectorRegistry;
+    private ConnectorDispatcher  connectorDispatcher;
+    private DeliveryDeduplicator deliveryDeduplicator;
+    private VSTSWebhookRegistry  webhookRegistry;
+    private VSTSWebhookService   fakeVSTSWebhookService;
 
     @Before
     public void setUp() throws Exception {
@@ -69,21 +115,61 @@ public class TestVSTSWebhookService {
         when(mockUserConnection.getCurrentUser()).thenReturn(mockUser);
 
         // Prepare factoryConnection
-        FactoryConnection mockFactoryConnection = mock(FactoryConnection.class);
+        mockFactoryConnection = mock(FactoryConnection.class);
         Factory VSTSfakeFactory = DtoFactory.getInstance().createDtoFromJson(resourceToString("factory-codenvy.json"), Factory.class);
         when(mockFactoryConnection.findFactory("codenvy", FAKE_USER_ID)).thenReturn(ImmutableList.of(VSTSfakeFactory));
-        when(mockFactoryConnection.saveFactory(anyObject())).thenReturn(VSTSfakeFactory);
+        // Saved factories get their name as id
+        when(mockFactoryConnection.saveFactory(anyObject())).thenAnswer(invocation -> {
+            final Factory factory = (Factory)invocation.getArguments()[0];
+            return DtoFactory.cloneDto(factory).withId(factory.getName());
+        });
         when(mockFactoryConnection.getFactory(VSTSfakeFactory.getId())).thenReturn(VSTSfakeFactory);
         when(mockFactoryConnection.updateFactory(VSTSfakeFactory)).thenReturn(VSTSfakeFactory);
 
         // Prepare VSTSConnection
-        VSTSConnection mockVSTSConnection = mock(VSTSConnection.class);
+        mockVSTSConnection = mock(VSTSConnection.class);
         when(mockVSTSConnection.getRepositoryNameUrl("https://fabrikam-fiber-inc.visualstudio.com/DefaultCollection/_apis/git/repositories/278d5cd2-584d-4b63-824a-2ba458937249", "2.2-preview.1",
-                                                     org.eclipse.che.commons.lang.Pair.of("username", "password"))).thenReturn("https://fabrikam-fiber-inc.visualstudio.com/DefaultCollection/test-project");
+                                                     new VSTSCredentials("username", "password"))).thenReturn("https://fabrikam-fiber-inc.visualstudio.com/DefaultCollection/test-project");
+
+        // Prepare VSTSStorageWriter
+        mockStorageWriter = mock(VSTSStorageWriter.class);
+        when(mockStorageWriter.storeFactorySetting(anyString(), anyString(), anyString(), anyString(), anyObject(), anyString(),
+                                                   anyString())).thenReturn(completedFuture(null));
+
+        // Prepare registries, started by the injector otherwise
+        // Webhooks are stored by the service, the test uses a copy of them
+        EndpointGuards endpointGuards = new EndpointGuards();
+        jenkinsClientPool = new JenkinsClientPool(endpointGuards);
+        connectorRegistry = new ConnectorRegistry(jenkinsClientPool);
+        connectorRegistry.start();
+        final Path webhooksFile = folder.getRoot().toPath().resolve("vsts-webhooks.properties");
+        Files.copy(resourcePath("vsts-webhooks.properties"), webhooksFile);
+        webhookRegistry = new VSTSWebhookRegistry(webhooksFile.toString());
+        webhookRegistry.start();
 
         // Prepare VSTSWebhookService
+        authTokenCache = new AuthTokenCache(mockAuthConnection);
+        factoryFetcher = new FactoryFetcher(mockFactoryConnection);
+        factoryIndex = new FactoryIndex(folder.getRoot().toPath().resolve("factories-index.dat"), 6, HOURS);
+        connectorDispatcher = new ConnectorDispatcher();
+        deliveryDeduplicator = new DeliveryDeduplicator();
         fakeVSTSWebhookService =
-                new VSTSWebhookService(mockAuthConnection, mockFactoryConnection, mockUserConnection, mockVSTSConnection);
+                new VSTSWebhookService(authTokenCache, mockFactoryConnection, factoryFetcher, factoryIndex, connectorRegistry,
+                                       connectorDispatcher, deliveryDeduplicator, endpointGuards, mockUserConnection, mockVSTSConnection,
+                                       mockStorageWriter, webhookRegistry);
+    }
+
+    @After
+    public void tearDown() {
+        fakeVSTSWebhookService.stop();
+        webhookRegistry.stop();
+        deliveryDeduplicator.stop();
+        connectorDispatcher.stop();
+        connectorRegistry.stop();
+        jenkinsClientPool.close();
+        factoryIndex.stop();
+        factoryFetcher.stop();
+        authTokenCache.stop();
     }
 
     @Test
@@ -100,6 +186,71 @@ public class TestVSTSWebhookService {
         Assert.assertTrue(response.getStatus() == OK.getStatusCode());
     }
 
+    @Test
+    public void testVSTSWebhookWorkItemCreatedEventStoresBothFactories() throws Exception {
+        Response response = fakeVSTSWebhookService.handleVSTSWebhookEvent(prepareRequest("work_item_created"));
+
+        assertEquals(OK.getStatusCode(), response.getStatus());
+        verify(mockFactoryConnection, times(2)).saveFactory(anyObject());
+        verifySettingStored(DEVELOP_SETTING);
+        verifySettingStored(REVIEW_SETTING);
+        verify(mockFactoryConnection, never()).deleteFactory(anyString());
+        verify(mockVSTSConnection, never()).deleteFactorySetting(anyString(), anyString(), anyString(), anyString(), anyObject(),
+                                                                 anyString());
+    }
+
+    @Test
+    public void testVSTSWebhookWorkItemCreatedEventRemovesBothFactoriesIfOneFails() throws Exception {
+        stubSetting(REVIEW_SETTING, failed(new ServerException("VSTS unavailable")));
+
+        try {
+            fakeVSTSWebhookService.handleVSTSWebhookEvent(prepareRequest("work_item_created"));
+            fail("ServerException expected");
+        } catch (ServerException e) {
+            assertFalse(e instanceof RetryLaterException);
+        }
+
+        verify(mockVSTSConnection).deleteFactorySetting(WI_HOST, WI_ACCOUNT, WI_COLLECTION, WI_API_VERSION, WI_CREDENTIALS,
+                                                        DEVELOP_SETTING);
+        verify(mockVSTSConnection, never()).deleteFactorySetting(anyString(), anyString(), anyString(), anyString(), anyObject(),
+                                                                 eq(REVIEW_SETTING));
+        verify(mockFactoryConnection).deleteFactory(endsWith("-9-develop-factory"));
+        verify(mockFactoryConnection).deleteFactory(endsWith("-9-review-factory"));
+    }
+
+    @Test
+    public void testVSTSWebhookWorkItemCreatedEventThrottledIsRetriedAfterLongestDelay() throws Exception {
+        stubSetting(DEVELOP_SETTING, failed(new RetryLaterException("VSTS account throttled", 2000)));
+        stubSetting(REVIEW_SETTING, failed(new RetryLaterException("VSTS account throttled", 5000)));
+
+        try {
+            fakeVSTSWebhookService.handleVSTSWebhookEvent(prepareRequest("work_item_created"));
+            fail("RetryLaterException expected");
+        } catch (RetryLaterException e) {
+            assertEquals(5000, e.getDelayMillis());
+        }
+
+        verify(mockVSTSConnection, never()).deleteFactorySetting(anyString(), anyString(), anyString(), anyString(), anyObject(),
+                                                                 anyString());
+        verify(mockFactoryConnection, times(2)).deleteFactory(anyString());
+    }
+
+    private void stubSetting(String settingKey, CompletableFuture<StorageDocument> result) {
+        when(mockStorageWriter.storeFactorySetting(eq(WI_HOST), eq(WI_ACCOUNT), eq(WI_COLLECTION), eq(WI_API_VERSION), eq(WI_CREDENTIALS),
+                                                   eq(settingKey), anyString())).thenReturn(result);
+    }
+
+    private void verifySettingStored(String settingKey) {
+        verify(mockStorageWriter).storeFactorySetting(eq(WI_HOST), eq(WI_ACCOUNT), eq(WI_COLLECTION), eq(WI_API_VERSION),
+                                                      eq(WI_CREDENTIALS), eq(settingKey), anyString());
+    }
+
+    private static CompletableFuture<StorageDocument> failed(Throwable failure) {
+        final CompletableFuture<StorageDocument> result = new CompletableFuture<>();
+        result.completeExceptionally(failure);
+        return result;
+    }
+
     protected HttpServletRequest prepareRequest(String eventType) throws Exception {
         HttpServletRequest mockRequest = mock(HttpServletRequest.class);
 
@@ -129,8 +280,10 @@ public class TestVSTSWebhookService {
     }
 
     private String resourceToString(String resource) throws Exception {
-        final Path resourcePath =
-                Paths.get(Thread.currentThread().getContextClassLoader().getResource(resource).toURI());
-        return new String(Files.readAllBytes(resourcePath));
+        return new String(Files.readAllBytes(resourcePath(resource)));
+    }
+
+    private Path resourcePath(String resource) throws Exception {
+        return Paths.get(Thread.currentThread().getContextClassLoader().getResource(resource).toURI());
     }
 }
@@ -0,0 +1,141 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.EndpointGuards;
+import com.codenvy.plugin.webhooks.RetryLaterException;
+
+import org.eclipse.che.api.core.ServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for VSTSClient
+ *
+ * @author Stephane Tournie
+ */
+public class TestVSTSClient {
+
+    private static final String ACCOUNT = "codenvy";
+    private static final String URL     = "https://codenvy.visualstudio.com/DefaultCollection/_apis/git/repositories";
+
+    private EndpointGuards endpointGuards;
+    private VSTSClient     vstsClient;
+
+    @Before
+    public void setUp() {
+        endpointGuards = new EndpointGuards();
+        vstsClient = new VSTSClient(mock(Client.class), endpointGuards, new VSTSRateLimiter(1000, 100, 10, SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        vstsClient.close();
+    }
+
+    @Test
+    public void responseIsReadAndClosed() throws Exception {
+        final Response response = response(200);
+
+        assertEquals("repositories", vstsClient.call(ACCOUNT, URL, client -> response, r -> "repositories"));
+
+        verify(response).close();
+    }
+
+    @Test
+    public void throttledRequestIsSentAgain() throws Exception {
+        final Response throttled = response(429);
+        final Response ok = response(200);
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger reads = new AtomicInteger();
+
+        final String result = vstsClient.call(ACCOUNT, URL, client -> requests.incrementAndGet() == 1 ? throttled : ok, r -> {
+            reads.incrementAndGet();
+            return "repositories";
+        });
+
+        assertEquals("repositories", result);
+        assertEquals(2, requests.get());
+        assertEquals(1, reads.get());
+        verify(throttled).close();
+        // Throttling is not a failure of the host
+        assertEquals(0, endpointGuards.get(URL).getFailureRate());
+    }
+
+    @Test
+    public void requestStillThrottledIsRetriedLater() throws Exception {
+        final Response throttled = response(429);
+
+        try {
+            vstsClient.call(ACCOUNT, URL, client -> throttled, r -> "repositories");
+            fail("The call should fail once all retries are throttled");
+        } catch (RetryLaterException e) {
+            assertTrue(e.getDelayMillis() >= 0);
+        }
+
+        verify(throttled, times(6)).close();
+    }
+
+    @Test
+    public void serverErrorIsAFailureOfTheHost() throws Exception {
+        final Response error = response(500);
+
+        try {
+            vstsClient.call(ACCOUNT, URL, client -> error, r -> {
+                throw new ServerException("HTTP " + r.getStatus());
+            });
+            fail("The error of the reader should be thrown");
+        } catch (ServerException e) {
+            assertEquals("HTTP 500", e.getMessage());
+        }
+
+        assertEquals(100, endpointGuards.get(URL).getFailureRate());
+    }
+
+    @Test
+    public void processingErrorIsAServerError() throws Exception {
+        try {
+            vstsClient.call(ACCOUNT, URL, client -> {
+                throw new ProcessingException("Read timed out");
+            }, r -> "repositories");
+            fail("The processing error should be thrown as a server error");
+        } catch (ServerException e) {
+            assertEquals("Read timed out", e.getMessage());
+        }
+
+        assertEquals(100, endpointGuards.get(URL).getFailureRate());
+    }
+
+    private static Response response(final int status) {
+        final Response response = mock(Response.class);
+        when(response.getStatus()).thenReturn(status);
+        return response;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.RetryLaterException;
+import com.codenvy.plugin.webhooks.vsts.shared.Repository;
+
+import org.eclipse.che.api.core.NotFoundException;
+import org.eclipse.che.api.core.ServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.OngoingStubbing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the repository URLs cache of VSTSConnection
+ *
+ * @author Stephane Tournie
+ */
+public class TestVSTSConnection {
+
+    private static final String API_VERSION       = "2.2-preview.1";
+    private static final String REPOSITORY_ID_URL = "https://codenvy.visualstudio.com/DefaultCollection/_apis/git/repositories/1234";
+    private static final String REPOSITORY_URL    = "https://codenvy.visualstudio.com/DefaultCollection/_git/repo";
+    private static final String OTHER_URL         = "https://codenvy.visualstudio.com/DefaultCollection/_git/other";
+
+    private final VSTSCredentials credentials = new VSTSCredentials("user", "token");
+
+    private VSTSClient     vstsClient;
+    private VSTSConnection vstsConnection;
+
+    @Before
+    public void setUp() {
+        vstsClient = mock(VSTSClient.class);
+        vstsConnection = new VSTSConnection(vstsClient);
+    }
+
+    @After
+    public void tearDown() {
+        vstsConnection.stop();
+    }
+
+    @Test
+    public void repositoryUrlIsFetchedOnce() throws Exception {
+        final Repository repository = repository(REPOSITORY_URL);
+        whenRepositoryFetched().thenReturn(repository);
+
+        assertEquals(REPOSITORY_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials));
+        assertEquals(REPOSITORY_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials));
+
+        verifyRepositoryFetched(1);
+    }
+
+    @Test
+    public void repositoryNotFoundIsRemembered() throws Exception {
+        whenRepositoryFetched().thenThrow(new NotFoundException("VSTS answered HTTP 404: repository not found"));
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials);
+                fail("ServerException expected");
+            } catch (ServerException e) {
+                assertEquals("VSTS answered HTTP 404: repository not found", e.getLocalizedMessage());
+            }
+        }
+
+        verifyRepositoryFetched(1);
+    }
+
+    @Test
+    public void throttledLookupKeepsItsDelay() throws Exception {
+        whenRepositoryFetched().thenThrow(new RetryLaterException("VSTS account throttled", 3000));
+
+        try {
+            vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials);
+            fail("RetryLaterException expected");
+        } catch (RetryLaterException e) {
+            assertEquals(3000, e.getDelayMillis());
+        }
+    }
+
+    @Test
+    public void repositoryUrlsAreCachedPerCredentials() throws Exception {
+        final VSTSCredentials otherCredentials = new VSTSCredentials("other", "token");
+        final Repository repository = repository(REPOSITORY_URL);
+        final Repository other = repository(OTHER_URL);
+        whenRepositoryFetched().thenReturn(repository, other);
+
+        assertEquals(REPOSITORY_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials));
+        assertEquals(OTHER_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, otherCredentials));
+        assertEquals(REPOSITORY_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, credentials));
+        assertEquals(OTHER_URL, vstsConnection.getRepositoryNameUrl(REPOSITORY_ID_URL, API_VERSION, otherCredentials));
+
+        verifyRepositoryFetched(2);
+    }
+
+    private OngoingStubbing<Object> whenRepositoryFetched() throws Exception {
+        return when(vstsClient.call(anyString(), eq(REPOSITORY_ID_URL), any(), any()));
+    }
+
+    private void verifyRepositoryFetched(final int times) throws Exception {
+        verify(vstsClient, times(times)).call(anyString(), eq(REPOSITORY_ID_URL), any(), any());
+    }
+
+    private static Repository repository(final String remoteUrl) {
+        final Repository repository = mock(Repository.class);
+        when(repository.getRemoteUrl()).thenReturn(remoteUrl);
+        return repository;
+    }
+}
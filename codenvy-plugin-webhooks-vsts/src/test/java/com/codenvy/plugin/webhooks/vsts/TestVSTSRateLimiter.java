@@ -0,0 +1,167 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.RetryLaterException;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for VSTSRateLimiter
+ *
+ * @author Stephane Tournie
+ */
+public class TestVSTSRateLimiter {
+
+    private static final String ACCOUNT       = "codenvy";
+    private static final String OTHER_ACCOUNT = "che";
+
+    private static final Function<String, String> NO_HEADERS = name -> null;
+
+    @Test
+    public void burstIsSentWithoutWaiting() throws Exception {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(1, 3, 10, SECONDS);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            rateLimiter.acquire(ACCOUNT);
+        }
+
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        assertTrue(rateLimiter.getWaitMillis(ACCOUNT) > 500);
+        assertEquals(0, rateLimiter.getWaitMillis(OTHER_ACCOUNT));
+    }
+
+    @Test
+    public void requestWaitsForTheNextToken() throws Exception {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(10, 1, 10, SECONDS);
+        rateLimiter.acquire(ACCOUNT);
+
+        final long start = System.nanoTime();
+        rateLimiter.acquire(ACCOUNT);
+
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+    }
+
+    @Test
+    public void requestThatWouldWaitTooLongIsRetriedLater() throws Exception {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(1, 1, 100, MILLISECONDS);
+        rateLimiter.acquire(ACCOUNT);
+
+        try {
+            rateLimiter.acquire(ACCOUNT);
+            fail("The request should not wait for the budget");
+        } catch (RetryLaterException e) {
+            assertTrue(e.getDelayMillis() > 500);
+        }
+        // No token was taken by the rejected request
+        assertTrue(rateLimiter.getWaitMillis(ACCOUNT) <= 1000);
+    }
+
+    @Test
+    public void requestNeverWaitsWithoutMaxWait() throws Exception {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(1, 1, 0, SECONDS);
+        rateLimiter.acquire(ACCOUNT);
+
+        final long start = System.nanoTime();
+        try {
+            rateLimiter.acquire(ACCOUNT);
+            fail("The request should not wait for the budget");
+        } catch (RetryLaterException e) {
+            assertTrue(e.getDelayMillis() > 500);
+        }
+        assertTrue(NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void retryAfterDelaysTheRequestsOfTheAccount() throws Exception {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(100, 10, 10, SECONDS);
+
+        assertTrue(rateLimiter.onResponse(ACCOUNT, 429, headers(VSTSRateLimiter.RETRY_AFTER, "2")));
+
+        assertTrue(rateLimiter.getWaitMillis(ACCOUNT) > 1000);
+        assertEquals(0, rateLimiter.getWaitMillis(OTHER_ACCOUNT));
+    }
+
+    @Test
+    public void throttledRequestHalvesTheRate() {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(4, 10, 10, SECONDS);
+
+        assertTrue(rateLimiter.onResponse(ACCOUNT, 429, NO_HEADERS));
+
+        final Map<String, Number> metrics = rateLimiter.getMetrics();
+        assertEquals(2.0, metrics.get("webhooks.vsts." + ACCOUNT + ".rate").doubleValue(), 0.001);
+        assertEquals(1L, metrics.get("webhooks.vsts." + ACCOUNT + ".throttled"));
+    }
+
+    @Test
+    public void unavailableServiceIsThrottlingOnlyWithRetryAfter() {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(4, 10, 10, SECONDS);
+
+        assertFalse(rateLimiter.onResponse(ACCOUNT, 503, NO_HEADERS));
+        assertFalse(rateLimiter.onResponse(ACCOUNT, 200, NO_HEADERS));
+        assertTrue(rateLimiter.onResponse(ACCOUNT, 503, headers(VSTSRateLimiter.RETRY_AFTER, "1")));
+    }
+
+    @Test
+    public void remainingRequestsAreSpreadUntilReset() {
+        final VSTSRateLimiter rateLimiter = new VSTSRateLimiter(100, 10, 10, SECONDS);
+        final long reset = System.currentTimeMillis() / 1000 + 10;
+
+        rateLimiter.onResponse(ACCOUNT, 200, headers(VSTSRateLimiter.RATE_LIMIT_REMAINING, "20",
+                                                     VSTSRateLimiter.RATE_LIMIT_RESET, String.valueOf(reset)));
+
+        final Map<String, Number> metrics = rateLimiter.getMetrics();
+        final double rate = metrics.get("webhooks.vsts." + ACCOUNT + ".rate").doubleValue();
+        assertTrue(rate >= 2 && rate <= 3);
+        assertEquals(20L, metrics.get("webhooks.vsts." + ACCOUNT + ".remaining"));
+    }
+
+    @Test
+    public void retryAfterIsParsedFromSecondsOrDate() {
+        assertEquals(SECONDS.toNanos(3), VSTSRateLimiter.parseRetryAfter("3"));
+        assertEquals(0, VSTSRateLimiter.parseRetryAfter("-1"));
+        assertEquals(-1, VSTSRateLimiter.parseRetryAfter(null));
+        assertEquals(-1, VSTSRateLimiter.parseRetryAfter("soon"));
+        assertEquals(0, VSTSRateLimiter.parseRetryAfter("Mon, 1 Jan 2001 00:00:00 GMT"));
+
+        final String date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30));
+        final long delay = NANOSECONDS.toSeconds(VSTSRateLimiter.parseRetryAfter(date));
+        assertTrue(delay >= 28 && delay <= 30);
+    }
+
+    private static Function<String, String> headers(final String... namesAndValues) {
+        final ImmutableMap.Builder<String, String> headers = ImmutableMap.builder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return headers.build()::get;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *  [2012] - [2016] Codenvy, S.A.
+ *  All Rights Reserved.
+ *
+ * NOTICE:  All information contained herein is, and remains
+ * the property of Codenvy S.A. and its suppliers,
+ * if any.  The intellectual and technical concepts contained
+ * herein are proprietary to Codenvy S.A.
+ * and its suppliers and may be covered by U.S. and Foreign Patents,
+ * patents in process, and are protected by trade secret or copyright law.
+ * Dissemination of this information or reproduction of this material
+ * is strictly forbidden unless prior written permission is obtained
+ * from Codenvy S.A..
+ */
+package com.codenvy.plugin.webhooks.vsts;
+
+import com.codenvy.plugin.webhooks.vsts.shared.StorageDocument;
+
+import org.eclipse.che.api.core.ServerException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for VSTSStorageWriter
+ *
+ * @author Stephane Tournie
+ */
+public class TestVSTSStorageWriter {
+
+    private static final String HOST        = "visualstudio.com";
+    private static final String ACCOUNT     = "codenvy";
+    private static final String COLLECTION  = "DefaultCollection";
+    private static final String API_VERSION = "2.0-preview.1";
+    private static final String FACTORY_1   = "https://codenvy.com/f?id=factory1";
+    private static final String FACTORY_2   = "https://codenvy.com/f?id=factory2";
+
+    private final VSTSCredentials credentials = new VSTSCredentials("user", "token");
+
+    private VSTSConnection    vstsConnection;
+    private StorageDocument   document;
+    private VSTSStorageWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        vstsConnection = mock(VSTSConnection.class);
+        document = mock(StorageDocument.class);
+        when(vstsConnection.storeFactorySetting(anyString(), anyString(), anyString(), anyString(), any(VSTSCredentials.class),
+                                                anyString(), anyString())).thenReturn(document);
+    }
+
+    @After
+    public void tearDown() {
+        writer.stop();
+    }
+
+    @Test
+    public void writesAreFlushedAtTheEndOfTheWindow() throws Exception {
+        writer = new VSTSStorageWriter(vstsConnection, 200, MILLISECONDS, 50, 2);
+
+        final CompletableFuture<StorageDocument> first = store("project1", FACTORY_1);
+        final CompletableFuture<StorageDocument> second = store("project2", FACTORY_2);
+
+        assertEquals(2, writer.getPendingCount());
+        assertFalse(first.isDone());
+        assertSame(document, first.get(5, SECONDS));
+        assertSame(document, second.get(5, SECONDS));
+        verifyStored("project1", FACTORY_1);
+        verifyStored("project2", FACTORY_2);
+        assertEquals(0, writer.getPendingCount());
+        assertEquals(1L, writer.getMetrics().get("webhooks.vsts.storage.batches"));
+        assertEquals(2L, writer.getMetrics().get("webhooks.vsts.storage.documents"));
+    }
+
+    @Test
+    public void fullBatchIsFlushedAtOnce() throws Exception {
+        writer = new VSTSStorageWriter(vstsConnection, 1, HOURS, 2, 2);
+
+        final CompletableFuture<StorageDocument> first = store("project1", FACTORY_1);
+        final CompletableFuture<StorageDocument> second = store("project2", FACTORY_2);
+
+        assertSame(document, first.get(5, SECONDS));
+        assertSame(document, second.get(5, SECONDS));
+    }
+
+    @Test
+    public void collectionsAreBatchedSeparately() throws Exception {
+        writer = new VSTSStorageWriter(vstsConnection, 1, HOURS, 2, 2);
+
+        store("project1", FACTORY_1);
+        writer.storeFactorySetting(HOST, ACCOUNT, "OtherCollection", API_VERSION, credentials, "project1", FACTORY_1);
+
+        assertEquals(2, writer.getPendingCount());
+    }
+
+    @Test
+    public void onlyTheLastWriteOfASettingIsSent() throws Exception {
+        writer = new VSTSStorageWriter(vstsConnection, 100, MILLISECONDS, 50, 2);
+
+        final CompletableFuture<StorageDocument> first = store("project1", FACTORY_1);
+        final CompletableFuture<StorageDocument> last = store("project1", FACTORY_2);
+
+        assertSame(document, first.get(5, SECONDS));
+        assertSame(document, last.get(5, SECONDS));
+        verifyStored("project1", FACTORY_2);
+        verify(vstsConnection, never()).storeFactorySetting(anyString(), anyString(), anyString(), anyString(),
+                                                            any(VSTSCredentials.class), anyString(), eq(FACTORY_1));
+    }
+
+    @Test
+    public void failedWriteDoesNotFailTheOtherWrites() throws Exception {
+        final ServerException error = new ServerException("Conflict on project1");
+        when(vstsConnection.storeFactorySetting(HOST, ACCOUNT, COLLECTION, API_VERSION, credentials, "project1", FACTORY_1))
+                .thenThrow(error);
+        writer = new VSTSStorageWriter(vstsConnection, 1, HOURS, 2, 2);
+
+        final CompletableFuture<StorageDocument> failed = store("project1", FACTORY_1);
+        final CompletableFuture<StorageDocument> stored = store("project2", FACTORY_2);
+
+        try {
+            failed.get(5, SECONDS);
+            fail("The write should fail");
+        } catch (ExecutionException e) {
+            assertSame(error, e.getCause());
+        }
+        assertSame(document, stored.get(5, SECONDS));
+    }
+
+    @Test
+    public void pendingWritesFailWhenTheWriterStops() throws Exception {
+        writer = new VSTSStorageWriter(vstsConnection, 1, HOURS, 50, 2);
+        final CompletableFuture<StorageDocument> pending = store("project1", FACTORY_1);
+
+        writer.stop();
+
+        assertTrue(pending.isCompletedExceptionally());
+        verify(vstsConnection, never()).storeFactorySetting(anyString(), anyString(), anyString(), anyString(),
+                                                            any(VSTSCredentials.class), anyString(), anyString());
+    }
+
+    private CompletableFuture<StorageDocument> store(final String settingKey, final String factoryUrl) {
+        return writer.storeFactorySetting(HOST, ACCOUNT, COLLECTION, API_VERSION, credentials, settingKey, factoryUrl);
+    }
+
+    private void verifyStored(final String settingKey, final String factoryUrl) throws ServerException {
+        verify(vstsConnection).storeFactorySetting(HOST, ACCOUNT, COLLECTION, API_VERSION, credentials, settingKey, factoryUrl);
+    }
+}